@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Допуск соединений сразу после accept(), пока на клиента не потрачены ни поток, ни ClientHandler:
+// общий лимит (--max-connections), лимит на один IP (--max-per-ip) и длина очереди accept (--backlog).
+// Счётчики - AtomicInteger с CAS "прибавить, если меньше лимита": поток accept ничего не ждёт.
+// Лишнее соединение получает одну строку и сразу закрывается.
+final class Admission {
+    private static final byte[] BUSY = "Server is busy, try again later.\n".getBytes(StandardCharsets.UTF_8);
+
+    private static volatile int maxConnections = 100_000;
+    private static volatile int maxPerAddress = 0; // 0 - без лимита на IP
+    private static volatile int backlog = 1024;
+
+    private static final AtomicInteger active = new AtomicInteger();
+    // Счётчик адреса, упавший до нуля, помечается -1 и удаляется; кто увидел -1, берёт новый
+    private static final ConcurrentHashMap<InetAddress, AtomicInteger> perAddress = new ConcurrentHashMap<>();
+    private static final LongAdder rejectedFull = Metrics.counter("admission.rejected_full");
+    private static final LongAdder rejectedPerAddress = Metrics.counter("admission.rejected_per_ip");
+
+    static {
+        Metrics.gauge("admission.active", active::get);
+        Metrics.gauge("admission.addresses", perAddress::size);
+    }
+
+    private Admission() {
+    }
+
+    static void configure(int connections, int perIp, int acceptBacklog) {
+        maxConnections = connections;
+        maxPerAddress = perIp;
+        backlog = acceptBacklog;
+    }
+
+    static int backlog() {
+        return backlog;
+    }
+
+    // true - соединение принято и должно быть отпущено release() при закрытии
+    static boolean tryAdmit(InetAddress address) {
+        if (!increment(active, maxConnections)) {
+            rejectedFull.increment();
+            return false;
+        }
+        if (maxPerAddress <= 0 || address == null) return true;
+        while (true) {
+            AtomicInteger count = perAddress.computeIfAbsent(address, a -> new AtomicInteger());
+            int current = count.get();
+            if (current < 0) {
+                // Счётчик как раз удаляют: берём новый
+                perAddress.remove(address, count);
+                continue;
+            }
+            if (current >= maxPerAddress) {
+                active.decrementAndGet();
+                rejectedPerAddress.increment();
+                return false;
+            }
+            if (count.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    static void release(InetAddress address) {
+        release(address, false);
+    }
+
+    // exempted - место адреса уже отпущено exempt()
+    static void release(InetAddress address, boolean exempted) {
+        active.decrementAndGet();
+        if (!exempted) releaseAddress(address);
+    }
+
+    // Сессия кластера (CLUSTER от соседнего узла): все сессии игроков, которых он пересылает, идут
+    // с его адреса, и --max-per-ip отрезал бы их. После входа такая сессия освобождает место
+    // своего адреса и дальше считается только в общем лимите
+    static void exempt(InetAddress address) {
+        releaseAddress(address);
+    }
+
+    private static void releaseAddress(InetAddress address) {
+        if (maxPerAddress <= 0 || address == null) return;
+        AtomicInteger count = perAddress.get(address);
+        if (count == null) return;
+        if (count.decrementAndGet() == 0 && count.compareAndSet(0, -1)) {
+            perAddress.remove(address, count);
+        }
+    }
+
+    // Отказ клиенту блокирующего сервера: строка и закрытие
+    static void reject(Socket socket) {
+        try (Socket closing = socket) {
+            OutputStream out = closing.getOutputStream();
+            out.write(BUSY);
+            out.flush();
+        } catch (IOException e) {
+            // Клиент уже ушёл
+        }
+    }
+
+    // То же для канала неблокирующего сервера (после accept канал ещё блокирующий)
+    static void reject(SocketChannel channel) {
+        try (SocketChannel closing = channel) {
+            closing.write(ByteBuffer.wrap(BUSY));
+        } catch (IOException e) {
+            // Клиент уже ушёл
+        }
+    }
+
+    private static boolean increment(AtomicInteger counter, int limit) {
+        while (true) {
+            int current = counter.get();
+            if (limit > 0 && current >= limit) return false;
+            if (counter.compareAndSet(current, current + 1)) return true;
+        }
+    }
+}
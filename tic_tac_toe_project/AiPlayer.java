@@ -0,0 +1,218 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+// Ходы бота. На 3x3 - готовая таблица TicTacToeSolver, на больших полях - alpha-beta
+// с итеративным углублением, ограниченная по времени на ход.
+// Считаем в отдельном маленьком пуле, чтобы комнаты с ботом не отнимали ядра у живых игроков.
+final class AiPlayer {
+    private static final int WIN_SCORE = 100_000_000;
+    private static final int INFINITY = Integer.MAX_VALUE / 2;
+
+    private static volatile long budgetNanos = 200_000_000L;
+    private static volatile ExecutorService executor;
+
+    private AiPlayer() {
+    }
+
+    static void start(int threads, long budgetMillis) {
+        budgetNanos = budgetMillis * 1_000_000L;
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "ai-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        int positions = TicTacToeSolver.warmUp();
+        Log.info("AI ready: {} canonical 3x3 positions, {} ms per move on larger boards.", positions, budgetMillis);
+    }
+
+    // Асинхронно выбирает ход и передаёт номер клетки (row * size + col) в onMove из потока бота.
+    // Пул создаёт start() при запуске сервера: ленивый старт отсюда гонялся бы между потоками комнат
+    static void requestMove(GameBoard snapshot, int player, IntConsumer onMove) {
+        ExecutorService pool = executor;
+        if (pool == null) {
+            throw new IllegalStateException("AiPlayer.start() was not called");
+        }
+        pool.execute(() -> {
+            int move = chooseMove(snapshot, player);
+            if (move >= 0) {
+                onMove.accept(move);
+            }
+        });
+    }
+
+    static int chooseMove(GameBoard board, int player) {
+        if (board instanceof SmallBoard) {
+            return TicTacToeSolver.bestMove(((SmallBoard) board).bits(), player);
+        }
+        return new Search((GridBoard) board, player, System.nanoTime() + budgetNanos).run();
+    }
+
+    private static final class Timeout extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Timeout() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final class Search {
+        private static final Timeout TIMEOUT = new Timeout();
+
+        private final GridBoard board;
+        private final int player;
+        private final int size;
+        private final int winLength;
+        private final long deadline;
+        private final int[][] moveBuffers; // буфер кандидатов на каждый уровень глубины
+        private long nodes;
+
+        Search(GridBoard board, int player, long deadline) {
+            this.board = board;
+            this.player = player;
+            this.size = board.size();
+            this.winLength = board.winLength();
+            this.deadline = deadline;
+            this.moveBuffers = new int[size * size + 1][];
+        }
+
+        int run() {
+            int[] moves = new int[size * size];
+            int count = candidates(moves);
+            if (count == 0) return -1;
+
+            // Выигрыш в один ход и обязательная защита не требуют перебора
+            for (int side : new int[] {player, 1 - player}) {
+                for (int i = 0; i < count; i++) {
+                    int move = moves[i];
+                    boolean won = board.place(move / size, move % size, side);
+                    board.undo(move / size, move % size);
+                    if (won) return move;
+                }
+            }
+
+            int best = moves[0];
+            int maxDepth = size * size - board.moveCount();
+            for (int depth = 1; depth <= maxDepth; depth++) {
+                try {
+                    int bestScore = -INFINITY;
+                    int bestMove = best;
+                    // Лучший ход прошлой итерации смотрим первым, так alpha-beta отсекает больше
+                    for (int i = -1; i < count; i++) {
+                        int move = i < 0 ? best : moves[i];
+                        if (i >= 0 && move == best) continue;
+                        int row = move / size;
+                        int col = move % size;
+                        int score = board.place(row, col, player)
+                                ? WIN_SCORE + depth
+                                : -negamax(1 - player, depth - 1, 1, -INFINITY, -bestScore);
+                        board.undo(row, col);
+                        if (score > bestScore) {
+                            bestScore = score;
+                            bestMove = move;
+                        }
+                    }
+                    best = bestMove;
+                    if (bestScore >= WIN_SCORE || bestScore <= -WIN_SCORE) break;
+                } catch (Timeout e) {
+                    // Время вышло: остаётся лучший ход последней полностью просчитанной глубины
+                    break;
+                }
+            }
+            return best;
+        }
+
+        private int negamax(int side, int depth, int ply, int alpha, int beta) {
+            if ((++nodes & 255) == 0 && System.nanoTime() > deadline) throw TIMEOUT;
+            if (board.isFull()) return 0;
+            if (depth == 0) return evaluate(side);
+
+            int[] moves = moveBuffers[ply];
+            if (moves == null) {
+                moves = moveBuffers[ply] = new int[size * size];
+            }
+            int count = candidates(moves);
+            int best = -INFINITY;
+            for (int i = 0; i < count; i++) {
+                int row = moves[i] / size;
+                int col = moves[i] % size;
+                int score = board.place(row, col, side)
+                        ? WIN_SCORE + depth
+                        : -negamax(1 - side, depth - 1, ply + 1, -beta, -alpha);
+                board.undo(row, col);
+                if (score > best) best = score;
+                if (best > alpha) alpha = best;
+                if (alpha >= beta) break;
+            }
+            return best;
+        }
+
+        // Свободные клетки рядом с уже занятыми: дальние ходы на больших полях почти никогда не нужны
+        private int candidates(int[] out) {
+            if (board.moveCount() == 0) {
+                out[0] = (size / 2) * size + size / 2;
+                return 1;
+            }
+            int count = 0;
+            for (int row = 0; row < size; row++) {
+                for (int col = 0; col < size; col++) {
+                    if (board.get(row, col) == 0 && hasNeighbour(row, col)) {
+                        out[count++] = row * size + col;
+                    }
+                }
+            }
+            return count;
+        }
+
+        private boolean hasNeighbour(int row, int col) {
+            for (int r = Math.max(0, row - 1); r <= Math.min(size - 1, row + 1); r++) {
+                for (int c = Math.max(0, col - 1); c <= Math.min(size - 1, col + 1); c++) {
+                    if (board.get(r, c) != 0) return true;
+                }
+            }
+            return false;
+        }
+
+        // Оценка позиции для side: все окна длиной winLength, в которых есть знаки только одного игрока
+        private int evaluate(int side) {
+            byte mine = (byte) (side + 1);
+            int score = 0;
+            for (int row = 0; row < size; row++) {
+                for (int col = 0; col < size; col++) {
+                    score += window(row, col, 0, 1, mine) + window(row, col, 1, 0, mine)
+                            + window(row, col, 1, 1, mine) + window(row, col, 1, -1, mine);
+                }
+            }
+            return score;
+        }
+
+        private int window(int row, int col, int dr, int dc, byte mine) {
+            int endRow = row + dr * (winLength - 1);
+            int endCol = col + dc * (winLength - 1);
+            if (endRow >= size || endCol < 0 || endCol >= size) return 0;
+            int own = 0;
+            int other = 0;
+            for (int i = 0; i < winLength; i++) {
+                byte cell = board.get(row + dr * i, col + dc * i);
+                if (cell == mine) own++;
+                else if (cell != 0) other++;
+            }
+            if (own > 0 && other == 0) return weight(own);
+            if (other > 0 && own == 0) return -weight(other);
+            return 0;
+        }
+
+        private int weight(int count) {
+            switch (winLength - count) {
+                case 1: return 100_000;
+                case 2: return 5_000;
+                case 3: return 200;
+                case 4: return 10;
+                default: return 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+// Офлайн-аналитика архива партий (GameArchive): статистика дебютов и процент побед игроков.
+// Сегменты отображаются в память и читаются абсолютными get'ами: на партию не создаётся ни одного
+// объекта, имя становится String только при первой встрече игрока. С --player=<имя> и --since/--until
+// блоки, которые по разреженному индексу не подходят, пропускаются, не читаясь.
+//
+// java ArchiveScanner --archive-dir=archive [--player=<имя>] [--since=2026-10-01] [--until=2026-10-31] [--top=10]
+// Даты - UTC (yyyy-MM-dd) или секунды epoch; --until не включается.
+public class ArchiveScanner {
+    private static final int MAX_SIZE = GameBoard.MAX_SIZE;
+
+    // Итоги для того, кто ходил первым
+    private static final int FIRST_WINS = 0;
+    private static final int FIRST_DRAWS = 1;
+    private static final int FIRST_LOSES = 2;
+
+    private final byte[] player; // фильтр по игроку, null - все партии
+    private final long playerHash;
+    private final long since;
+    private final long until;
+
+    private ByteBuffer buffer; // текущий сегмент
+    private int position;
+
+    private long games;
+    private long bytes;
+    private long blocksSkipped;
+    private final long[] gamesBySize = new long[MAX_SIZE + 1];
+    private final long[] movesBySize = new long[MAX_SIZE + 1];
+    private final long[] endings = new long[4];
+    // [size][cell * 3 + итог для первого]; для 3x3 ещё пары первых двух ходов
+    private final long[][] openings = new long[MAX_SIZE + 1][];
+    private final long[] replies = new long[9 * 9 * 3];
+    private final Players players = new Players();
+
+    private ArchiveScanner(String player, long since, long until) {
+        this.player = player == null ? null : player.getBytes(StandardCharsets.UTF_8);
+        this.playerHash = player == null ? 0 : GameArchive.hash(ByteBuffer.wrap(this.player), 0, this.player.length);
+        this.since = since;
+        this.until = until;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get(TicTacToeServer.option(args, "--archive-dir", "archive"));
+        String player = TicTacToeServer.option(args, "--player", null);
+        long since = time(TicTacToeServer.option(args, "--since", null), Long.MIN_VALUE);
+        long until = time(TicTacToeServer.option(args, "--until", null), Long.MAX_VALUE);
+        int top = TicTacToeServer.intOption(args, "--top", 10);
+        if (!Files.isDirectory(dir)) {
+            System.out.println("No archive at " + dir.toAbsolutePath());
+            return;
+        }
+        ArchiveScanner scanner = new ArchiveScanner(player, since, until);
+        long started = System.nanoTime();
+        for (Path segment : GameArchive.listSegments(dir)) {
+            scanner.scanSegment(segment);
+        }
+        scanner.report(top, System.nanoTime() - started);
+    }
+
+    private static long time(String value, long fallback) {
+        if (value == null) return fallback;
+        if (value.matches("\\d+")) return Long.parseLong(value);
+        return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+    }
+
+    private void scanSegment(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        bytes += buffer.limit();
+        ByteBuffer entries = mapIndex(GameArchive.indexFile(file));
+        int entryCount = entries.limit() / GameArchive.INDEX_ENTRY_BYTES;
+        int tail = 0;
+        boolean filtered = player != null || since != Long.MIN_VALUE || until != Long.MAX_VALUE;
+        for (int e = 0; e < entryCount; e++) {
+            int entry = e * GameArchive.INDEX_ENTRY_BYTES;
+            int offset = entries.getInt(entry + 24);
+            int count = entries.getInt(entry + 28);
+            if (offset != tail || offset >= buffer.limit()) break;
+            position = offset;
+            if (filtered && !blockMatches(entries, entry)) {
+                blocksSkipped++;
+                // Конец блока - начало следующего; у последнего в индексе - пропуск count записей
+                if (e + 1 < entryCount) {
+                    position = entries.getInt(entry + GameArchive.INDEX_ENTRY_BYTES + 24);
+                } else {
+                    int skipped = 0;
+                    while (skipped < count && skipRecord()) skipped++;
+                }
+            } else {
+                int scanned = 0;
+                while (scanned < count && scanRecord()) scanned++;
+            }
+            tail = position;
+        }
+        // Хвост, который сервер ещё не проиндексировал (открытый блок)
+        position = tail;
+        boolean more = true;
+        while (more && position < buffer.limit()) more = scanRecord();
+    }
+
+    private static ByteBuffer mapIndex(Path file) throws IOException {
+        if (!Files.exists(file)) return ByteBuffer.allocate(0);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long usable = channel.size() - channel.size() % GameArchive.INDEX_ENTRY_BYTES;
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, usable);
+        }
+    }
+
+    private boolean blockMatches(ByteBuffer entries, int entry) {
+        long minTime = entries.getLong(entry + 8);
+        long maxTime = entries.getLong(entry + 16);
+        if (maxTime < since || minTime >= until) return false;
+        return player == null || GameArchive.bloomMayContain(entries, entry, playerHash);
+    }
+
+    private boolean skipRecord() {
+        long length = varint();
+        if (length < 0 || position + length > buffer.limit()) return false;
+        position += (int) length;
+        return true;
+    }
+
+    // Одна партия с текущей позиции; false - запись оборвана (конец записанной части)
+    private boolean scanRecord() {
+        long length = varint();
+        if (length < 0 || position + length > buffer.limit()) return false;
+        int end = position + (int) length;
+        varint(); // номер партии
+        long startedAt = varint();
+        varint(); // длительность
+        int size = buffer.get(position++);
+        position++; // win
+        int flags = buffer.get(position++);
+        int nameX = position;
+        position += 1 + (buffer.get(position) & 0xFF);
+        int nameO = position;
+        position += 1 + (buffer.get(position) & 0xFF);
+        if (startedAt < since || startedAt >= until || size < GameBoard.MIN_SIZE || size > MAX_SIZE
+                || (player != null && !isPlayer(nameX) && !isPlayer(nameO))) {
+            position = end;
+            return true;
+        }
+        int moveCount = (int) varint();
+        int first = -1;
+        int second = -1;
+        if (moveCount > 0) first = size == 3 ? buffer.get(position++) : (int) varint();
+        if (moveCount > 1) second = size == 3 ? buffer.get(position++) : (int) varint();
+        position = end;
+
+        games++;
+        gamesBySize[size]++;
+        movesBySize[size] += moveCount;
+        endings[flags >> 2 & 3]++;
+        int outcome = flags & 3;
+        boolean oFirst = (flags & GameArchive.FLAG_O_FIRST) != 0;
+        int forFirst = outcome == GameArchive.OUTCOME_DRAW ? FIRST_DRAWS
+                : (outcome == GameArchive.OUTCOME_O) == oFirst ? FIRST_WINS : FIRST_LOSES;
+        if (first >= 0 && first < size * size) {
+            if (openings[size] == null) openings[size] = new long[size * size * 3];
+            openings[size][first * 3 + forFirst]++;
+            if (size == 3 && second >= 0 && second < 9) replies[(first * 9 + second) * 3 + forFirst]++;
+        }
+        players.record(nameX, outcome == GameArchive.OUTCOME_DRAW ? 1 : outcome == GameArchive.OUTCOME_X ? 0 : 2);
+        players.record(nameO, outcome == GameArchive.OUTCOME_DRAW ? 1 : outcome == GameArchive.OUTCOME_O ? 0 : 2);
+        return true;
+    }
+
+    private boolean isPlayer(int name) {
+        int length = buffer.get(name) & 0xFF;
+        if (length != player.length) return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(name + 1 + i) != player[i]) return false;
+        }
+        return true;
+    }
+
+    private long varint() {
+        long value = 0;
+        for (int shift = 0; shift < 64 && position < buffer.limit(); shift += 7) {
+            int b = buffer.get(position++);
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        return -1;
+    }
+
+    private void report(int top, long nanos) {
+        double seconds = Math.max(1, nanos) / 1e9;
+        System.out.printf("Scanned %d games (%.1f MB) in %.2f s, %.0f games/s; %d blocks skipped by the index%n",
+                games, bytes / 1e6, seconds, games / seconds, blocksSkipped);
+        if (games == 0) return;
+        System.out.printf("Endings: line or full board %d, time %d, opponent left %d%n",
+                endings[GameArchive.END_LINE], endings[GameArchive.END_TIME], endings[GameArchive.END_LEFT]);
+        for (int size = GameBoard.MIN_SIZE; size <= MAX_SIZE; size++) {
+            if (gamesBySize[size] == 0) continue;
+            System.out.printf("%n%dx%d: %d games, %.1f moves on average%n", size, size, gamesBySize[size],
+                    (double) movesBySize[size] / gamesBySize[size]);
+            if (openings[size] == null) continue;
+            System.out.println("  First move    games   first player wins / draws / loses");
+            for (int cell : topCells(openings[size], top)) {
+                printOpening("  " + (cell / size + 1) + " " + (cell % size + 1), openings[size], cell);
+            }
+            if (size != 3) continue;
+            System.out.println("  First two moves");
+            for (int pair : topCells(replies, top)) {
+                printOpening("  " + (pair / 9 / 3 + 1) + " " + (pair / 9 % 3 + 1) + ", "
+                        + (pair % 9 / 3 + 1) + " " + (pair % 9 % 3 + 1), replies, pair);
+            }
+        }
+        System.out.printf("%nPlayers (%d, top %d by games):%n", players.count, top);
+        System.out.println("  Name                  games    wins   draws  losses   win%");
+        for (int slot : players.top(top)) {
+            long total = players.games(slot);
+            System.out.printf("  %-20s %6d  %6d  %6d  %6d  %5.1f%n", players.names[slot], total,
+                    players.results[slot * 3], players.results[slot * 3 + 1], players.results[slot * 3 + 2],
+                    100.0 * players.results[slot * 3] / total);
+        }
+    }
+
+    private static void printOpening(String label, long[] counts, int index) {
+        long wins = counts[index * 3 + FIRST_WINS];
+        long draws = counts[index * 3 + FIRST_DRAWS];
+        long loses = counts[index * 3 + FIRST_LOSES];
+        long total = wins + draws + loses;
+        System.out.printf("%-14s %8d   %5.1f%% / %5.1f%% / %5.1f%%%n", label, total,
+                100.0 * wins / total, 100.0 * draws / total, 100.0 * loses / total);
+    }
+
+    // Индексы с наибольшим числом партий (тройки счётчиков)
+    private static List<Integer> topCells(long[] counts, int top) {
+        List<Integer> cells = new ArrayList<>();
+        for (int i = 0; i < counts.length / 3; i++) {
+            if (counts[i * 3] + counts[i * 3 + 1] + counts[i * 3 + 2] > 0) cells.add(i);
+        }
+        cells.sort((a, b) -> Long.compare(counts[b * 3] + counts[b * 3 + 1] + counts[b * 3 + 2],
+                counts[a * 3] + counts[a * 3 + 1] + counts[a * 3 + 2]));
+        return cells.subList(0, Math.min(top, cells.size()));
+    }
+
+    // Игроки по хешу имени: открытая адресация на массивах, String - только у нового игрока.
+    // Совпадение 64-битных хешей разных имён не проверяется
+    private final class Players {
+        long[] hashes = new long[1024];
+        String[] names = new String[1024];
+        long[] results = new long[1024 * 3]; // победы, ничьи, поражения
+        int count;
+
+        // name - позиция длины имени в буфере; result - 0 победа, 1 ничья, 2 поражение
+        void record(int name, int result) {
+            int length = buffer.get(name) & 0xFF;
+            long hash = GameArchive.hash(buffer, name + 1, length);
+            int slot = (int) (hash ^ hash >>> 32) & (hashes.length - 1);
+            while (names[slot] != null && hashes[slot] != hash) {
+                slot = (slot + 1) & (hashes.length - 1);
+            }
+            if (names[slot] == null) {
+                byte[] bytes = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    bytes[i] = buffer.get(name + 1 + i);
+                }
+                hashes[slot] = hash;
+                names[slot] = new String(bytes, StandardCharsets.UTF_8);
+                if (++count * 2 > hashes.length) {
+                    grow();
+                    record(name, result);
+                    return;
+                }
+            }
+            results[slot * 3 + result]++;
+        }
+
+        long games(int slot) {
+            return results[slot * 3] + results[slot * 3 + 1] + results[slot * 3 + 2];
+        }
+
+        private void grow() {
+            long[] oldHashes = hashes;
+            String[] oldNames = names;
+            long[] oldResults = results;
+            hashes = new long[oldHashes.length * 2];
+            names = new String[oldNames.length * 2];
+            results = new long[oldResults.length * 2];
+            count = 0;
+            for (int i = 0; i < oldNames.length; i++) {
+                if (oldNames[i] == null) continue;
+                int slot = (int) (oldHashes[i] ^ oldHashes[i] >>> 32) & (hashes.length - 1);
+                while (names[slot] != null) {
+                    slot = (slot + 1) & (hashes.length - 1);
+                }
+                hashes[slot] = oldHashes[i];
+                names[slot] = oldNames[i];
+                System.arraycopy(oldResults, i * 3, results, slot * 3, 3);
+                count++;
+            }
+        }
+
+        List<Integer> top(int limit) {
+            List<Integer> slots = new ArrayList<>();
+            for (int i = 0; i < names.length; i++) {
+                if (names[i] != null) slots.add(i);
+            }
+            slots.sort((a, b) -> Long.compare(games(b), games(a)));
+            return slots.subList(0, Math.min(limit, slots.size()));
+        }
+    }
+}
@@ -0,0 +1,204 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Компактный протокол для ботов и нагрузочных клиентов. Включается строкой "PROTO BINARY"
+// сразу после приветствия, дальше обе стороны обмениваются кадрами:
+//   [тип: 1 байт][длина: 2 байта, big-endian][данные]
+// Знаки и клетки поля: 0 - пусто, 1 - X, 2 - O. Строки и столбцы в ходах считаются с 1.
+final class BinaryProtocol {
+    static final int HEADER_SIZE = 3;
+    static final int MAX_PAYLOAD = 4096;
+
+    // Клиент -> сервер
+    static final int LOGIN = 0x01;   // [длина имени][имя][пароль]
+    static final int LIST = 0x02;    // - или [page: 2 байта][префикс имени]
+    static final int CREATE = 0x03;  // [size][win][флаги: 1 - AI, 2 - часы][если часы: минуты, добавка в секундах][длина имени][имя][пароль]
+    static final int JOIN = 0x04;    // [длина имени][имя][пароль]
+    static final int MOVE = 0x05;    // [row][col]
+    static final int REPLAY = 0x06;  // [1 - yes, 0 - no]
+    static final int EXIT = 0x07;    // -
+    static final int BOARD = 0x08;   // -
+    static final int COMMAND = 0x09; // текстовая команда как есть, для всего остального
+    static final int QUICKPLAY = 0x0A; // [1 - искать соперника, 0 - отменить поиск]
+    static final int RESUME = 0x0B;    // [токен сессии или места: 8 байт]
+    static final int WATCH = 0x0C;     // [имя комнаты] - смотреть партию; пусто - перестать
+
+    // Сервер -> клиент
+    static final int TEXT = 0x81;          // строка текстового интерфейса
+    static final int LOGIN_RESULT = 0x82;  // [код LOGIN_*]
+    static final int STATUS = 0x83;        // [код STATUS_*] - результат команды
+    static final int ROOM_LIST = 0x84;     // [1 - есть следующая страница][записи: длина имени, имя, size, win, флаги: 2 - AI, 4 - часы]
+    static final int GAME_START = 0x85;    // [size][win][ваш знак]
+    static final int BOARD_STATE = 0x86;   // [size][size*size клеток]
+    static final int MOVE_MADE = 0x87;     // [знак][row][col]
+    static final int TURN = 0x88;          // [1 - ваш ход][ваш знак]
+    static final int RESULT = 0x89;        // [код RESULT_*]
+    static final int REPLAY_PROMPT = 0x8A; // -
+    static final int SEAT_TOKEN = 0x8B;    // [токен: 8 байт] - для возвращения в партию после рестарта
+    static final int SESSION_TOKEN = 0x8C; // [токен: 8 байт] - для возвращения после обрыва соединения
+    static final int CLOCK = 0x8D;         // [остаток X, мс: 4 байта][остаток O, мс: 4 байта] - в партиях с часами
+    static final int ROUTE = 0x8E;         // [текст] - только сессиям между узлами кластера, см. Cluster
+
+    static final int LOGIN_WELCOME_BACK = 0;
+    static final int LOGIN_REGISTERED = 1;
+    static final int LOGIN_WRONG_PASSWORD = 2;
+    static final int LOGIN_INVALID_USERNAME = 3;
+
+    static final int STATUS_OK = 0;
+    static final int STATUS_ROOM_EXISTS = 1;
+    static final int STATUS_ROOM_NOT_FOUND = 2;
+    static final int STATUS_WRONG_PASSWORD = 3;
+    static final int STATUS_INVALID_MOVE = 4;
+    static final int STATUS_NOT_YOUR_TURN = 5;
+    static final int STATUS_BAD_REQUEST = 6;
+    static final int STATUS_NOT_IN_GAME = 7;
+    static final int STATUS_ROOM_FULL = 8;
+    static final int STATUS_RATE_LIMITED = 9; // команда отклонена лимитом частоты (RateLimiter)
+    static final int STATUS_SHUTTING_DOWN = 10; // сервер останавливается: новые партии не начинаются
+
+    static final int RESULT_WIN = 0;
+    static final int RESULT_LOSE = 1;
+    static final int RESULT_DRAW = 2;
+    static final int RESULT_OPPONENT_LEFT = 3;
+
+    private BinaryProtocol() {
+    }
+
+    static byte[] frame(int type, byte... payload) {
+        byte[] frame = new byte[HEADER_SIZE + payload.length];
+        frame[0] = (byte) type;
+        frame[1] = (byte) (payload.length >>> 8);
+        frame[2] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, HEADER_SIZE, payload.length);
+        return frame;
+    }
+
+    static byte mark(char mark) {
+        return (byte) (mark == 'X' ? 1 : mark == 'O' ? 2 : 0);
+    }
+
+    static byte[] board(GameBoard board) {
+        int size = board.size();
+        byte[] payload = new byte[1 + size * size];
+        payload[0] = (byte) size;
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++) {
+                payload[1 + row * size + col] = mark(board.charAt(row, col));
+            }
+        }
+        return frame(BOARD_STATE, payload);
+    }
+
+    static byte[] text(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return frame(TEXT, bytes.length > MAX_PAYLOAD ? java.util.Arrays.copyOf(bytes, MAX_PAYLOAD) : bytes);
+    }
+
+    static byte[] move(char mark, int row, int col) {
+        return frame(MOVE_MADE, mark(mark), (byte) (row + 1), (byte) (col + 1));
+    }
+
+    // Разбор кадра от клиента; false - кадр некорректен и соединение нужно закрыть
+    static boolean handle(TicTacToeServer.ClientHandler client, int type, byte[] data, int offset, int length) {
+        int end = offset + length;
+        // До входа - только LOGIN, RESUME и COMMAND (текст сам проходит через вход, как в текстовом протоколе)
+        if (!client.isLoggedIn() && type != LOGIN && type != RESUME && type != COMMAND) {
+            client.reply(STATUS_BAD_REQUEST, "Log in first.");
+            return true;
+        }
+        switch (type) {
+            case LOGIN: {
+                if (length < 1 || 1 + (data[offset] & 0xFF) > length) return false;
+                int nameLength = data[offset] & 0xFF;
+                String name = string(data, offset + 1, nameLength);
+                String password = string(data, offset + 1 + nameLength, end - offset - 1 - nameLength);
+                client.login(name, password);
+                return true;
+            }
+            case LIST:
+                if (length == 0) {
+                    client.listRooms(1, "");
+                } else if (length >= 2) {
+                    int page = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+                    client.listRooms(Math.max(1, page), string(data, offset + 2, length - 2));
+                } else {
+                    return false;
+                }
+                return true;
+            case CREATE: {
+                if (length < 4) return false;
+                int size = data[offset] & 0xFF;
+                int winLength = data[offset + 1] & 0xFF;
+                boolean ai = (data[offset + 2] & 1) != 0;
+                boolean clock = (data[offset + 2] & 2) != 0;
+                int minutes = 0;
+                int increment = 0;
+                int at = offset + 3;
+                if (clock) {
+                    if (length < 6) return false;
+                    minutes = data[at] & 0xFF;
+                    increment = data[at + 1] & 0xFF;
+                    at += 2;
+                }
+                int nameLength = data[at] & 0xFF;
+                if (at + 1 + nameLength > end) return false;
+                String name = string(data, at + 1, nameLength);
+                String password = string(data, at + 1 + nameLength, end - at - 1 - nameLength);
+                if (size < GameBoard.MIN_SIZE || size > GameBoard.MAX_SIZE || winLength < 3 || winLength > size
+                        || (clock && (minutes < 1 || minutes > RoomSettings.MAX_CLOCK_MINUTES
+                                || increment > RoomSettings.MAX_INCREMENT_SECONDS))
+                        || name.isEmpty() || password.isEmpty()) {
+                    client.reply(STATUS_BAD_REQUEST, "Invalid room settings.");
+                } else {
+                    client.createAndJoinRoom(name, password, new RoomSettings(size, winLength, ai, minutes * 60, increment));
+                }
+                return true;
+            }
+            case JOIN: {
+                if (length < 1 || 1 + (data[offset] & 0xFF) > length) return false;
+                int nameLength = data[offset] & 0xFF;
+                client.joinRoom(string(data, offset + 1, nameLength),
+                        string(data, offset + 1 + nameLength, end - offset - 1 - nameLength));
+                return true;
+            }
+            case MOVE:
+                if (length != 2) return false;
+                client.makeMove(data[offset] & 0xFF, data[offset + 1] & 0xFF);
+                return true;
+            case REPLAY:
+                if (length != 1) return false;
+                client.answerReplay(data[offset] != 0);
+                return true;
+            case EXIT:
+                client.exit();
+                return true;
+            case BOARD:
+                client.showBoard();
+                return true;
+            case QUICKPLAY:
+                if (length != 1) return false;
+                client.quickplay(data[offset] != 0);
+                return true;
+            case RESUME:
+                if (length != 8) return false;
+                client.resume(Long.toHexString(ByteBuffer.wrap(data, offset, 8).getLong()));
+                return true;
+            case WATCH:
+                if (length == 0) {
+                    client.unwatch();
+                } else {
+                    client.watch(string(data, offset, length));
+                }
+                return true;
+            case COMMAND:
+                client.onLine(string(data, offset, length));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String string(byte[] data, int offset, int length) {
+        return new String(data, offset, length, StandardCharsets.UTF_8);
+    }
+}
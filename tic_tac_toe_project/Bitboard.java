@@ -0,0 +1,76 @@
+// Компактное состояние поля 3x3: биты 0-8 - клетки X, биты 9-17 - клетки O.
+// Значение - обычный int, поэтому неизменяемо, потокобезопасно и копируется без аллокаций.
+// Клетка с номером cell = row * 3 + col (строки и столбцы с нуля).
+final class Bitboard {
+    static final int EMPTY = 0;
+    static final int CELLS = 9;
+    static final int FULL = 0x1FF;
+
+    // Три строки, три столбца и две диагонали
+    static final int[] WIN_MASKS = {
+            0b000_000_111, 0b000_111_000, 0b111_000_000,
+            0b001_001_001, 0b010_010_010, 0b100_100_100,
+            0b100_010_001, 0b001_010_100
+    };
+
+    // Таблица на все 512 расстановок одного игрока: бит выставлен, если расстановка содержит линию
+    private static final long[] WINNING = new long[8];
+
+    static {
+        for (int marks = 0; marks <= FULL; marks++) {
+            for (int line : WIN_MASKS) {
+                if ((marks & line) == line) {
+                    WINNING[marks >>> 6] |= 1L << (marks & 63);
+                    break;
+                }
+            }
+        }
+    }
+
+    private Bitboard() {
+    }
+
+    static int cell(int row, int col) {
+        return row * 3 + col;
+    }
+
+    // player: 0 - X, 1 - O
+    static int marks(int board, int player) {
+        return (board >>> (player * CELLS)) & FULL;
+    }
+
+    static int occupied(int board) {
+        return (board | (board >>> CELLS)) & FULL;
+    }
+
+    static boolean isFree(int board, int cell) {
+        return (occupied(board) & (1 << cell)) == 0;
+    }
+
+    static int place(int board, int cell, int player) {
+        return board | (1 << (cell + player * CELLS));
+    }
+
+    static boolean isWinningMarks(int marks) {
+        return (WINNING[marks >>> 6] & (1L << (marks & 63))) != 0;
+    }
+
+    static boolean hasWon(int board, int player) {
+        return isWinningMarks(marks(board, player));
+    }
+
+    static boolean isFull(int board) {
+        return occupied(board) == FULL;
+    }
+
+    static int moveCount(int board) {
+        return Integer.bitCount(board);
+    }
+
+    static char charAt(int board, int cell) {
+        int bit = 1 << cell;
+        if ((board & bit) != 0) return 'X';
+        if (((board >>> CELLS) & bit) != 0) return 'O';
+        return ' ';
+    }
+}
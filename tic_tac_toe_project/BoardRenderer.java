@@ -0,0 +1,81 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Готовые байты для отправки поля. Каждое состояние 3x3 рендерится один раз на весь сервер
+// и дальше отдаётся всем получателям одним и тем же массивом; большие поля рендерит
+// GameHandler один раз на ход.
+final class BoardRenderer {
+    // Индекс - состояние Bitboard (18 бит). Массивы после публикации не меняются.
+    private static final AtomicReferenceArray<byte[]> CLASSIC = new AtomicReferenceArray<>(1 << 18);
+    // То же для кадров BinaryProtocol.BOARD_STATE
+    private static final AtomicReferenceArray<byte[]> CLASSIC_FRAMES = new AtomicReferenceArray<>(1 << 18);
+
+    private BoardRenderer() {
+    }
+
+    static byte[] render(GameBoard board) {
+        if (board instanceof SmallBoard) {
+            int bits = ((SmallBoard) board).bits();
+            byte[] cached = CLASSIC.get(bits);
+            if (cached == null) {
+                cached = encode(renderText(board));
+                CLASSIC.lazySet(bits, cached);
+            }
+            return cached;
+        }
+        return encode(renderText(board));
+    }
+
+    static byte[] renderFrame(GameBoard board) {
+        if (board instanceof SmallBoard) {
+            int bits = ((SmallBoard) board).bits();
+            byte[] cached = CLASSIC_FRAMES.get(bits);
+            if (cached == null) {
+                cached = BinaryProtocol.board(board);
+                CLASSIC_FRAMES.lazySet(bits, cached);
+            }
+            return cached;
+        }
+        return BinaryProtocol.board(board);
+    }
+
+    // Компактная строка для клиентов в режиме DELTA: "MOVE X 2 3"
+    static byte[] renderMove(char mark, int row, int col) {
+        return encode("MOVE " + mark + " " + (row + 1) + " " + (col + 1));
+    }
+
+    static byte[] encode(String line) {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String renderText(GameBoard board) {
+        int size = board.size();
+        int labelWidth = String.valueOf(size).length();
+        StringBuilder sb = new StringBuilder();
+        sb.append("Current board:\n");
+        sb.append(" ".repeat(labelWidth + 2));
+        for (int j = 0; j < size; j++) {
+            String label = String.valueOf(j + 1);
+            sb.append(label);
+            if (j < size - 1) sb.append(" ".repeat(4 - label.length()));
+        }
+        sb.append("\n");
+        for (int i = 0; i < size; i++) {
+            String label = String.valueOf(i + 1);
+            sb.append(" ".repeat(labelWidth - label.length())).append(label).append(" ");
+            for (int j = 0; j < size; j++) {
+                sb.append(" ").append(board.charAt(i, j)).append(" ");
+                if (j < size - 1) sb.append("|");
+            }
+            sb.append("\n");
+            if (i < size - 1) {
+                sb.append(" ".repeat(labelWidth + 1)).append("---");
+                for (int j = 1; j < size; j++) {
+                    sb.append("+---");
+                }
+                sb.append("\n");
+            }
+        }
+        return sb.toString();
+    }
+}
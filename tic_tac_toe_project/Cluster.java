@@ -0,0 +1,820 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Несколько серверов в одном кластере (--cluster-port). Каждое имя комнаты принадлежит одному узлу:
+// тому, у кого наибольший хеш пары (узел, имя) среди живых узлов (rendezvous hashing). Когда узел
+// входит в кластер или уходит, владельца меняют только имена, которые достаются ему или были его.
+//
+// Узлы связаны служебными соединениями на --cluster-port: HELLO со списком известных узлов
+// при подключении и раз в секунду (так новый узел, знающий хотя бы один из --peers, находит
+// остальных, даже если они подключились одновременно), раз в секунду ROOMS -
+// комнаты узла, которые ждут игрока (из них собирается общий LIST; заодно это heartbeat), и BYE
+// при остановке. Связь, по которой ничего не пришло LINK_TIMEOUT_MS, считается оборванной.
+//
+// Игрок всегда подключён к своему узлу. Если комната из JOIN, CREATE или WATCH живёт на другом узле,
+// его узел открывает туда отдельное соединение на обычный порт игроков (Route), входит строкой
+// CLUSTER <секрет> <имя> <binary> <delta> и дальше пересылает туда команды игрока как есть,
+// а игроку - ответы. Узел комнаты обслуживает такую сессию как обычного клиента (шарды, лимиты,
+// журнал), а когда игрок вышел из комнаты, отпускает её управляющим сообщением END: дальше
+// команды снова выполняет узел игрока. Управляющие сообщения узла комнаты - строка, начинающаяся
+// с нулевого байта, или кадр BinaryProtocol.ROUTE: READY, END, CLOSE (игрок вышел из игры)
+// и MOVE <узел> <команда> (комната переехала, повторить команду там).
+final class Cluster {
+    static final String HANDSHAKE = "CLUSTER";
+    static final int MAX_HANDOVERS_PER_PASS = 1000;
+
+    private static final int HELLO = 1;
+    private static final int ROOMS = 2;
+    private static final int BYE = 3;
+    private static final long PASS_INTERVAL_MS = 1000;
+    private static final int LINK_TIMEOUT_MS = 5000;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final long LEAVE_FLUSH_MS = 300;
+    // Узел участвует в разбиении имён, когда провисел в кластере столько: пока списки узлов
+    // расходятся, комнаты не гоняются туда и обратно
+    private static final long SETTLE_MS = 2000;
+    private static final int MAX_ADVERTISED = 10_000; // комнат в одном ROOMS
+    private static final int MAX_CONTROL_LENGTH = 8192;
+    // Ввод игрока, который узел комнаты не успевает принять: больше этого - или запись стоит
+    // дольше этого - и Route закрывается, как Outbound отключает клиента, который не читает
+    private static final int MAX_FORWARD_BYTES = 256 * 1024;
+    private static final long FORWARD_TIMEOUT_MS = 5000;
+
+    private static final LongAdder ROUTED = Metrics.counter("cluster.routed_sessions");
+    static final LongAdder HANDED_OVER = Metrics.counter("cluster.rooms_moved");
+    private static final AtomicInteger ROUTES_ACTIVE = new AtomicInteger();
+
+    // Узел кластера: id - адрес служебного порта, игроков он принимает на clientPort
+    static final class Node {
+        final String id;
+        final String host;
+        final int clusterPort;
+        final int clientPort;
+        private final long seed; // хеш id для rendezvous hashing
+
+        Node(String host, int clusterPort, int clientPort) {
+            this.id = host + ":" + clusterPort;
+            this.host = host;
+            this.clusterPort = clusterPort;
+            this.clientPort = clientPort;
+            this.seed = hash(id);
+        }
+    }
+
+    // Комната другого узла, которая ждёт игрока: строка общего LIST
+    static final class RemoteRoom implements RoomRegistry.Listing {
+        private final String name;
+        private final RoomSettings settings;
+        final Node node;
+
+        RemoteRoom(String name, RoomSettings settings, Node node) {
+            this.name = name;
+            this.settings = settings;
+            this.node = node;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public RoomSettings getSettings() {
+            return settings;
+        }
+    }
+
+    private final class Member {
+        final Node node;
+        final long joinedAt = System.nanoTime();
+        final Set<Link> links = ConcurrentHashMap.newKeySet(); // обе стороны могли набрать друг друга
+        volatile Map<String, RemoteRoom> rooms = Collections.emptyMap();
+        volatile int totalRooms;
+
+        Member(Node node) {
+            this.node = node;
+        }
+
+        boolean isSettled(long now) {
+            return now - joinedAt >= TimeUnit.MILLISECONDS.toNanos(SETTLE_MS);
+        }
+
+        void send(byte[] message) {
+            Iterator<Link> it = links.iterator();
+            if (it.hasNext()) it.next().send(message);
+        }
+
+        // Новый снимок ROOMS: из общего списка уходят комнаты, которых в нём больше нет
+        void replaceRooms(Map<String, RemoteRoom> fresh, int total) {
+            Map<String, RemoteRoom> old = rooms;
+            rooms = fresh;
+            totalRooms = total;
+            for (RemoteRoom room : old.values()) {
+                if (!fresh.containsKey(room.name)) directory.remove(room.name, room);
+            }
+            directory.putAll(fresh);
+        }
+    }
+
+    private final Node self;
+    private final String secret;
+    private final RoomRegistry rooms;
+    private final Executor executor;
+    private final Runnable rebalancer;
+    private final Map<String, Member> members = new ConcurrentHashMap<>();
+    // Адреса служебных портов, которые нужно набирать: --peers и узлы, о которых рассказали другие
+    private final Set<String> known = ConcurrentHashMap.newKeySet();
+    private final Set<String> dialing = ConcurrentHashMap.newKeySet();
+    private final Map<String, String> aliases = new ConcurrentHashMap<>(); // адрес из --peers -> id узла
+    private final ConcurrentSkipListMap<String, RemoteRoom> directory = new ConcurrentSkipListMap<>();
+    private volatile boolean leaving;
+
+    private Cluster(Node self, String secret, RoomRegistry rooms, Executor executor, Runnable rebalancer) {
+        this.self = self;
+        this.secret = secret;
+        this.rooms = rooms;
+        this.executor = executor;
+        this.rebalancer = rebalancer;
+    }
+
+    // Одиночный сервер: все комнаты свои
+    static Cluster disabled() {
+        return new Cluster(null, "", null, null, null);
+    }
+
+    // --cluster-port=<порт> --cluster-secret=<секрет> [--cluster-host=<адрес для других узлов>]
+    // [--peers=<host:port,...>]; без --cluster-port кластер выключен
+    static Cluster start(String[] args, int clientPort, RoomRegistry rooms, Executor executor,
+                         Runnable rebalancer) throws IOException {
+        int clusterPort = TicTacToeServer.intOption(args, "--cluster-port", 0);
+        if (clusterPort == 0) return disabled();
+        String secret = TicTacToeServer.option(args, "--cluster-secret", "");
+        if (!secret.matches("\\S+")) {
+            // Секрет заменяет пароль игрока в сессиях между узлами: без него войти мог бы кто угодно
+            throw new IllegalArgumentException("--cluster-port requires --cluster-secret=<secret without spaces>");
+        }
+        String host = TicTacToeServer.option(args, "--cluster-host", "127.0.0.1");
+        Cluster cluster = new Cluster(new Node(host, clusterPort, clientPort), secret, rooms, executor, rebalancer);
+        for (String peer : TicTacToeServer.option(args, "--peers", "").split(",")) {
+            if (!peer.trim().isEmpty()) cluster.known.add(peer.trim());
+        }
+
+        ServerSocket server = new ServerSocket(clusterPort);
+        Thread acceptor = new Thread(() -> cluster.acceptLinks(server), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cluster");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(cluster::pass, 0, PASS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        Metrics.gauge("cluster.nodes", () -> cluster.members.size() + 1);
+        Metrics.gauge("cluster.remote_rooms", cluster.directory::size);
+        Metrics.gauge("cluster.routes", ROUTES_ACTIVE::get);
+        Log.info("Cluster node {} (players on port {}), peers: {}", cluster.self.id, clientPort, cluster.known);
+        return cluster;
+    }
+
+    boolean isEnabled() {
+        return self != null;
+    }
+
+    // Сравнение без раннего выхода: по времени ответа секрет не подобрать
+    boolean acceptsSecret(String candidate) {
+        return isEnabled() && MessageDigest.isEqual(candidate.getBytes(StandardCharsets.UTF_8),
+                secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Другой узел, которому принадлежит имя комнаты; null - этот узел (или кластера нет)
+    Node ownerOf(String room) {
+        if (!isEnabled()) return null;
+        long key = hash(room);
+        long now = System.nanoTime();
+        Node best = leaving ? null : self;
+        long bestScore = leaving ? 0 : mix(self.seed ^ key);
+        for (Member member : members.values()) {
+            if (!member.isSettled(now)) continue;
+            long score = mix(member.node.seed ^ key);
+            if (best == null || Long.compareUnsigned(score, bestScore) > 0) {
+                best = member.node;
+                bestScore = score;
+            }
+        }
+        return best == self ? null : best;
+    }
+
+    // Узел, в LIST которого сейчас есть комната с таким именем; null - нет такого
+    Node listing(String room) {
+        if (!isEnabled()) return null;
+        RemoteRoom remote = directory.get(room);
+        return remote != null && members.containsKey(remote.node.id) ? remote.node : null;
+    }
+
+    // Где искать существующую комнату: узел, где она ждёт игрока, иначе владелец имени
+    Node locate(String room) {
+        Node listed = listing(room);
+        return listed != null ? listed : ownerOf(room);
+    }
+
+    Node node(String id) {
+        Member member = members.get(id);
+        return member == null ? null : member.node;
+    }
+
+    // Комнаты других узлов для общего LIST, по имени
+    NavigableMap<String, RemoteRoom> directory() {
+        return directory;
+    }
+
+    int remoteRoomCount() {
+        int total = 0;
+        for (Member member : members.values()) {
+            total += member.totalRooms;
+        }
+        return total;
+    }
+
+    // Дальше команды игрока выполняет узел node; command - первая из них (JOIN, CREATE, WATCH)
+    void route(TicTacToeServer.ClientHandler player, Node node, String command) {
+        Route route = new Route(player, node, command);
+        player.routeTo(route);
+        ROUTED.increment();
+        executor.execute(route);
+    }
+
+    // Управляющее сообщение узла комнаты узлу игрока в протоколе сессии
+    static byte[] control(String text, boolean binary) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (binary) return BinaryProtocol.frame(BinaryProtocol.ROUTE, bytes);
+        byte[] line = new byte[bytes.length + 2];
+        System.arraycopy(bytes, 0, line, 1, bytes.length);
+        line[line.length - 1] = '\n';
+        return line;
+    }
+
+    // Остановка узла (первый шаг TicTacToeServer.shutdown): остальные сразу узнают об уходе, а комнаты,
+    // которые ждут игрока с другого узла, переезжают к новым владельцам (игрокам этого узла переезжать уже некуда)
+    void leave() {
+        if (!isEnabled() || leaving) return;
+        leaving = true;
+        try {
+            boolean waiting = rooms.joinableCount() > 0;
+            // Новые владельцы выбраны сразу, сама передача идёт на шардах комнат. BYE уходит раньше,
+            // чем переехавшая комната доберётся до нового владельца: иначе тот, ещё считая этот узел
+            // живым, вернул бы её сюда
+            rebalancer.run();
+            byte[] bye = {BYE};
+            for (Member member : members.values()) {
+                member.send(bye);
+            }
+            if (waiting) {
+                // MOVE идут через очереди соединений: даём их дописать, пока JVM не завершилась
+                Thread.sleep(LEAVE_FLUSH_MS);
+            }
+            Log.info("Node {} left the cluster.", self.id);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            Log.info("Cluster leave failed: {}", e);
+        }
+    }
+
+    // Раз в PASS_INTERVAL_MS: набрать узлы, с которыми нет связи, разослать свои комнаты,
+    // переселить комнаты, чьи имена теперь принадлежат другим узлам
+    private void pass() {
+        try {
+            for (String address : known) {
+                String id = aliases.getOrDefault(address, address);
+                if (id.equals(self.id) || members.containsKey(id) || !dialing.add(address)) continue;
+                executor.execute(() -> dial(address));
+            }
+            byte[] hello = encodeHello();
+            byte[] snapshot = encodeRooms();
+            for (Member member : members.values()) {
+                member.send(hello);
+                member.send(snapshot);
+            }
+            if (!leaving && !members.isEmpty()) {
+                rebalancer.run();
+            }
+        } catch (RuntimeException e) {
+            // Исключение остановило бы scheduleWithFixedDelay насовсем
+            Log.info("Cluster pass failed: {}", e);
+        } finally {
+            Outbound.flushDirty();
+        }
+    }
+
+    // Секрет, свой адрес и узлы, с которыми есть связь
+    private byte[] encodeHello() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(HELLO);
+            out.writeUTF(secret);
+            out.writeUTF(self.host);
+            out.writeInt(self.clusterPort);
+            out.writeInt(self.clientPort);
+            List<String> peers = new ArrayList<>(members.keySet());
+            out.writeShort(peers.size());
+            for (String peer : peers) {
+                out.writeUTF(peer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream не бросает
+        }
+        return bytes.toByteArray();
+    }
+
+    private byte[] encodeRooms() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            List<TicTacToeServer.Room> open = new ArrayList<>();
+            for (TicTacToeServer.Room room : rooms.joinableRooms()) {
+                if (open.size() == MAX_ADVERTISED) break;
+                open.add(room);
+            }
+            out.writeByte(ROOMS);
+            out.writeInt(rooms.size());
+            out.writeInt(open.size());
+            for (TicTacToeServer.Room room : open) {
+                RoomSettings settings = room.getSettings();
+                out.writeUTF(room.getName());
+                out.writeByte(settings.size);
+                out.writeByte(settings.winLength);
+                out.writeBoolean(settings.ai);
+                out.writeInt(settings.clockSeconds);
+                out.writeInt(settings.incrementSeconds);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream не бросает
+        }
+        return bytes.toByteArray();
+    }
+
+    private void acceptLinks(ServerSocket server) {
+        while (true) {
+            try {
+                Socket socket = server.accept();
+                executor.execute(() -> {
+                    try {
+                        Link link = new Link(socket);
+                        Node node = link.readHello();
+                        link.writeHello();
+                        link.run(node);
+                    } catch (IOException e) {
+                        Log.info("Cluster link from {} failed: {}", socket.getRemoteSocketAddress(), e.getMessage());
+                        closeQuietly(socket);
+                    }
+                });
+            } catch (IOException e) {
+                Log.info("Cluster accept failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void dial(String address) {
+        Socket socket = new Socket();
+        try {
+            int colon = address.lastIndexOf(':');
+            socket.connect(new InetSocketAddress(address.substring(0, colon),
+                    Integer.parseInt(address.substring(colon + 1))), CONNECT_TIMEOUT_MS);
+            Link link = new Link(socket);
+            link.writeHello();
+            Node node = link.readHello();
+            aliases.put(address, node.id);
+            link.run(node);
+        } catch (IOException | RuntimeException e) {
+            // Узел ещё не запущен или уже ушёл: попробуем на следующем проходе
+            closeQuietly(socket);
+        } finally {
+            dialing.remove(address);
+        }
+    }
+
+    private void attach(Node node, Link link) {
+        boolean[] joined = new boolean[1];
+        members.compute(node.id, (id, member) -> {
+            if (member == null) {
+                member = new Member(node);
+                joined[0] = true;
+            }
+            member.links.add(link);
+            return member;
+        });
+        if (joined[0]) Log.info("Node {} joined the cluster ({} nodes).", node.id, members.size() + 1);
+    }
+
+    private void detach(Node node, Link link) {
+        Member[] gone = new Member[1];
+        members.computeIfPresent(node.id, (id, member) -> {
+            member.links.remove(link);
+            if (!member.links.isEmpty()) return member;
+            gone[0] = member;
+            return null;
+        });
+        if (gone[0] != null) {
+            gone[0].replaceRooms(Collections.emptyMap(), 0);
+            Log.info("Node {} left the cluster ({} nodes).", node.id, members.size() + 1);
+        }
+    }
+
+    // Одно служебное соединение; читает его отдельный поток, пишут под монитором out
+    private final class Link {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        Link(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setSoTimeout(LINK_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        void writeHello() throws IOException {
+            byte[] hello = encodeHello();
+            synchronized (out) {
+                out.write(hello);
+                out.flush();
+            }
+        }
+
+        Node readHello() throws IOException {
+            if (in.readUnsignedByte() != HELLO) throw new IOException("expected HELLO");
+            return readHelloBody();
+        }
+
+        // Повторный HELLO по живой связи приносит узлы, о которых сосед узнал позже нас
+        private Node readHelloBody() throws IOException {
+            if (!acceptsSecret(in.readUTF())) throw new IOException("wrong cluster secret");
+            Node node = new Node(in.readUTF(), in.readInt(), in.readInt());
+            int peers = in.readUnsignedShort();
+            for (int i = 0; i < peers; i++) {
+                known.add(in.readUTF());
+            }
+            if (node.id.equals(self.id)) throw new IOException("connected to itself");
+            return node;
+        }
+
+        void send(byte[] message) {
+            try {
+                synchronized (out) {
+                    out.write(message);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Ошибку увидит поток чтения
+                closeQuietly(socket);
+            }
+        }
+
+        void run(Node node) {
+            attach(node, this);
+            try {
+                while (true) {
+                    int type = in.readUnsignedByte();
+                    if (type == BYE) break;
+                    if (type == ROOMS) {
+                        readRooms(node);
+                    } else if (type == HELLO) {
+                        readHelloBody();
+                    } else {
+                        throw new IOException("unknown message " + type);
+                    }
+                }
+            } catch (IOException e) {
+                Log.info("Cluster link to {} closed: {}", node.id, e.getMessage());
+            } finally {
+                closeQuietly(socket);
+                detach(node, this);
+            }
+        }
+
+        private void readRooms(Node node) throws IOException {
+            int total = in.readInt();
+            int count = in.readInt();
+            Map<String, RemoteRoom> fresh = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                int size = in.readUnsignedByte();
+                int winLength = in.readUnsignedByte();
+                boolean ai = in.readBoolean();
+                int clockSeconds = in.readInt();
+                int incrementSeconds = in.readInt();
+                RoomSettings settings = size == 3 && winLength == 3 && !ai && clockSeconds == 0
+                        ? RoomSettings.CLASSIC
+                        : new RoomSettings(size, winLength, ai, clockSeconds, incrementSeconds);
+                fresh.put(name, new RemoteRoom(name, settings, node));
+            }
+            Member member = members.get(node.id);
+            if (member != null) member.replaceRooms(fresh, total);
+        }
+    }
+
+    // Сессия игрока этого узла на узле комнаты. Ввод игрока (строки или кадры целиком) поток игрока
+    // только ставит в очередь, в сокет её пишет задача на executor; поток Route читает ответы,
+    // вырезает управляющие сообщения и отдаёт остальное игроку
+    final class Route implements Runnable {
+        private final TicTacToeServer.ClientHandler player;
+        final Node node;
+        private final String command;
+        private final boolean binary;
+        private final Socket socket = new Socket();
+        private OutputStream out; // под this; null - ещё подключаемся
+        // Ввод игрока для узла комнаты, под this. Пишет его задача на executor (или поток Route
+        // после подключения), а не поток игрока: медленный узел не должен останавливать его loop
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private boolean writing; // под this: запись уже идёт
+        private long writeStarted; // под this, nanoTime начала текущей записи
+        private boolean closed;
+
+        // Разбор ответов: до READY идёт приветствие узла, оно игроку не нужно
+        private boolean ready;
+        private boolean finished;
+        private boolean midLine;
+        private ByteArrayOutputStream controlText; // не null - читаем управляющую строку
+        private final byte[] frame = new byte[BinaryProtocol.HEADER_SIZE + BinaryProtocol.MAX_PAYLOAD];
+        private int frameLength;
+        private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+
+        Route(TicTacToeServer.ClientHandler player, Node node, String command) {
+            this.player = player;
+            this.node = node;
+            this.command = command;
+            this.binary = player.isBinaryProtocol();
+        }
+
+        void forwardLine(byte[] line, int offset, int length) {
+            byte[] data = Arrays.copyOfRange(line, offset, offset + length + 1);
+            data[length] = '\n';
+            forward(data, 0, data.length);
+        }
+
+        synchronized void forward(byte[] data, int offset, int length) {
+            if (closed) return;
+            if (pending.size() + length > MAX_FORWARD_BYTES
+                    || writing && System.nanoTime() - writeStarted > TimeUnit.MILLISECONDS.toNanos(FORWARD_TIMEOUT_MS)) {
+                Log.info("Node {} does not accept input of {}, closing the route", node.id, player.getUsername());
+                close();
+                return;
+            }
+            pending.write(data, offset, length);
+            if (out != null && !writing) {
+                writing = true;
+                writeStarted = System.nanoTime();
+                executor.execute(this::drain);
+            }
+        }
+
+        // Отправляет накопленный ввод, пока он есть; вызывается при writing == true
+        private void drain() {
+            while (true) {
+                byte[] chunk;
+                OutputStream stream;
+                synchronized (this) {
+                    if (closed || pending.size() == 0) {
+                        writing = false;
+                        return;
+                    }
+                    chunk = pending.toByteArray();
+                    pending.reset();
+                    writeStarted = System.nanoTime();
+                    stream = out;
+                }
+                try {
+                    stream.write(chunk);
+                    stream.flush();
+                } catch (IOException e) {
+                    // Обрыв увидит поток чтения
+                    close();
+                    return;
+                }
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            closeQuietly(socket);
+        }
+
+        @Override
+        public void run() {
+            ROUTES_ACTIVE.incrementAndGet();
+            boolean connected = false;
+            try {
+                socket.connect(new InetSocketAddress(node.host, node.clientPort), CONNECT_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                connected = true;
+                ByteArrayOutputStream hello = new ByteArrayOutputStream();
+                hello.write((HANDSHAKE + " " + secret + " " + player.getUsername() + " " + (binary ? 1 : 0) + " "
+                        + (player.isDeltaMode() ? 1 : 0) + "\n").getBytes(StandardCharsets.UTF_8));
+                byte[] first = command.getBytes(StandardCharsets.UTF_8);
+                hello.write(binary ? BinaryProtocol.frame(BinaryProtocol.COMMAND, first) : (command + "\n").getBytes(StandardCharsets.UTF_8));
+                OutputStream stream = socket.getOutputStream();
+                synchronized (this) {
+                    if (closed) return;
+                    pending.writeTo(hello);
+                    pending.reset();
+                    out = stream;
+                    writing = true;
+                    writeStarted = System.nanoTime();
+                }
+                stream.write(hello.toByteArray());
+                stream.flush();
+                // Ввод, пришедший во время записи приветствия
+                drain();
+                Log.info("{} routed to node {}: {}", player.getUsername(), node.id, command.split(" ", 2)[0]);
+                pump(socket.getInputStream());
+            } catch (IOException e) {
+                // Узел недоступен или ушёл посреди партии
+            } finally {
+                ROUTES_ACTIVE.decrementAndGet();
+                close();
+                if (!finished) {
+                    player.unroute(this, connected ? "Lost connection to node " + node.id + "." : "Node " + node.id + " is unavailable, try again.");
+                }
+                Outbound.flushDirty();
+            }
+        }
+
+        private void pump(InputStream in) throws IOException {
+            byte[] buffer = new byte[8192];
+            int n;
+            while (!finished && (n = in.read(buffer)) > 0) {
+                int i = 0;
+                while (i < n && !finished) {
+                    i = binary && ready ? frames(buffer, i, n) : text(buffer, i, n);
+                }
+                deliver();
+                Outbound.flushDirty();
+            }
+        }
+
+        // Строки пересылаются как есть, в том числе без '\n' в конце (подсказки);
+        // строка, которая начинается с нулевого байта, - управляющая
+        private int text(byte[] data, int i, int end) throws IOException {
+            int run = i;
+            while (i < end) {
+                byte b = data[i];
+                if (controlText != null) {
+                    i++;
+                    if (b != '\n') {
+                        if (controlText.size() == MAX_CONTROL_LENGTH) throw new IOException("control message too long");
+                        controlText.write(b);
+                        continue;
+                    }
+                    String text = controlText.toString("UTF-8");
+                    controlText = null;
+                    control(text);
+                    // После READY у клиента BinaryProtocol дальше идут кадры
+                    if (finished || (binary && ready)) return i;
+                    run = i;
+                    continue;
+                }
+                if (!midLine && b == 0) {
+                    if (ready) batch.write(data, run, i - run);
+                    controlText = new ByteArrayOutputStream();
+                    i++;
+                    run = i;
+                    continue;
+                }
+                midLine = b != '\n';
+                i++;
+            }
+            if (ready && controlText == null) batch.write(data, run, i - run);
+            return i;
+        }
+
+        private int frames(byte[] data, int i, int end) throws IOException {
+            while (i < end) {
+                // Дочитываем заголовок, затем данные кадра, как InputFramer
+                int needed = frameLength < BinaryProtocol.HEADER_SIZE
+                        ? BinaryProtocol.HEADER_SIZE
+                        : BinaryProtocol.HEADER_SIZE + payloadLength();
+                int take = Math.min(needed - frameLength, end - i);
+                System.arraycopy(data, i, frame, frameLength, take);
+                frameLength += take;
+                i += take;
+                if (frameLength < needed) break;
+                if (needed == BinaryProtocol.HEADER_SIZE && payloadLength() > 0) {
+                    if (payloadLength() > BinaryProtocol.MAX_PAYLOAD) throw new IOException("frame too large");
+                    continue;
+                }
+                frameLength = 0;
+                if ((frame[0] & 0xFF) == BinaryProtocol.ROUTE) {
+                    control(new String(frame, BinaryProtocol.HEADER_SIZE, needed - BinaryProtocol.HEADER_SIZE, StandardCharsets.UTF_8));
+                    if (finished) return i;
+                } else {
+                    batch.write(frame, 0, needed);
+                }
+            }
+            return i;
+        }
+
+        private int payloadLength() {
+            return ((frame[1] & 0xFF) << 8) | (frame[2] & 0xFF);
+        }
+
+        private void deliver() {
+            if (batch.size() == 0) return;
+            player.send(batch.toByteArray());
+            batch.reset();
+        }
+
+        private void control(String text) {
+            if (text.equals("READY")) {
+                ready = true;
+                return;
+            }
+            finished = true;
+            close();
+            if (text.equals("CLOSE")) {
+                deliver();
+                player.closeRouted(this);
+                return;
+            }
+            // Сначала снимаем маршрут, потом отдаём последний ответ узла: команда, которую игрок
+            // пришлёт в ответ на него, должна выполниться уже здесь
+            boolean current = player.unroute(this, null);
+            deliver();
+            if (text.startsWith("MOVE ") && current) {
+                // Комната переехала: та же команда на новом владельце
+                String[] parts = text.split(" ", 3);
+                Node target = parts.length < 3 ? null : parts[1].equals(self.id) ? self : node(parts[1]);
+                if (target == null) {
+                    player.routeLost("Room moved to a node that is not available.");
+                } else {
+                    player.notice("Room moved to node " + target.id + ".");
+                    // Новый владелец - узел самого игрока: команда выполняется здесь
+                    if (target == self) {
+                        player.runCommand(parts[2]);
+                    } else {
+                        route(player, target, parts[2]);
+                    }
+                }
+            }
+        }
+    }
+
+    // Хеш строки для разбиения имён: FNV-1a по символам
+    private static long hash(String text) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            h ^= text.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // Перемешивание из MurmurHash3: у близких имён и узлов оценки не коррелируют
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Уже закрыт
+        }
+    }
+}
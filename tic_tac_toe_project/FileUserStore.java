@@ -0,0 +1,217 @@
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Пользователи в памяти плюс файл, в который новые записи только дописываются:
+//   <username> <iterations> <salt base64> <hash base64>
+// Пароль хранится как PBKDF2 с собственной солью. Хеширование идёт до любых блокировок,
+// под блокировкой только дописывание строки в файл.
+// При тёплом рестарте записи приходят из снимка (Snapshot) в двоичном виде без разбора Base64,
+// если файл с тех пор не менялся.
+class FileUserStore implements UserStore {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Map<String, Record> records = new ConcurrentHashMap<>();
+    private final LoginCache cache;
+    private final int iterations;
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final FileChannel log; // null - только в памяти
+
+    FileUserStore(Path file, int iterations, int cacheSize) throws IOException {
+        this(file, iterations, cacheSize, null);
+    }
+
+    // snapshot - секция пользователей из Snapshot (null - нет снимка)
+    FileUserStore(Path file, int iterations, int cacheSize, byte[] snapshot) throws IOException {
+        this.iterations = iterations;
+        this.cache = new LoginCache(cacheSize);
+        if (file == null) {
+            this.log = null;
+            if (snapshot != null) restore(snapshot, -1);
+            return;
+        }
+        if (Files.exists(file) && !(snapshot != null && restore(snapshot, Files.size(file)))) {
+            load(file);
+        }
+        this.log = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        // Строка, оборванная падением процесса, не должна склеиться со следующей записью
+        if (log.size() > 0) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+                reader.read(last, log.size() - 1);
+            }
+            if (last.get(0) != '\n') {
+                log.write(ByteBuffer.wrap(new byte[] {'\n'}));
+            }
+        }
+    }
+
+    // Хранилище без файла: пользователи живут до рестарта
+    static FileUserStore inMemory(int iterations, int cacheSize) {
+        try {
+            return new FileUserStore(null, iterations, cacheSize);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public Result login(String username, String password) {
+        Record record = records.get(username);
+        if (record == null) {
+            Record created = Record.create(password, iterations);
+            record = records.putIfAbsent(username, created);
+            if (record == null) {
+                append(username, created);
+                cache.remember(username, created.salt, password);
+                return Result.REGISTERED;
+            }
+            // Параллельно зарегистрировался кто-то другой - проверяем пароль по его записи
+        }
+        if (cache.matches(username, record.salt, password)) {
+            return Result.WELCOME_BACK;
+        }
+        if (!record.matches(password)) {
+            return Result.WRONG_PASSWORD;
+        }
+        cache.remember(username, record.salt, password);
+        return Result.WELCOME_BACK;
+    }
+
+    @Override
+    public int size() {
+        return records.size();
+    }
+
+    // Формат секции: [длина файла на момент снимка, -1 - без файла][число записей]
+    // и записи [имя: длина u16, UTF-8][iterations][соль: длина, байты][хеш: длина, байты]
+    @Override
+    public void writeSnapshot(DataOutputStream out) throws IOException {
+        // Длина файла и набор записей - на один момент: дописывание идёт под этой же блокировкой
+        appendLock.lock();
+        try {
+            out.writeLong(log == null ? -1 : log.size());
+            Map<String, Record> copy = Map.copyOf(records);
+            out.writeInt(copy.size());
+            for (Map.Entry<String, Record> e : copy.entrySet()) {
+                Record record = e.getValue();
+                byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeInt(record.iterations);
+                out.writeByte(record.salt.length);
+                out.write(record.salt);
+                out.writeByte(record.hash.length);
+                out.write(record.hash);
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // false - снимок сделан не с этим файлом (после него файл дописывали или заменили).
+    // Разбор прямо из буфера: на сотнях тысяч записей DataInputStream заметен во времени старта
+    private boolean restore(byte[] snapshot, long fileLength) {
+        ByteBuffer in = ByteBuffer.wrap(snapshot);
+        if (in.getLong() != fileLength) return false;
+        for (int count = in.getInt(); count > 0; count--) {
+            int nameLength = in.getShort() & 0xFFFF;
+            String username = new String(snapshot, in.position(), nameLength, StandardCharsets.UTF_8);
+            in.position(in.position() + nameLength);
+            int recordIterations = in.getInt();
+            byte[] salt = new byte[in.get() & 0xFF];
+            in.get(salt);
+            byte[] hash = new byte[in.get() & 0xFF];
+            in.get(hash);
+            records.put(username, new Record(recordIterations, salt, hash));
+        }
+        return true;
+    }
+
+    private void load(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length != 4) continue; // недописанная строка после падения
+                try {
+                    records.put(parts[0], new Record(Integer.parseInt(parts[1]),
+                            Base64.getDecoder().decode(parts[2]), Base64.getDecoder().decode(parts[3])));
+                } catch (IllegalArgumentException e) {
+                    Log.info("Skipping malformed user record: {}", parts[0]);
+                }
+            }
+        }
+    }
+
+    private void append(String username, Record record) {
+        if (log == null) return;
+        String line = username + " " + record.iterations + " "
+                + Base64.getEncoder().encodeToString(record.salt) + " "
+                + Base64.getEncoder().encodeToString(record.hash) + "\n";
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        // Без force(): от падения процесса защищает page cache ОС, fsync на каждую регистрацию
+        // выстроил бы логины в очередь за диском
+        appendLock.lock();
+        try {
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+        } catch (IOException e) {
+            Log.info("Failed to save user {}: {}", username, e.getMessage());
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private static final class Record {
+        final int iterations;
+        final byte[] salt;
+        final byte[] hash;
+
+        Record(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        static Record create(String password, int iterations) {
+            byte[] salt = new byte[SALT_BYTES];
+            RANDOM.nextBytes(salt);
+            return new Record(iterations, salt, hash(password, salt, iterations));
+        }
+
+        boolean matches(String password) {
+            return MessageDigest.isEqual(hash, hash(password, salt, iterations));
+        }
+
+        private static byte[] hash(String password, byte[] salt, int iterations) {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+            try {
+                return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                spec.clearPassword();
+            }
+        }
+    }
+}
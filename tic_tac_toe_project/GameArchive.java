@@ -0,0 +1,638 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Архив сыгранных партий: REPLAY <номер>, GAMES [игрок] и офлайн-аналитика (ArchiveScanner).
+// Партия - одна компактная запись: заголовок и ходы номерами клеток row * size + col
+// (на 3x3 - байт на ход, на больших полях - varint). Записи дописываются в сегменты
+// games-NNNNNN.dat; на каждые BLOCK_GAMES партий в games-NNNNNN.idx пишется элемент
+// разреженного индекса: номер первой партии блока, смещение, диапазон времени начала партий
+// и Bloom-фильтр имён игроков. REPLAY находит блок бинарным поиском по номеру, а GAMES
+// и сканер с фильтром по игроку или времени пропускают блоки, не читая их.
+//
+// Пишет и читает архив один поток "archive": игра только кодирует запись и кладёт её
+// в lock-free очередь, поток раз в FLUSH_INTERVAL_MS дописывает накопленное одним write.
+// REPLAY и GAMES идут через ту же очередь и видят все партии, законченные до них.
+//
+// Формат записи (числа - varint): длина остатка, номер партии, начало (секунды epoch),
+// длительность (секунды), size u8, win u8, флаги u8, имя X (u8 длина + UTF-8), имя O,
+// число ходов, ходы. Флаги: биты 0-1 - исход (OUTCOME_*), биты 2-3 - чем кончилась (END_*),
+// бит 4 - первым ходил O, биты 5-6 - X и O боты.
+// Элемент индекса (INDEX_ENTRY_BYTES): номер первой партии u64, min и max начала u64,
+// смещение u32, число партий u32, Bloom-фильтр BLOOM_LONGS * u64.
+final class GameArchive {
+    static final int OUTCOME_X = 0;
+    static final int OUTCOME_O = 1;
+    static final int OUTCOME_DRAW = 2;
+    static final int END_LINE = 0;  // линия или полное поле
+    static final int END_TIME = 1;  // время хода вышло
+    static final int END_LEFT = 2;  // соперник ушёл
+    static final int FLAG_O_FIRST = 1 << 4;
+    static final int FLAG_X_BOT = 1 << 5;
+    static final int FLAG_O_BOT = 1 << 6;
+
+    static final int BLOCK_GAMES = 64;
+    static final int BLOOM_LONGS = 16; // 1024 бита: на 128 имён блока ~3% ложных срабатываний
+    static final int INDEX_ENTRY_BYTES = 8 + 8 + 8 + 4 + 4 + BLOOM_LONGS * 8;
+    static final String DATA_SUFFIX = ".dat";
+    static final String INDEX_SUFFIX = ".idx";
+
+    private static final long FLUSH_INTERVAL_MS = 20;
+    private static final int MAX_NAME_BYTES = 255;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss 'UTC'")
+            .withZone(ZoneOffset.UTC);
+
+    // Блок индекса. Последний блок последнего сегмента ещё открыт и пишется в .idx, когда закроется
+    private static final class Block {
+        final int segment;
+        final int offset;
+        final long firstId;
+        int count;
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        final long[] bloom = new long[BLOOM_LONGS];
+
+        Block(int segment, int offset, long firstId) {
+            this.segment = segment;
+            this.offset = offset;
+            this.firstId = firstId;
+        }
+
+        void add(long startedAt, long hashX, long hashO) {
+            count++;
+            minTime = Math.min(minTime, startedAt);
+            maxTime = Math.max(maxTime, startedAt);
+            bloomAdd(bloom, hashX);
+            bloomAdd(bloom, hashO);
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final ReentrantLock order = new ReentrantLock(); // номер партии и место в очереди - вместе
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile long lastId; // номера партий идут подряд с 1
+    // Дальше - только поток архива
+    private final List<Block> blocks = new ArrayList<>();
+    private final List<Path> segmentFiles = new ArrayList<>();
+    private final List<Long> segmentLengths = new ArrayList<>(); // записанная часть каждого сегмента
+    private FileChannel data;
+    private FileChannel index;
+    private ByteBuffer batch = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer indexBatch = ByteBuffer.allocate(BLOCK_GAMES * INDEX_ENTRY_BYTES);
+    private final Metrics.Histogram flushTime = Metrics.histogram("archive.flush_us", 1000);
+
+    private ScheduledExecutorService writer; // null - архив отключён
+
+    private GameArchive(Path dir, int segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+    // Архив, который ничего не пишет (--archive-dir= с пустым значением)
+    static GameArchive disabled() {
+        return new GameArchive(null, 0);
+    }
+
+    // Остановка сервера: накопленное за последний интервал дописывается. Вызывается, когда партии
+    // уже доиграны (TicTacToeServer.shutdown), иначе конец остановки не попал бы в архив
+    void close() {
+        if (writer == null) return;
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pass();
+    }
+
+    // Читает индексы сегментов, доиндексирует хвост после падения и начинает дописывать в последний
+    static GameArchive open(Path dir, int segmentBytes) throws IOException {
+        GameArchive archive = new GameArchive(dir, segmentBytes);
+        Files.createDirectories(dir);
+        List<Path> segments = listSegments(dir);
+        if (segments.isEmpty()) {
+            archive.startSegment(1);
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            archive.recover(segments.get(i), i == segments.size() - 1);
+        }
+        Metrics.gauge("archive.games", () -> archive.lastId);
+
+        archive.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "archive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        archive.writer.scheduleWithFixedDelay(archive::pass, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        Log.info("Archive {}: {} games", dir, archive.lastId);
+        return archive;
+    }
+
+    // Партия кончилась: запись кодируется в вызывающем потоке, дописывает её поток архива.
+    // cells - номера клеток row * size + col по порядку ходов. Возвращает номер партии, 0 - архив выключен
+    long add(String playerX, String playerO, int bots, int size, int winLength, int firstPlayer,
+             int outcome, int end, long startedMillis, int[] cells, int moveCount) {
+        if (dir == null) return 0;
+        byte[] nameX = name(playerX);
+        byte[] nameO = name(playerO);
+        long startedAt = startedMillis / 1000;
+        ByteBuffer body = ByteBuffer.allocate(10 + 10 + 3 + 2 + nameX.length + nameO.length + 5 + moveCount * 3);
+        putVarint(body, startedAt);
+        putVarint(body, Math.max(0, System.currentTimeMillis() / 1000 - startedAt));
+        body.put((byte) size);
+        body.put((byte) winLength);
+        body.put((byte) (outcome | end << 2 | (firstPlayer == 1 ? FLAG_O_FIRST : 0)
+                | ((bots & 1) != 0 ? FLAG_X_BOT : 0) | ((bots & 2) != 0 ? FLAG_O_BOT : 0)));
+        body.put((byte) nameX.length).put(nameX);
+        body.put((byte) nameO.length).put(nameO);
+        putVarint(body, moveCount);
+        for (int i = 0; i < moveCount; i++) {
+            if (size == 3) {
+                body.put((byte) cells[i]);
+            } else {
+                putVarint(body, cells[i]);
+            }
+        }
+        long hashX = hash(ByteBuffer.wrap(nameX), 0, nameX.length);
+        long hashO = hash(ByteBuffer.wrap(nameO), 0, nameO.length);
+        order.lock();
+        try {
+            long id = ++lastId;
+            tasks.add(() -> write(id, body, startedAt, hashX, hashO));
+            return id;
+        } finally {
+            order.unlock();
+        }
+    }
+
+    // Текст партии с ходами и итоговым полем; reply вызывается в потоке архива
+    void replay(long id, Consumer<String> reply) {
+        if (dir == null) {
+            reply.accept("The game archive is disabled.\n");
+            return;
+        }
+        tasks.add(() -> {
+            ByteBuffer record = find(id);
+            reply.accept(record == null ? "No game #" + id + " in the archive.\n" : describe(record));
+        });
+    }
+
+    // Последние партии игрока (не больше limit), новые первыми
+    void games(String player, int limit, Consumer<String> reply) {
+        if (dir == null) {
+            reply.accept("The game archive is disabled.\n");
+            return;
+        }
+        byte[] name = name(player);
+        long hash = hash(ByteBuffer.wrap(name), 0, name.length);
+        tasks.add(() -> {
+            StringBuilder text = new StringBuilder();
+            int found = 0;
+            for (int b = blocks.size() - 1; b >= 0 && found < limit; b--) {
+                Block block = blocks.get(b);
+                if (!bloomMayContain(block.bloom, hash)) continue;
+                ByteBuffer records = readBlock(b);
+                if (records == null) break;
+                // В блоке партии идут от старых к новым: собираем совпавшие и выводим с конца
+                List<String> lines = new ArrayList<>();
+                while (records.hasRemaining()) {
+                    ByteBuffer record = nextRecord(records);
+                    if (player.equals(playerName(record, 0)) || player.equals(playerName(record, 1))) {
+                        lines.add(summary(record));
+                    }
+                }
+                for (int i = lines.size() - 1; i >= 0 && found < limit; i--, found++) {
+                    text.append(lines.get(i)).append('\n');
+                }
+            }
+            reply.accept(found == 0 ? "No archived games of " + player + ".\n" : text.toString());
+        });
+    }
+
+    private void pass() {
+        long started = Metrics.start();
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            flush();
+        } catch (IOException e) {
+            Log.info("Archive write failed: {}", e.getMessage());
+        } catch (RuntimeException e) {
+            Log.info("Archive task failed: {}", e);
+        }
+        Metrics.recordSince(flushTime, started);
+    }
+
+    private void write(long id, ByteBuffer body, long startedAt, long hashX, long hashO) {
+        body.flip();
+        int length = varintSize(id) + body.remaining();
+        int recordBytes = varintSize(length) + length;
+        try {
+            long position = currentLength() + batch.position();
+            if (position > 0 && position + recordBytes > segmentBytes) {
+                closeBlock();
+                flush();
+                data.close();
+                index.close();
+                startSegment(segmentNumber(segmentFiles.get(segmentFiles.size() - 1)) + 1);
+                position = 0;
+            }
+            Block block = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+            if (block == null || block.segment != segmentLengths.size() - 1 || block.count == BLOCK_GAMES) {
+                if (block != null && block.segment == segmentLengths.size() - 1) closeBlock();
+                block = new Block(segmentLengths.size() - 1, (int) position, id);
+                blocks.add(block);
+            }
+            if (batch.remaining() < recordBytes) {
+                flush();
+                if (batch.capacity() < recordBytes) batch = ByteBuffer.allocate(recordBytes);
+            }
+            putVarint(batch, length);
+            putVarint(batch, id);
+            batch.put(body);
+            block.add(startedAt, hashX, hashO);
+        } catch (IOException e) {
+            Log.info("Archive write of game {} failed: {}", id, e.getMessage());
+        }
+    }
+
+    // Сначала данные, потом элементы индекса: индекс не ссылается на то, чего нет в .dat
+    private void flush() throws IOException {
+        if (data == null) return;
+        batch.flip();
+        int written = batch.remaining();
+        while (batch.hasRemaining()) {
+            data.write(batch);
+        }
+        batch.clear();
+        int last = segmentLengths.size() - 1;
+        segmentLengths.set(last, segmentLengths.get(last) + written);
+        indexBatch.flip();
+        while (indexBatch.hasRemaining()) {
+            index.write(indexBatch);
+        }
+        indexBatch.clear();
+    }
+
+    // Последний блок текущего сегмента больше не пополняется: его элемент уходит в .idx
+    private void closeBlock() throws IOException {
+        Block block = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+        if (block == null || block.segment != segmentLengths.size() - 1 || block.count == 0) return;
+        if (!indexBatch.hasRemaining()) flush();
+        indexBatch.putLong(block.firstId);
+        indexBatch.putLong(block.minTime);
+        indexBatch.putLong(block.maxTime);
+        indexBatch.putInt(block.offset);
+        indexBatch.putInt(block.count);
+        for (long bits : block.bloom) {
+            indexBatch.putLong(bits);
+        }
+    }
+
+    private long currentLength() {
+        return segmentLengths.get(segmentLengths.size() - 1);
+    }
+
+    private void startSegment(int number) throws IOException {
+        Path file = dir.resolve(segmentName(number) + DATA_SUFFIX);
+        data = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        index = FileChannel.open(indexFile(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        segmentFiles.add(file);
+        segmentLengths.add(data.size());
+    }
+
+    // Загружает индекс сегмента и индексирует записи после последнего полного блока.
+    // Оборванная при падении запись в конце сегмента отрезается
+    private void recover(Path file, boolean last) throws IOException {
+        int segment = segmentFiles.size();
+        Path indexFile = indexFile(file);
+        ByteBuffer entries = Files.exists(indexFile) ? ByteBuffer.wrap(Files.readAllBytes(indexFile)) : ByteBuffer.allocate(0);
+        ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(file));
+        int indexed = 0;
+        int tail = 0;
+        while (entries.remaining() >= INDEX_ENTRY_BYTES) {
+            long firstId = entries.getLong();
+            long minTime = entries.getLong();
+            long maxTime = entries.getLong();
+            int offset = entries.getInt();
+            int count = entries.getInt();
+            if (offset != tail || offset >= records.limit()) break;
+            Block block = new Block(segment, offset, firstId);
+            block.count = count;
+            block.minTime = minTime;
+            block.maxTime = maxTime;
+            for (int i = 0; i < BLOOM_LONGS; i++) {
+                block.bloom[i] = entries.getLong();
+            }
+            // Конец блока - начало следующего; проходим его записи, чтобы найти и номер последней партии
+            records.position(offset);
+            for (int i = 0; i < count; i++) {
+                ByteBuffer record = nextRecord(records);
+                if (record == null) break;
+                lastId = Math.max(lastId, getVarint(record));
+            }
+            tail = records.position();
+            blocks.add(block);
+            indexed++;
+        }
+        segmentFiles.add(file);
+        segmentLengths.add((long) records.limit());
+        data = FileChannel.open(file, StandardOpenOption.WRITE);
+        index = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        index.truncate((long) indexed * INDEX_ENTRY_BYTES);
+        index.position((long) indexed * INDEX_ENTRY_BYTES);
+        records.position(tail);
+        int valid = tail;
+        while (records.hasRemaining()) {
+            ByteBuffer record = nextRecord(records);
+            if (record == null) break;
+            long id = getVarint(record);
+            long startedAt = getVarint(record);
+            lastId = Math.max(lastId, id);
+            Block block = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+            if (block == null || block.segment != segment || block.count == BLOCK_GAMES) {
+                closeBlock();
+                block = new Block(segment, valid, id);
+                blocks.add(block);
+            }
+            getVarint(record);
+            record.position(record.position() + 3);
+            block.add(startedAt, nameHash(record), nameHash(record));
+            valid = records.position();
+        }
+        if (valid < records.limit()) {
+            Log.info("Archive {}: torn record at offset {}, truncating.", file.getFileName(), valid);
+            data.truncate(valid);
+            segmentLengths.set(segment, (long) valid);
+        }
+        data.position(valid);
+        if (!last) closeBlock();
+        flush();
+        if (!last) {
+            data.close();
+            index.close();
+        }
+    }
+
+    // Запись партии по номеру: бинарный поиск блока, затем проход по его записям
+    private ByteBuffer find(long id) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (blocks.get(mid).firstId <= id) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found < 0) return null;
+        ByteBuffer records = readBlock(found);
+        while (records != null && records.hasRemaining()) {
+            ByteBuffer record = nextRecord(records);
+            if (record == null) break;
+            if (getVarint(record) == id) return record;
+        }
+        return null;
+    }
+
+    // Записи блока целиком; конец блока - начало следующего в том же сегменте или конец сегмента
+    private ByteBuffer readBlock(int b) {
+        try {
+            flush();
+            Block block = blocks.get(b);
+            long end = b + 1 < blocks.size() && blocks.get(b + 1).segment == block.segment
+                    ? blocks.get(b + 1).offset : segmentLengths.get(block.segment);
+            ByteBuffer records = ByteBuffer.allocate((int) (end - block.offset));
+            try (FileChannel channel = FileChannel.open(segmentFiles.get(block.segment), StandardOpenOption.READ)) {
+                while (records.hasRemaining()) {
+                    if (channel.read(records, block.offset + records.position()) < 0) break;
+                }
+            }
+            records.flip();
+            return records;
+        } catch (IOException e) {
+            Log.info("Archive read failed: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    // Следующая запись (от номера партии до конца) как срез буфера; null - запись оборвана
+    static ByteBuffer nextRecord(ByteBuffer records) {
+        int start = records.position();
+        long length = getVarint(records);
+        if (length < 0 || length > records.remaining()) {
+            records.position(start);
+            return null;
+        }
+        ByteBuffer record = records.slice();
+        record.limit((int) length);
+        records.position(records.position() + (int) length);
+        return record;
+    }
+
+    // Текст для REPLAY: заголовок, ходы по порядку, итоговое поле и результат
+    private static String describe(ByteBuffer record) {
+        record.rewind();
+        long id = getVarint(record);
+        long startedAt = getVarint(record);
+        long seconds = getVarint(record);
+        int size = record.get();
+        int winLength = record.get();
+        int flags = record.get();
+        String x = readName(record);
+        String o = readName(record);
+        int moveCount = (int) getVarint(record);
+        StringBuilder text = new StringBuilder();
+        text.append("Game #").append(id).append(", ").append(TIME.format(Instant.ofEpochSecond(startedAt)))
+                .append(", ").append(size).append('x').append(size).append(" (").append(winLength)
+                .append(" in a row), ").append(seconds).append("s\n");
+        text.append("X: ").append(x).append(", O: ").append(o).append('\n');
+        GameBoard board = GameBoard.create(size, winLength);
+        int player = (flags & FLAG_O_FIRST) != 0 ? 1 : 0;
+        for (int i = 0; i < moveCount; i++) {
+            int cell = size == 3 ? record.get() : (int) getVarint(record);
+            board.place(cell / size, cell % size, player);
+            text.append(i + 1).append(". ").append(player == 0 ? 'X' : 'O').append(' ')
+                    .append(cell / size + 1).append(' ').append(cell % size + 1).append('\n');
+            player = 1 - player;
+        }
+        text.append(BoardRenderer.renderText(board));
+        text.append(result(flags, x, o)).append('\n');
+        return text.toString();
+    }
+
+    // Одна строка для GAMES: номер, время, поле, игроки и итог
+    private static String summary(ByteBuffer record) {
+        record.rewind();
+        long id = getVarint(record);
+        long startedAt = getVarint(record);
+        getVarint(record);
+        int size = record.get();
+        record.get();
+        int flags = record.get();
+        String x = readName(record);
+        String o = readName(record);
+        return "#" + id + " " + TIME.format(Instant.ofEpochSecond(startedAt)) + " " + size + "x" + size
+                + " " + x + " (X) vs " + o + " (O): " + result(flags, x, o);
+    }
+
+    private static String result(int flags, String x, String o) {
+        int outcome = flags & 3;
+        if (outcome == OUTCOME_DRAW) return "Draw.";
+        String winner = outcome == OUTCOME_X ? x + " (X)" : o + " (O)";
+        String loser = outcome == OUTCOME_X ? o : x;
+        switch (flags >> 2 & 3) {
+            case END_TIME:
+                return "Time is up for " + loser + ", " + winner + " wins.";
+            case END_LEFT:
+                return loser + " left, " + winner + " wins.";
+            default:
+                return winner + " wins.";
+        }
+    }
+
+    // Имя игрока index (0 - X, 1 - O) записи
+    private static String playerName(ByteBuffer record, int index) {
+        record.rewind();
+        getVarint(record);
+        getVarint(record);
+        getVarint(record);
+        record.position(record.position() + 3);
+        if (index == 1) {
+            record.position(record.position() + 1 + (record.get(record.position()) & 0xFF));
+        }
+        return readName(record);
+    }
+
+    private static String readName(ByteBuffer record) {
+        int length = record.get() & 0xFF;
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Хеш имени с текущей позиции; позиция переходит за имя
+    private static long nameHash(ByteBuffer record) {
+        int length = record.get() & 0xFF;
+        long hash = hash(record, record.position(), length);
+        record.position(record.position() + length);
+        return hash;
+    }
+
+    private static byte[] name(String player) {
+        byte[] bytes = player.getBytes(StandardCharsets.UTF_8);
+        return bytes.length <= MAX_NAME_BYTES ? bytes : Arrays.copyOf(bytes, MAX_NAME_BYTES);
+    }
+
+    // FNV-1a по байтам имени: сканер считает его прямо по отображённому файлу, без String
+    static long hash(ByteBuffer bytes, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            hash ^= bytes.get(offset + i) & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Три бита из разных частей хеша
+    static void bloomAdd(long[] bloom, long hash) {
+        for (int i = 0; i < 3; i++) {
+            int bit = (int) (hash >>> (i * 20)) & (BLOOM_LONGS * 64 - 1);
+            bloom[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    static boolean bloomMayContain(long[] bloom, long hash) {
+        for (int i = 0; i < 3; i++) {
+            int bit = (int) (hash >>> (i * 20)) & (BLOOM_LONGS * 64 - 1);
+            if ((bloom[bit >>> 6] & 1L << bit) == 0) return false;
+        }
+        return true;
+    }
+
+    // То же по элементу индекса, отображённому в память (сканер)
+    static boolean bloomMayContain(ByteBuffer entries, int entry, long hash) {
+        int bloom = entry + INDEX_ENTRY_BYTES - BLOOM_LONGS * 8;
+        for (int i = 0; i < 3; i++) {
+            int bit = (int) (hash >>> (i * 20)) & (BLOOM_LONGS * 64 - 1);
+            if ((entries.getLong(bloom + (bit >>> 6) * 8) & 1L << bit) == 0) return false;
+        }
+        return true;
+    }
+
+    static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    // -1 - varint оборван
+    static long getVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64 && in.hasRemaining(); shift += 7) {
+            int b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        return -1;
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static String segmentName(int number) {
+        return String.format("games-%06d", number);
+    }
+
+    static int segmentNumber(Path file) {
+        return Integer.parseInt(file.getFileName().toString().substring(6, 12));
+    }
+
+    static Path indexFile(Path file) {
+        String name = file.getFileName().toString();
+        return file.resolveSibling(name.substring(0, name.length() - DATA_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    static List<Path> listSegments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().matches("games-\\d{6}\\.dat"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+}
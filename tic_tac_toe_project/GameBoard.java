@@ -0,0 +1,34 @@
+// Игровое поле size x size, побеждает тот, кто первым выставит winLength знаков в ряд.
+// player: 0 - X, 1 - O; строки и столбцы считаются с нуля.
+interface GameBoard {
+    int MIN_SIZE = 3;
+    int MAX_SIZE = 25;
+
+    static GameBoard create(int size, int winLength) {
+        // Классические 3x3 идут через битовое поле, всё остальное - через сетку
+        if (size == 3 && winLength == 3) {
+            return new SmallBoard();
+        }
+        return new GridBoard(size, winLength);
+    }
+
+    int size();
+
+    int winLength();
+
+    boolean isFree(int row, int col);
+
+    char charAt(int row, int col);
+
+    // Ставит знак и возвращает true, если этим ходом собрана линия
+    boolean place(int row, int col, int player);
+
+    boolean isFull();
+
+    int moveCount();
+
+    void reset();
+
+    // Независимая копия для расчётов вне блокировки игры (например, ходов бота)
+    GameBoard copy();
+}
@@ -0,0 +1,107 @@
+import java.util.Arrays;
+
+// Поле произвольного размера. Победа проверяется только по четырём линиям
+// через последний поставленный знак, поэтому ход стоит O(winLength), а не O(size^2).
+class GridBoard implements GameBoard {
+    private static final byte EMPTY = 0;
+    // Направления линий: горизонталь, вертикаль, две диагонали
+    private static final int[][] DIRECTIONS = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+
+    private final int size;
+    private final int winLength;
+    private final byte[] cells; // 0 - пусто, 1 - X, 2 - O
+    private int moveCount;
+
+    GridBoard(int size, int winLength) {
+        if (size < MIN_SIZE || size > MAX_SIZE || winLength < 3 || winLength > size) {
+            throw new IllegalArgumentException("Unsupported board " + size + "x" + size + " with " + winLength + " in a row");
+        }
+        this.size = size;
+        this.winLength = winLength;
+        this.cells = new byte[size * size];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int winLength() {
+        return winLength;
+    }
+
+    // 0 - пусто, 1 - X, 2 - O
+    byte get(int row, int col) {
+        return cells[row * size + col];
+    }
+
+    @Override
+    public boolean isFree(int row, int col) {
+        return cells[row * size + col] == EMPTY;
+    }
+
+    @Override
+    public char charAt(int row, int col) {
+        switch (cells[row * size + col]) {
+            case 1: return 'X';
+            case 2: return 'O';
+            default: return ' ';
+        }
+    }
+
+    @Override
+    public boolean place(int row, int col, int player) {
+        byte mark = (byte) (player + 1);
+        cells[row * size + col] = mark;
+        moveCount++;
+        for (int[] d : DIRECTIONS) {
+            int count = 1 + countFrom(row, col, d[0], d[1], mark) + countFrom(row, col, -d[0], -d[1], mark);
+            if (count >= winLength) return true;
+        }
+        return false;
+    }
+
+    // Сколько подряд таких же знаков в направлении (dr, dc), не считая саму клетку
+    private int countFrom(int row, int col, int dr, int dc, byte mark) {
+        int count = 0;
+        int r = row + dr;
+        int c = col + dc;
+        while (count < winLength - 1 && r >= 0 && r < size && c >= 0 && c < size && cells[r * size + c] == mark) {
+            count++;
+            r += dr;
+            c += dc;
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isFull() {
+        return moveCount == cells.length;
+    }
+
+    @Override
+    public int moveCount() {
+        return moveCount;
+    }
+
+    // Откат хода, нужен переборному поиску бота
+    void undo(int row, int col) {
+        cells[row * size + col] = EMPTY;
+        moveCount--;
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(cells, EMPTY);
+        moveCount = 0;
+    }
+
+    @Override
+    public GameBoard copy() {
+        GridBoard copy = new GridBoard(size, winLength);
+        System.arraycopy(cells, 0, copy.cells, 0, cells.length);
+        copy.moveCount = moveCount;
+        return copy;
+    }
+}
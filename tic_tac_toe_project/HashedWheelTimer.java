@@ -0,0 +1,178 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Один поток на все таймауты сервера (часы ходов, ожидание отключившихся игроков).
+// Таймауты раскладываются по корзинам колеса: tick - шаг, wheelSize корзин на оборот,
+// дальние сроки ждут нужное число оборотов. Постановка и отмена - вставка в lock-free очередь
+// за O(1); связные списки корзин трогает только поток колеса, поэтому блокировок нет.
+// Точность - один шаг колеса, для часов партии этого достаточно.
+final class HashedWheelTimer {
+    // За один шаг переносим в колесо не больше стольких новых таймаутов, чтобы шаг не затягивался
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private static final int ARMED = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    final class Timeout {
+        private final Runnable task;
+        private final long deadline; // нс от запуска колеса
+        private final AtomicInteger state = new AtomicInteger(ARMED);
+        // Дальше - только поток колеса
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // false - задача уже запущена (или таймаут уже отменён)
+        boolean cancel() {
+            if (!state.compareAndSet(ARMED, CANCELLED)) return false;
+            armed.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(ARMED, EXPIRED)) return;
+            armed.decrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // Исключение задачи не должно остановить колесо
+                Log.info("Timeout task failed: {}", e);
+            }
+        }
+    }
+
+    // Двусвязный список таймаутов одной корзины: удаление отменённого - O(1)
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) timeout.prev.next = next;
+            if (next != null) next.prev = timeout.prev;
+            if (timeout == head) head = next;
+            if (timeout == tail) tail = timeout.prev;
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime = System.nanoTime();
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger armed = new AtomicInteger();
+    private long tick; // только поток колеса
+
+    HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheelSize must be a power of two: " + wheelSize);
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = wheelSize - 1;
+        Thread worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        armed.incrementAndGet();
+        pending.add(timeout);
+        return timeout;
+    }
+
+    // Сколько таймаутов ждёт срабатывания
+    int size() {
+        return armed.get();
+    }
+
+    private void run() {
+        while (true) {
+            long deadline = waitForNextTick();
+            removeCancelled();
+            transferPending();
+            expire(wheel[(int) (tick & mask)], deadline);
+            tick++;
+        }
+    }
+
+    private long waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos <= 0) return deadline;
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException e) {
+                // Поток колеса живёт до конца процесса
+            }
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            // bucket == null - таймаут ещё в pending, его пропустит transferPending
+            if (timeout.bucket != null) timeout.bucket.remove(timeout);
+        }
+    }
+
+    private void transferPending() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = pending.poll();
+            if (timeout == null) return;
+            if (timeout.state.get() != ARMED) continue;
+            long expiresAtTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (expiresAtTick - tick) / wheel.length;
+            // Опоздавший таймаут срабатывает на текущем шаге
+            long slot = Math.max(expiresAtTick, tick);
+            wheel[(int) (slot & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket, long deadline) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                Timeout next = bucket.remove(timeout);
+                timeout.expire();
+                timeout = next;
+            } else if (timeout.state.get() == CANCELLED) {
+                timeout = bucket.remove(timeout);
+            } else {
+                timeout.remainingRounds--;
+                timeout = timeout.next;
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Нарезка входящих байтов на команды: строки текстового протокола или кадры BinaryProtocol.
+// Общая для блокирующего и неблокирующего сервера; протокол можно сменить посреди буфера.
+// Каждая команда до выполнения проходит лимиты частоты соединения (RateLimiter); пока игрок
+// в комнате другого узла кластера, команда уходит туда как есть (Cluster.Route).
+class InputFramer {
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private final TicTacToeServer.ClientHandler handler;
+    private byte[] buffer = new byte[128];
+    private int length;
+    private boolean suspended;
+    private final RateLimiter limiter = new RateLimiter();
+
+    InputFramer(TicTacToeServer.ClientHandler handler) {
+        this.handler = handler;
+    }
+
+    // false - клиент нарушил протокол, соединение нужно закрыть
+    boolean feed(ByteBuffer data) {
+        suspended = false;
+        while (data.hasRemaining() && !suspended) {
+            // После RESUME ввод этого соединения обрабатывает другой ClientHandler
+            boolean ok = handler.current().isBinaryProtocol() ? feedFrame(data) : feedLine(data);
+            if (!ok) return false;
+        }
+        return true;
+    }
+
+    // Остановить разбор после текущей команды: соединение переезжает на другой шард,
+    // и остаток данных разберёт уже он
+    void suspend() {
+        suspended = true;
+    }
+
+    private boolean feedLine(ByteBuffer data) {
+        byte b = data.get();
+        if (b != '\n') {
+            if (length == MAX_LINE_LENGTH) {
+                Log.info("Line too long, closing connection.");
+                return false;
+            }
+            append(b);
+            return true;
+        }
+        int lineLength = length;
+        if (lineLength > 0 && buffer[lineLength - 1] == '\r') lineLength--;
+        length = 0;
+        RateLimiter.Verdict verdict = limiter.check(RateLimiter.kindOf(buffer, 0, lineLength, handler.current().isLoggedIn()));
+        if (verdict != RateLimiter.Verdict.ALLOW) return throttled(verdict);
+        Cluster.Route route = handler.current().route();
+        if (route != null) {
+            route.forwardLine(buffer, 0, lineLength);
+            return true;
+        }
+        handler.current().onLine(new String(buffer, 0, lineLength, StandardCharsets.UTF_8));
+        return true;
+    }
+
+    private boolean feedFrame(ByteBuffer data) {
+        // Дочитываем заголовок, затем данные кадра, не выходя за его границу
+        int needed = BinaryProtocol.HEADER_SIZE;
+        if (length >= BinaryProtocol.HEADER_SIZE) {
+            needed += ((buffer[1] & 0xFF) << 8) | (buffer[2] & 0xFF);
+        }
+        while (length < needed && data.hasRemaining()) {
+            append(data.get());
+            if (length == BinaryProtocol.HEADER_SIZE) {
+                int payload = ((buffer[1] & 0xFF) << 8) | (buffer[2] & 0xFF);
+                if (payload > BinaryProtocol.MAX_PAYLOAD) {
+                    Log.info("Frame too large, closing connection.");
+                    return false;
+                }
+                needed += payload;
+            }
+        }
+        if (length < needed) return true;
+
+        length = 0;
+        int type = buffer[0] & 0xFF;
+        RateLimiter.Verdict verdict = limiter.check(RateLimiter.kindOfFrame(type, buffer, BinaryProtocol.HEADER_SIZE,
+                needed - BinaryProtocol.HEADER_SIZE, handler.current().isLoggedIn()));
+        if (verdict != RateLimiter.Verdict.ALLOW) return throttled(verdict);
+        Cluster.Route route = handler.current().route();
+        if (route != null) {
+            route.forward(buffer, 0, needed);
+            return true;
+        }
+        if (!BinaryProtocol.handle(handler.current(), type, buffer, BinaryProtocol.HEADER_SIZE, needed - BinaryProtocol.HEADER_SIZE)) {
+            Log.info("Malformed frame, closing connection.");
+            return false;
+        }
+        return true;
+    }
+
+    // Команда сверх лимита не выполняется; false - клиент не унимается, соединение закрывается
+    private boolean throttled(RateLimiter.Verdict verdict) {
+        if (verdict == RateLimiter.Verdict.DISCONNECT) {
+            Log.info("Rate limit exceeded, closing connection.");
+            return false;
+        }
+        handler.current().reply(BinaryProtocol.STATUS_RATE_LIMITED, "Too many requests, slow down.");
+        return true;
+    }
+
+    private void append(byte b) {
+        if (length == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        buffer[length++] = b;
+    }
+}
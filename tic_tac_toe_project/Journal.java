@@ -0,0 +1,445 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Журнал комнат и ходов для восстановления идущих партий после рестарта.
+// Записи дописываются в отображённый в память сегмент (journal-NNNNNN.log); запись - это
+// копирование байтов под короткой блокировкой, fsync делает отдельный поток раз в syncMillis
+// сразу за все партии (group commit). Когда сегмент заполняется, в новый сегмент пишется
+// снимок живых партий, и старые сегменты удаляются - журнал не растёт бесконечно. Файл следующего
+// сегмента заранее создаёт тот же фоновый поток, он же после ротации делает fsync и удаляет
+// старые сегменты: под блокировкой остаются только снимок в память и подмена сегмента.
+//
+// Формат записи: [длина данных: 2 байта][тип: 1 байт][данные][CRC32 типа и данных: 4 байта].
+// Нулевая длина - конец записанной части сегмента.
+final class Journal {
+    private static final int ROOM_CREATED = 1; // имя, пароль, size, win, ai, [часы: секунды u16, добавка u8]
+    private static final int ROOM_REMOVED = 2; // имя
+    private static final int GAME_STARTED = 3; // комната, игрок X, игрок O, боты (биты), кто ходит, токены мест
+    private static final int MOVE = 4;         // комната, игрок, row, col
+    private static final int GAME_ENDED = 5;   // комната
+
+    private static final int RECORD_OVERHEAD = 2 + 1 + 4;
+
+    // Состояние комнаты по журналу; по нему же восстанавливаются партии
+    static final class RoomRecord {
+        final String name;
+        final String password;
+        final RoomSettings settings;
+        String[] players;
+        int bots; // бит i - игрок i бот
+        int firstPlayer;
+        long[] seatTokens;
+        byte[] moves = new byte[0]; // тройки (игрок, row, col)
+        int moveCount;
+        boolean inGame;
+
+        RoomRecord(String name, String password, RoomSettings settings) {
+            this.name = name;
+            this.password = password;
+            this.settings = settings;
+        }
+
+        int movePlayer(int i) {
+            return moves[i * 3];
+        }
+
+        int moveRow(int i) {
+            return moves[i * 3 + 1];
+        }
+
+        int moveCol(int i) {
+            return moves[i * 3 + 2];
+        }
+
+        private void addMove(int player, int row, int col) {
+            if (moves.length < (moveCount + 1) * 3) {
+                moves = Arrays.copyOf(moves, Math.max(24, moves.length * 2));
+            }
+            moves[moveCount * 3] = (byte) player;
+            moves[moveCount * 3 + 1] = (byte) row;
+            moves[moveCount * 3 + 2] = (byte) col;
+            moveCount++;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Живые комнаты по журналу; меняется только под lock
+    private final Map<String, RoomRecord> live = new LinkedHashMap<>();
+    private final List<RoomRecord> recovered = new ArrayList<>();
+    private volatile MappedByteBuffer segment;
+    private int segmentIndex;
+    private int lastIndex; // последний занятый номер файла: текущий сегмент или запасной; под lock
+    private MappedByteBuffer spare; // под lock: следующий сегмент, созданный фоновым потоком
+    private int spareIndex;
+    private ScheduledExecutorService background; // fsync, ротация вне блокировки
+    private volatile boolean dirty;
+
+    private Journal(Path dir, int segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+    // Журнал, который ничего не пишет (--journal-dir= с пустым значением)
+    static Journal disabled() {
+        return new Journal(null, 0);
+    }
+
+    // Читает все сегменты, запоминает незаконченные партии и начинает новый сегмент со снимка
+    static Journal open(Path dir, int segmentBytes, long syncMillis) throws IOException {
+        Journal journal = new Journal(dir, segmentBytes);
+        Files.createDirectories(dir);
+        List<Path> segments = journal.listSegments();
+        for (Path file : segments) {
+            journal.replay(file);
+        }
+        for (RoomRecord room : journal.live.values()) {
+            if (room.inGame) journal.recovered.add(room);
+        }
+        // Комнаты без партии после рестарта не поднимаются: их записи больше не нужны
+        journal.live.values().removeIf(room -> !room.inGame);
+        if (!segments.isEmpty()) {
+            journal.segmentIndex = indexOf(segments.get(segments.size() - 1));
+            journal.lastIndex = journal.segmentIndex;
+        }
+
+        journal.background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        journal.lock.lock();
+        try {
+            journal.rotate();
+        } finally {
+            journal.lock.unlock();
+        }
+        journal.background.scheduleWithFixedDelay(journal::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        return journal;
+    }
+
+    // Партии, которые шли в момент остановки сервера
+    Collection<RoomRecord> recoveredRooms() {
+        return recovered;
+    }
+
+    void roomCreated(String name, String password, RoomSettings settings) {
+        if (dir == null) return;
+        append(ROOM_CREATED, out -> {
+            writeString(out, name);
+            writeString(out, password);
+            out.writeByte(settings.size);
+            out.writeByte(settings.winLength);
+            out.writeByte(settings.ai ? 1 : 0);
+            writeClock(out, settings);
+        });
+    }
+
+    void roomRemoved(String name) {
+        if (dir == null) return;
+        append(ROOM_REMOVED, out -> writeString(out, name));
+    }
+
+    void gameStarted(String room, String playerX, String playerO, int bots, int firstPlayer, long[] seatTokens) {
+        if (dir == null) return;
+        append(GAME_STARTED, out -> {
+            writeString(out, room);
+            writeString(out, playerX);
+            writeString(out, playerO);
+            out.writeByte(bots);
+            out.writeByte(firstPlayer);
+            out.writeLong(seatTokens[0]);
+            out.writeLong(seatTokens[1]);
+        });
+    }
+
+    void move(String room, int player, int row, int col) {
+        if (dir == null) return;
+        append(MOVE, out -> {
+            writeString(out, room);
+            out.writeByte(player);
+            out.writeByte(row);
+            out.writeByte(col);
+        });
+    }
+
+    void gameEnded(String room) {
+        if (dir == null) return;
+        append(GAME_ENDED, out -> writeString(out, room));
+    }
+
+    private interface Payload {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private void append(int type, Payload payload) {
+        byte[] record;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            payload.write(out);
+            record = encode(type, bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // в памяти не бывает
+        }
+        lock.lock();
+        try {
+            // Оставляем место под нулевую длину-терминатор. Снимок снимается до apply(),
+            // иначе запись попала бы в новый сегмент дважды
+            if (segment.remaining() < record.length + 2) {
+                rotate();
+            }
+            apply(type, ByteBuffer.wrap(record, 3, record.length - RECORD_OVERHEAD));
+            segment.put(record);
+            dirty = true;
+        } catch (IOException e) {
+            Log.info("Journal write failed: {}", e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static byte[] encode(int type, byte[] data) {
+        byte[] record = new byte[RECORD_OVERHEAD + data.length];
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putShort((short) data.length);
+        buffer.put((byte) type);
+        buffer.put(data);
+        CRC32 crc = new CRC32();
+        crc.update(record, 2, 1 + data.length);
+        buffer.putInt((int) crc.getValue());
+        return record;
+    }
+
+    private void sync() {
+        if (!dirty) return;
+        dirty = false;
+        segment.force();
+    }
+
+    // Под lock: новый сегмент начинается со снимка живых комнат. Обычно его файл уже создан
+    // фоновым потоком; fsync и удаление старых сегментов он же делает после подмены
+    private void rotate() throws IOException {
+        List<byte[]> snapshot = snapshot();
+        int needed = 2;
+        for (byte[] record : snapshot) {
+            needed += record.length;
+        }
+        MappedByteBuffer previous = segment;
+        MappedByteBuffer next = spare;
+        int index = spareIndex;
+        spare = null;
+        if (next == null || next.capacity() < needed * 2) {
+            // Запасной не готов или снимок в него не влезает: создаём сегмент здесь. Неподошедший
+            // запасной с меньшим номером удалится вместе со старыми сегментами
+            index = ++lastIndex;
+            next = createSegment(index, Math.max(segmentBytes, needed * 2));
+        }
+        for (byte[] record : snapshot) {
+            next.put(record);
+        }
+        segment = next;
+        segmentIndex = index;
+        MappedByteBuffer current = next;
+        int currentIndex = index;
+        background.execute(() -> retire(previous, current, currentIndex));
+    }
+
+    // Фоновый поток после ротации: снимок на диск, сегменты до current удаляются, готовится запасной
+    private void retire(MappedByteBuffer previous, MappedByteBuffer current, int currentIndex) {
+        try {
+            if (previous != null) {
+                previous.force();
+            }
+            current.force();
+            for (Path path : listSegments()) {
+                if (indexOf(path) < currentIndex) Files.deleteIfExists(path);
+            }
+            prepareSpare();
+        } catch (IOException e) {
+            Log.info("Journal rotation failed: {}", e.getMessage());
+        }
+    }
+
+    private void prepareSpare() throws IOException {
+        int index;
+        lock.lock();
+        try {
+            if (spare != null) return;
+            index = ++lastIndex;
+        } finally {
+            lock.unlock();
+        }
+        MappedByteBuffer created = createSegment(index, segmentBytes);
+        lock.lock();
+        try {
+            // Пока файл создавался, ротация могла обойтись без него и уйти дальше по номерам
+            if (spare == null && index > segmentIndex) {
+                spare = created;
+                spareIndex = index;
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        Files.deleteIfExists(segmentPath(index));
+    }
+
+    private MappedByteBuffer createSegment(int index, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(index), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private Path segmentPath(int index) {
+        return dir.resolve(String.format("journal-%06d.log", index));
+    }
+
+    private static int indexOf(Path segment) {
+        return Integer.parseInt(segment.getFileName().toString().substring(8, 14));
+    }
+
+    private List<byte[]> snapshot() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        for (RoomRecord room : live.values()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeString(out, room.name);
+            writeString(out, room.password);
+            out.writeByte(room.settings.size);
+            out.writeByte(room.settings.winLength);
+            out.writeByte(room.settings.ai ? 1 : 0);
+            writeClock(out, room.settings);
+            records.add(encode(ROOM_CREATED, bytes.toByteArray()));
+            if (!room.inGame) continue;
+
+            bytes.reset();
+            writeString(out, room.name);
+            writeString(out, room.players[0]);
+            writeString(out, room.players[1]);
+            out.writeByte(room.bots);
+            out.writeByte(room.firstPlayer);
+            out.writeLong(room.seatTokens[0]);
+            out.writeLong(room.seatTokens[1]);
+            records.add(encode(GAME_STARTED, bytes.toByteArray()));
+            for (int i = 0; i < room.moveCount; i++) {
+                bytes.reset();
+                writeString(out, room.name);
+                out.writeByte(room.movePlayer(i));
+                out.writeByte(room.moveRow(i));
+                out.writeByte(room.moveCol(i));
+                records.add(encode(MOVE, bytes.toByteArray()));
+            }
+        }
+        return records;
+    }
+
+    private void replay(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        while (buffer.remaining() >= RECORD_OVERHEAD) {
+            int start = buffer.position();
+            int length = buffer.getShort() & 0xFFFF;
+            if (length == 0 || buffer.remaining() < length + 5) break;
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), start + 2, 1 + length);
+            int type = buffer.get();
+            ByteBuffer data = ByteBuffer.wrap(buffer.array(), buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            if (buffer.getInt() != (int) crc.getValue()) {
+                // Запись оборвалась при падении - дальше в сегменте ничего нет
+                Log.info("Journal {}: torn record at offset {}, ignoring the rest.", file.getFileName(), start);
+                break;
+            }
+            apply(type, data);
+        }
+    }
+
+    private void apply(int type, ByteBuffer data) {
+        String name = readString(data);
+        RoomRecord room = live.get(name);
+        switch (type) {
+            case ROOM_CREATED:
+                String password = readString(data);
+                int size = data.get();
+                int winLength = data.get();
+                boolean ai = data.get() != 0;
+                // Записи без часов - из журналов до их появления
+                int clockSeconds = data.remaining() >= 3 ? data.getShort() & 0xFFFF : 0;
+                int incrementSeconds = clockSeconds > 0 ? data.get() & 0xFF : 0;
+                live.put(name, new RoomRecord(name, password, new RoomSettings(size, winLength, ai, clockSeconds, incrementSeconds)));
+                break;
+            case ROOM_REMOVED:
+                live.remove(name);
+                break;
+            case GAME_STARTED:
+                if (room == null) break;
+                room.players = new String[] {readString(data), readString(data)};
+                room.bots = data.get();
+                room.firstPlayer = data.get();
+                room.seatTokens = new long[] {data.getLong(), data.getLong()};
+                room.moves = new byte[0];
+                room.moveCount = 0;
+                room.inGame = true;
+                break;
+            case MOVE:
+                if (room == null || !room.inGame) break;
+                room.addMove(data.get(), data.get(), data.get());
+                break;
+            case GAME_ENDED:
+                if (room != null) room.inGame = false;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().matches("journal-\\d{6}\\.log"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static void writeClock(DataOutputStream out, RoomSettings settings) throws IOException {
+        if (!settings.hasClock()) return;
+        out.writeShort(settings.clockSeconds);
+        out.writeByte(settings.incrementSeconds);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer data) {
+        int length = data.getShort() & 0xFFFF;
+        String value = new String(data.array(), data.arrayOffset() + data.position(), length, StandardCharsets.UTF_8);
+        data.position(data.position() + length);
+        return value;
+    }
+}
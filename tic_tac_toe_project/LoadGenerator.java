@@ -0,0 +1,559 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Генератор нагрузки для сравнения изменений сервера с базовой линией. Открывает N игроков
+// по loopback, и они парами играют без пауз: CREATE и JOIN, случайные ходы, переигровка
+// (--replays партий в одной комнате), затем новая комната. Раз в секунду и в конце печатает
+// открытые соединения, партии и ходы в секунду и p50/p99 задержки хода - от отправки хода
+// до его эха от сервера. С --idle пары садятся за партию и не ходят: так проверяется, сколько
+// одновременных сессий держит сервер.
+// Запуск: java LoadGenerator --players=1000 --duration=60 [--host=localhost] [--port=12345]
+//         [--rate=2000] [--threads=2] [--text] [--size=3] [--win=3] [--replays=3] [--idle]
+// По умолчанию игроки говорят на BinaryProtocol; --text - как человек, в режиме DELTA ON.
+// Для десятков тысяч соединений нужны ulimit -n и диапазон эфемерных портов с запасом.
+public class LoadGenerator {
+
+    private static final LongAdder games = new LongAdder();
+    private static final LongAdder moves = new LongAdder();
+    private static final LongAdder failures = new LongAdder();
+    private static final AtomicInteger connected = new AtomicInteger();
+    private static final AtomicInteger seated = new AtomicInteger(); // в начатой партии
+    private static final Metrics.Histogram moveLatency = new Metrics.Histogram(1000);
+    // Гистограмма текущей секунды; подменяется при каждом отчёте
+    private static volatile Metrics.Histogram intervalLatency = new Metrics.Histogram(1000);
+
+    private static String host;
+    private static int port;
+    private static boolean text;
+    private static int size;
+    private static int winLength;
+    private static int replays;
+    private static boolean idle;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        host = TicTacToeServer.option(args, "--host", "localhost");
+        port = TicTacToeServer.intOption(args, "--port", 12345);
+        int players = TicTacToeServer.intOption(args, "--players", 1000) & ~1; // чётное число, игроки парами
+        int durationSeconds = TicTacToeServer.intOption(args, "--duration", 30);
+        int rate = TicTacToeServer.intOption(args, "--rate", 2000); // новых соединений в секунду
+        int threads = Math.max(1, TicTacToeServer.intOption(args, "--threads", 2));
+        text = TicTacToeServer.hasFlag(args, "--text");
+        size = TicTacToeServer.intOption(args, "--size", 3);
+        winLength = TicTacToeServer.intOption(args, "--win", Math.min(size, 5));
+        replays = Math.max(1, TicTacToeServer.intOption(args, "--replays", 3));
+        idle = TicTacToeServer.hasFlag(args, "--idle");
+
+        // Пара целиком живёт в одном потоке: хозяин комнаты зовёт гостя без синхронизации
+        Worker[] workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i, Math.max(1, rate / threads));
+        }
+        for (int pair = 0; pair < players / 2; pair++) {
+            workers[pair % threads].pairs.add(new Pair(pair));
+        }
+
+        System.out.println("Starting " + players + " players (" + (text ? "text" : "binary") + ", "
+                + size + "x" + size + ") against " + host + ":" + port + " for " + durationSeconds + "s...");
+        long start = System.nanoTime();
+        long deadline = start + durationSeconds * 1_000_000_000L;
+        for (Worker worker : workers) {
+            worker.start();
+        }
+
+        long lastGames = 0;
+        long lastMoves = 0;
+        int maxConnected = 0;
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(1000);
+            Metrics.Histogram interval = intervalLatency;
+            intervalLatency = new Metrics.Histogram(1000);
+            long totalGames = games.sum();
+            long totalMoves = moves.sum();
+            maxConnected = Math.max(maxConnected, connected.get());
+            System.out.printf("t=%ds connected=%d seated=%d games/s=%d moves/s=%d move p50=%dus p99=%dus failed=%d%n",
+                    (System.nanoTime() - start) / 1_000_000_000L, connected.get(), seated.get(),
+                    totalGames - lastGames, totalMoves - lastMoves,
+                    interval.percentile(0.50), interval.percentile(0.99), failures.sum());
+            lastGames = totalGames;
+            lastMoves = totalMoves;
+        }
+
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Done: sustained %d connections (max %d), %d games in %.1fs = %.0f games/s, %.0f moves/s%n",
+                connected.get(), maxConnected, games.sum(), seconds, games.sum() / seconds, moves.sum() / seconds);
+        if (idle) {
+            System.out.printf("Seated: %d sessions in %d games%n", seated.get(), seated.get() / 2);
+        }
+        System.out.printf("Move latency: p50=%dus p90=%dus p99=%dus max=%dus; failures=%d%n",
+                moveLatency.percentile(0.50), moveLatency.percentile(0.90), moveLatency.percentile(0.99),
+                moveLatency.max(), failures.sum());
+        for (Worker worker : workers) {
+            worker.join(1000);
+        }
+    }
+
+    // Свой селектор и своя доля пар; соединения открываются с темпом rate в секунду
+    private static class Worker extends Thread {
+        private final List<Pair> pairs = new ArrayList<>();
+        private final int rate;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(65536);
+        private final Random random;
+
+        Worker(int id, int rate) {
+            super("load-" + id);
+            this.rate = rate;
+            this.random = new Random(id);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try (Selector selector = Selector.open()) {
+                long start = System.nanoTime();
+                int opened = 0;
+                int total = pairs.size() * 2;
+                while (!isInterrupted()) {
+                    long allowed = Math.min(total, (System.nanoTime() - start) / 1_000_000L * rate / 1000 + 1);
+                    while (opened < allowed) {
+                        Pair pair = pairs.get(opened / 2);
+                        open(selector, opened % 2 == 0 ? pair.host : pair.guest);
+                        opened++;
+                    }
+                    selector.select(100);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        handle(key, (Player) key.attachment());
+                    }
+                }
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+            } catch (IOException e) {
+                System.out.println(getName() + " stopped: " + e);
+            }
+        }
+
+        private void open(Selector selector, Player player) {
+            try {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.connect(new InetSocketAddress(host, port));
+                player.channel = channel;
+                player.random = random;
+                channel.register(selector, SelectionKey.OP_CONNECT, player);
+            } catch (IOException e) {
+                failures.increment();
+            }
+        }
+
+        private void handle(SelectionKey key, Player player) {
+            try {
+                if (key.isConnectable()) {
+                    if (!player.channel.finishConnect()) return;
+                    key.interestOps(SelectionKey.OP_READ);
+                    connected.incrementAndGet();
+                    player.connected();
+                } else if (key.isReadable()) {
+                    readBuffer.clear();
+                    if (player.channel.read(readBuffer) < 0) {
+                        throw new IOException("closed by server");
+                    }
+                    readBuffer.flip();
+                    player.received(readBuffer);
+                }
+            } catch (IOException | RuntimeException e) {
+                failures.increment();
+                if (player.isConnected) connected.decrementAndGet();
+                if (idle && player.state == Player.PLAYING) seated.decrementAndGet();
+                player.isConnected = false;
+                key.cancel();
+                try {
+                    player.channel.close();
+                } catch (IOException ignored) {
+                    // Соединение уже потеряно
+                }
+            }
+        }
+    }
+
+    // Хозяин создаёт комнаты, гость в них входит; оба играют и отвечают на переигровку одинаково
+    private static class Pair {
+        final int id;
+        final Player host;
+        final Player guest;
+        int round;
+        String room;       // комната, которая ждёт гостя
+        boolean guestIdle; // гость в меню и может войти
+
+        Pair(int id) {
+            this.id = id;
+            this.host = new Player(this, true);
+            this.guest = new Player(this, false);
+        }
+
+        void createRoom() throws IOException {
+            room = null;
+            round++;
+            host.create("lg" + id + "r" + round);
+        }
+
+        void roomReady(String name) throws IOException {
+            room = name;
+            joinIfReady();
+        }
+
+        void joinIfReady() throws IOException {
+            if (room != null && guestIdle) {
+                guestIdle = false;
+                guest.join(room);
+                room = null;
+            }
+        }
+    }
+
+    private static class Player {
+        private static final int GREETING = 0;
+        private static final int LOGGING_IN = 1;
+        private static final int CREATING = 2;
+        private static final int IDLE = 3;
+        private static final int PLAYING = 4;
+        private static final int LEAVING = 5;
+
+        private final Pair pair;
+        private final boolean isHost;
+        private final ByteBuffer in = ByteBuffer.allocate(65536);
+        private SocketChannel channel;
+        private Random random;
+        private boolean isConnected;
+        private int state = GREETING;
+        private String creating;
+        private byte[] board = new byte[size * size]; // 0 - пусто, 1 - X, 2 - O
+        private int mark;
+        private long moveSentAt;
+        private int gamesInRoom;
+
+        Player(Pair pair, boolean isHost) {
+            this.pair = pair;
+            this.isHost = isHost;
+        }
+
+        private String username() {
+            return "lg" + (pair.id * 2 + (isHost ? 0 : 1));
+        }
+
+        void connected() throws IOException {
+            isConnected = true;
+            if (text) {
+                state = LOGGING_IN;
+                sendText(username() + "\npw\n");
+            } else {
+                sendText("PROTO BINARY\n");
+            }
+        }
+
+        void received(ByteBuffer data) throws IOException {
+            if (data.remaining() > in.remaining()) throw new IOException("input buffer overflow");
+            in.put(data);
+            in.flip();
+            if (text) {
+                readLines();
+            } else {
+                readFrames();
+            }
+            in.compact();
+        }
+
+        // Дальше - BinaryProtocol
+
+        private void readFrames() throws IOException {
+            if (state == GREETING && !skipGreeting()) return;
+            while (in.remaining() >= BinaryProtocol.HEADER_SIZE) {
+                int type = in.get(in.position()) & 0xFF;
+                int length = in.getShort(in.position() + 1) & 0xFFFF;
+                if (in.remaining() < BinaryProtocol.HEADER_SIZE + length) return;
+                in.position(in.position() + BinaryProtocol.HEADER_SIZE);
+                byte[] payload = new byte[length];
+                in.get(payload);
+                onFrame(type, payload);
+            }
+        }
+
+        // Приветствие приходит текстом ещё до PROTO BINARY: пропускаем его до приглашения ввести имя
+        private boolean skipGreeting() {
+            String line;
+            while ((line = nextLine()) != null) {
+                if (line.startsWith("Enter your username")) {
+                    state = LOGGING_IN;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void onFrame(int type, byte[] payload) throws IOException {
+            switch (type) {
+                case BinaryProtocol.STATUS:
+                    onStatus(payload[0]);
+                    break;
+                case BinaryProtocol.LOGIN_RESULT:
+                    if (payload[0] == BinaryProtocol.LOGIN_REGISTERED || payload[0] == BinaryProtocol.LOGIN_WELCOME_BACK) {
+                        loggedIn();
+                    } else {
+                        throw new IOException("login failed: " + payload[0]);
+                    }
+                    break;
+                case BinaryProtocol.GAME_START:
+                    startGame(payload[2]);
+                    break;
+                case BinaryProtocol.MOVE_MADE:
+                    moveMade(payload[0], payload[1], payload[2]);
+                    break;
+                case BinaryProtocol.TURN:
+                    if (payload[0] == 1) move();
+                    break;
+                case BinaryProtocol.RESULT:
+                    gameOver();
+                    break;
+                case BinaryProtocol.REPLAY_PROMPT:
+                    answerReplay();
+                    break;
+                case BinaryProtocol.TEXT:
+                    if (state == LEAVING && new String(payload, StandardCharsets.UTF_8).equals("Exiting the room.")) {
+                        leftRoom();
+                    }
+                    break;
+                default:
+                    // Поле, часы, токены и текст генератору не нужны
+                    break;
+            }
+        }
+
+        private void onStatus(int status) throws IOException {
+            if (state == LOGGING_IN) {
+                // Ответ на PROTO BINARY
+                send(BinaryProtocol.LOGIN, concat(username(), "pw"));
+            } else if (state == CREATING) {
+                if (status == BinaryProtocol.STATUS_OK) {
+                    created();
+                } else if (status == BinaryProtocol.STATUS_ROOM_EXISTS) {
+                    pair.createRoom();
+                } else {
+                    throw new IOException("CREATE failed: " + status);
+                }
+            } else if (status != BinaryProtocol.STATUS_OK) {
+                failures.increment();
+                moveSentAt = 0;
+            }
+        }
+
+        private static byte[] concat(String name, String password) {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer payload = ByteBuffer.allocate(1 + nameBytes.length + passwordBytes.length);
+            payload.put((byte) nameBytes.length).put(nameBytes).put(passwordBytes);
+            return payload.array();
+        }
+
+        // Дальше - текстовый протокол
+
+        private void readLines() throws IOException {
+            String line;
+            while ((line = nextLine()) != null) {
+                onLine(line);
+            }
+        }
+
+        private String nextLine() {
+            for (int i = in.position(); i < in.limit(); i++) {
+                if (in.get(i) == '\n') {
+                    byte[] bytes = new byte[i - in.position()];
+                    in.get(bytes);
+                    in.get(); // сам перевод строки
+                    return new String(bytes, StandardCharsets.UTF_8);
+                }
+            }
+            return null;
+        }
+
+        private void onLine(String line) throws IOException {
+            if (line.startsWith("MOVE ")) {
+                moveMade(BinaryProtocol.mark(line.charAt(5)), parseCoordinate(line, 1), parseCoordinate(line, 2));
+            } else if (line.startsWith("It is now your turn. You are ")) {
+                mark = BinaryProtocol.mark(line.charAt(line.length() - 2));
+                move();
+            } else if (line.startsWith("Session token: ")) {
+                sendText("DELTA ON\n");
+                loggedIn();
+            } else if (line.startsWith("Another player joined.")) {
+                startGame(0);
+            } else if (line.equals("You win!") || line.equals("You lose.") || line.equals("It's a draw!")) {
+                gameOver();
+            } else if (line.startsWith("Do you want to play again")) {
+                answerReplay();
+            } else if (line.equals("Exiting the room.") && state == LEAVING) {
+                leftRoom();
+            } else if (line.startsWith("Waiting for another player") && state == CREATING) {
+                created();
+            } else if (line.equals("Room already exists.") && state == CREATING) {
+                pair.createRoom();
+            } else if (line.equals("Invalid move. Try again.") || line.equals("Not your turn!")
+                    || line.equals("Room not found.") || line.equals("You are already in a room.")) {
+                failures.increment();
+                moveSentAt = 0;
+            } else if (line.equals("Incorrect password.")) {
+                throw new IOException("login failed");
+            }
+        }
+
+        // "MOVE X 2 3": index 1 - строка, 2 - столбец
+        private static int parseCoordinate(String line, int index) {
+            String[] parts = line.split(" ");
+            return Integer.parseInt(parts[index + 1]);
+        }
+
+        // Общая логика игрока
+
+        private void loggedIn() throws IOException {
+            state = IDLE;
+            if (isHost) {
+                pair.createRoom();
+            } else {
+                pair.guestIdle = true;
+                pair.joinIfReady();
+            }
+        }
+
+        void create(String name) throws IOException {
+            state = CREATING;
+            creating = name;
+            if (text) {
+                sendText("CREATE " + name + " pw " + size + " " + winLength + "\n");
+            } else {
+                ByteBuffer payload = ByteBuffer.allocate(3 + 1 + name.length() + 2);
+                payload.put((byte) size).put((byte) winLength).put((byte) 0);
+                payload.put(concat(name, "pw"));
+                send(BinaryProtocol.CREATE, payload.array());
+            }
+        }
+
+        private void created() throws IOException {
+            state = IDLE;
+            pair.roomReady(creating);
+        }
+
+        void join(String room) throws IOException {
+            if (text) {
+                sendText("JOIN " + room + " pw\n");
+            } else {
+                send(BinaryProtocol.JOIN, concat(room, "pw"));
+            }
+        }
+
+        private void startGame(int myMark) {
+            if (idle && state != PLAYING) seated.incrementAndGet();
+            state = PLAYING;
+            board = new byte[size * size];
+            if (myMark != 0) mark = myMark;
+        }
+
+        private void moveMade(int moveMark, int row, int col) {
+            board[(row - 1) * size + (col - 1)] = (byte) moveMark;
+            if (moveMark == mark && moveSentAt != 0) {
+                long latency = System.nanoTime() - moveSentAt;
+                moveSentAt = 0;
+                moveLatency.record(latency);
+                intervalLatency.record(latency);
+                moves.increment();
+            }
+        }
+
+        // Случайная свободная клетка по своей копии поля; с --idle игрок только сидит за партией
+        private void move() throws IOException {
+            if (idle) return;
+            int free = 0;
+            for (byte cell : board) {
+                if (cell == 0) free++;
+            }
+            if (free == 0) return;
+            int pick = random.nextInt(free);
+            int cell = 0;
+            while (board[cell] != 0 || pick-- > 0) {
+                cell++;
+            }
+            int row = cell / size + 1;
+            int col = cell % size + 1;
+            moveSentAt = System.nanoTime();
+            if (text) {
+                sendText(row + " " + col + "\n");
+            } else {
+                send(BinaryProtocol.MOVE, (byte) row, (byte) col);
+            }
+        }
+
+        private void gameOver() {
+            if (isHost) games.increment();
+        }
+
+        // Оба игрока пары считают партии одинаково, поэтому и отвечают одинаково
+        private void answerReplay() throws IOException {
+            gamesInRoom++;
+            boolean again = gamesInRoom < replays;
+            if (again) {
+                // Новая партия в той же комнате начнётся, когда ответят оба
+                board = new byte[size * size];
+            } else {
+                gamesInRoom = 0;
+                state = LEAVING;
+            }
+            if (text) {
+                sendText(again ? "yes\n" : "no\n");
+            } else {
+                send(BinaryProtocol.REPLAY, (byte) (again ? 1 : 0));
+            }
+        }
+
+        // Из комнаты выпускают, когда ответят оба; только после этого можно в новую
+        private void leftRoom() throws IOException {
+            state = IDLE;
+            if (isHost) {
+                pair.createRoom();
+            } else {
+                pair.guestIdle = true;
+                pair.joinIfReady();
+            }
+        }
+
+        private void send(int type, byte... payload) throws IOException {
+            write(ByteBuffer.wrap(BinaryProtocol.frame(type, payload)));
+        }
+
+        private void sendText(String line) throws IOException {
+            write(StandardCharsets.UTF_8.encode(line));
+        }
+
+        // Команды короткие, а ответов мы не копим, поэтому буфер сокета почти всегда свободен
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
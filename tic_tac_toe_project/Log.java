@@ -0,0 +1,161 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Асинхронный лог вместо System.out.println (синхронизированная запись в консоль прямо из хода).
+// Вызывающий поток только занимает слот в кольцевом буфере и кладёт туда шаблон и аргументы:
+// строка не склеивается, пока её не отформатирует поток лога. Если буфер полон, запись
+// отбрасывается (log.dropped в STATS), а не тормозит игру.
+//
+// Шаблон - как в SLF4J: "Move by {} at {}, {}". Исключение среди аргументов печатается вместе со стеком.
+final class Log {
+    // --no-log: записи не ставятся в очередь совсем (замеры и бенчмарки без вывода в консоль)
+    static volatile boolean enabled = true;
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final class Entry {
+        volatile long sequence; // номер записи + 1, когда слот заполнен
+        String format;
+        Object a;
+        Object b;
+        Object c;
+        Object d;
+    }
+
+    private static final Entry[] ring = new Entry[CAPACITY];
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed; // пишет только поток лога
+    private static final LongAdder dropped = Metrics.counter("log.dropped");
+    private static final Writer out = new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Entry();
+        }
+        writer = new Thread(Log::run, "log");
+        writer.setDaemon(true);
+        writer.start();
+        // Дописываем очередь при остановке процесса
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::awaitDrained));
+    }
+
+    private Log() {
+    }
+
+    static void info(String message) {
+        publish(message, null, null, null, null);
+    }
+
+    static void info(String format, Object a) {
+        publish(format, a, null, null, null);
+    }
+
+    static void info(String format, Object a, Object b) {
+        publish(format, a, b, null, null);
+    }
+
+    static void info(String format, Object a, Object b, Object c) {
+        publish(format, a, b, c, null);
+    }
+
+    static void info(String format, Object a, Object b, Object c, Object d) {
+        publish(format, a, b, c, d);
+    }
+
+    private static void publish(String format, Object a, Object b, Object c, Object d) {
+        if (!enabled) return;
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        Entry entry = ring[(int) (sequence & MASK)];
+        entry.format = format;
+        entry.a = a;
+        entry.b = b;
+        entry.c = c;
+        entry.d = d;
+        entry.sequence = sequence + 1;
+    }
+
+    private static void run() {
+        StringBuilder line = new StringBuilder(256);
+        long next = 0;
+        while (true) {
+            Entry entry = ring[(int) (next & MASK)];
+            if (entry.sequence != next + 1) {
+                flush();
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            line.setLength(0);
+            format(line, entry.format, entry.a, entry.b, entry.c, entry.d);
+            entry.format = null;
+            entry.a = entry.b = entry.c = entry.d = null;
+            next++;
+            consumed = next;
+            try {
+                out.append(line).append('\n');
+            } catch (IOException e) {
+                // Писать ошибку лога некуда
+            }
+        }
+    }
+
+    private static void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // Писать ошибку лога некуда
+        }
+    }
+
+    // Вызывает и остановка сервера последним делом: свои хуки JVM запускает одновременно
+    static void awaitDrained() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        while (consumed < claimed.get() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+        // Поток лога сбрасывает буфер, как только очередь пуста
+        LockSupport.parkNanos(2 * IDLE_PARK_NANOS);
+    }
+
+    private static void format(StringBuilder line, String format, Object a, Object b, Object c, Object d) {
+        int arg = 0;
+        int from = 0;
+        while (true) {
+            int at = format.indexOf("{}", from);
+            if (at < 0 || arg == 4) break;
+            line.append(format, from, at);
+            line.append(arg == 0 ? a : arg == 1 ? b : arg == 2 ? c : d);
+            arg++;
+            from = at + 2;
+        }
+        line.append(format, from, format.length());
+        for (Object value : new Object[] {a, b, c, d}) {
+            if (value instanceof Throwable) {
+                StringWriter trace = new StringWriter();
+                ((Throwable) value).printStackTrace(new PrintWriter(trace));
+                line.append('\n').append(trace.toString().stripTrailing());
+            }
+        }
+    }
+}
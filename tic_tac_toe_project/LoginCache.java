@@ -0,0 +1,77 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Недавно проверенные логины: после рестарта клиенты переподключаются разом, и без кэша
+// каждый повторный вход стоил бы полного PBKDF2. Храним не пароль, а быстрый SHA-256 от
+// соли записи и пароля. LRU разбит на полосы по хешу имени, чтобы входы не ждали друг друга.
+class LoginCache {
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    LoginCache(int capacity) {
+        int perStripe = Math.max(1, capacity / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(capacity > 0 ? perStripe : 0);
+        }
+    }
+
+    boolean matches(String username, byte[] salt, String password) {
+        Stripe stripe = stripeFor(username);
+        byte[] known;
+        stripe.lock.lock();
+        try {
+            known = stripe.entries.get(username);
+        } finally {
+            stripe.lock.unlock();
+        }
+        return known != null && MessageDigest.isEqual(known, digest(salt, password));
+    }
+
+    void remember(String username, byte[] salt, String password) {
+        Stripe stripe = stripeFor(username);
+        if (stripe.capacity == 0) return;
+        byte[] value = digest(salt, password);
+        stripe.lock.lock();
+        try {
+            stripe.entries.put(username, value);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private Stripe stripeFor(String username) {
+        return stripes[Math.floorMod(username.hashCode(), STRIPES)];
+    }
+
+    private static byte[] digest(byte[] salt, String password) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(salt);
+            return sha.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final int capacity;
+        final Map<String, byte[]> entries;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            // accessOrder = true: самый давно использованный вход вытесняется первым
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                    return size() > Stripe.this.capacity;
+                }
+            };
+        }
+    }
+}
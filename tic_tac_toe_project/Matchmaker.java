@@ -0,0 +1,143 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+// Автоматический подбор соперника (QUICKPLAY). Постановка в очередь - одна вставка
+// в lock-free очередь; пары составляет отдельный поток раз в PASS_INTERVAL_MS за один проход:
+// сортирует ожидающих по рейтингу и сводит соседей, если разница укладывается в окно,
+// которое расширяется, пока игрок ждёт.
+final class Matchmaker {
+    private static final long PASS_INTERVAL_MS = 100;
+    private static final int BASE_WINDOW = 50;
+    private static final int WINDOW_GROWTH_PER_SECOND = 25;
+    private static final int MAX_WINDOW = 800;
+
+    // Заявка игрока. Отмена и подбор пары меняют состояние под монитором заявки, поэтому игрок
+    // не может одновременно и сесть в найденную игру, и создать свою комнату. Пару поток подбора
+    // забирает под мониторами обеих заявок сразу: промежуточного состояния, в котором отмена
+    // получила бы отказ, а заявка потом вернулась бы в очередь, нет.
+    static final class Ticket {
+        private static final int WAITING = 0;
+        private static final int MATCHED = 1;
+        private static final int CANCELLED = 2;
+
+        final TicTacToeServer.ClientHandler player;
+        final int rating;
+        private final long enqueuedAt = System.nanoTime();
+        private volatile int state = WAITING; // меняется под this
+
+        Ticket(TicTacToeServer.ClientHandler player, int rating) {
+            this.player = player;
+            this.rating = rating;
+        }
+
+        // false - пара уже найдена и игрок вот-вот окажется в комнате
+        synchronized boolean cancel() {
+            if (state == WAITING) state = CANCELLED;
+            return state == CANCELLED;
+        }
+
+        private boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        // Обе заявки - в пару или ни одна. Мониторы берёт только поток подбора (отмена держит
+        // один, свой), так что порядок захвата не важен
+        private static boolean claimPair(Ticket first, Ticket second) {
+            synchronized (first) {
+                synchronized (second) {
+                    if (first.state != WAITING || second.state != WAITING) return false;
+                    first.state = MATCHED;
+                    second.state = MATCHED;
+                    return true;
+                }
+            }
+        }
+
+        private int window(long now) {
+            long waitedSeconds = TimeUnit.NANOSECONDS.toSeconds(now - enqueuedAt);
+            return (int) Math.min(MAX_WINDOW, BASE_WINDOW + waitedSeconds * WINDOW_GROWTH_PER_SECOND);
+        }
+    }
+
+    private final Queue<Ticket> incoming = new ConcurrentLinkedQueue<>();
+    private List<Ticket> waiting = new ArrayList<>(); // только поток подбора
+    private final BiConsumer<TicTacToeServer.ClientHandler, TicTacToeServer.ClientHandler> onMatch;
+    private volatile int waitingCount;
+
+    Matchmaker(BiConsumer<TicTacToeServer.ClientHandler, TicTacToeServer.ClientHandler> onMatch) {
+        this.onMatch = onMatch;
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "matchmaker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::pass, PASS_INTERVAL_MS, PASS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    Ticket enqueue(TicTacToeServer.ClientHandler player, int rating) {
+        Ticket ticket = new Ticket(player, rating);
+        incoming.add(ticket);
+        return ticket;
+    }
+
+    // Сколько игроков ждало пару на последнем проходе
+    int waitingCount() {
+        return waitingCount;
+    }
+
+    private void pass() {
+        try {
+            Ticket ticket;
+            while ((ticket = incoming.poll()) != null) {
+                waiting.add(ticket);
+            }
+            waiting.removeIf(Ticket::isCancelled);
+            if (waiting.size() >= 2) {
+                match();
+            }
+            waitingCount = waiting.size();
+        } catch (RuntimeException e) {
+            // Исключение остановило бы scheduleWithFixedDelay насовсем
+            Log.info("Matchmaker error: {}", e);
+        } finally {
+            Outbound.flushDirty();
+        }
+    }
+
+    private void match() {
+        waiting.sort(Comparator.comparingInt(t -> t.rating));
+        long now = System.nanoTime();
+        List<Ticket> left = new ArrayList<>();
+        List<Ticket> pairs = new ArrayList<>();
+        int i = 0;
+        while (i < waiting.size()) {
+            Ticket first = waiting.get(i);
+            if (i + 1 < waiting.size()) {
+                Ticket second = waiting.get(i + 1);
+                int window = Math.max(first.window(now), second.window(now));
+                if (second.rating - first.rating <= window && Ticket.claimPair(first, second)) {
+                    pairs.add(first);
+                    pairs.add(second);
+                    i += 2;
+                    continue;
+                }
+            }
+            if (!first.isCancelled()) {
+                left.add(first);
+            }
+            i++;
+        }
+        waiting = left;
+
+        for (int p = 0; p < pairs.size(); p += 2) {
+            onMatch.accept(pairs.get(p).player, pairs.get(p + 1).player);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+// Метрики сервера. Счётчики - LongAdder, гистограммы - массив LongAdder по логарифмическим
+// корзинам: запись из горячего пути - пара инкрементов без блокировок и без аллокаций.
+// Читаются метрики командой STATS, по HTTP (--stats-port) и через JMX (TicTacToe:type=Metrics).
+final class Metrics {
+    // --no-metrics: замеры в горячем пути выключены (для сравнения накладных расходов)
+    static volatile boolean enabled = true;
+
+    private static final Map<String, LongSupplier> values = new ConcurrentSkipListMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private static final List<Rate> rates = new ArrayList<>(); // только при старте и в потоке колеса
+
+    static final LongAdder CONNECTIONS_OPENED = counter("connections.opened");
+    static final LongAdder CONNECTIONS_CLOSED = counter("connections.closed");
+    static final LongAdder SLOW_CLIENT_DISCONNECTS = counter("disconnects.slow_client");
+    static final LongAdder ABANDONED_SEATS = counter("disconnects.abandoned");
+    static final LongAdder LOGINS = counter("logins");
+    static final LongAdder LOGIN_FAILURES = counter("logins.failed");
+    static final LongAdder MOVES = counter("moves");
+    static final LongAdder GAMES_STARTED = counter("games.started");
+    static final LongAdder GAMES_ACTIVE = counter("games.active");
+    static final LongAdder OUTBOUND_BYTES = counter("outbound.queued_bytes");
+
+    static final Histogram MOVE_LATENCY = histogram("move.latency_us", 1000);
+    static final Histogram LOGIN_LATENCY = histogram("login.latency_us", 1000);
+    static final Histogram OUTBOUND_DEPTH = histogram("outbound.depth_bytes", 1);
+
+    static {
+        gauge("connections.active", () -> CONNECTIONS_OPENED.sum() - CONNECTIONS_CLOSED.sum());
+        rate("moves.per_sec", MOVES);
+        rate("logins.per_sec", LOGINS);
+    }
+
+    private Metrics() {
+    }
+
+    static LongAdder counter(String name) {
+        LongAdder counter = new LongAdder();
+        values.put(name, counter::sum);
+        return counter;
+    }
+
+    static void gauge(String name, LongSupplier value) {
+        values.put(name, value);
+    }
+
+    static Histogram histogram(String name, long unit) {
+        Histogram histogram = new Histogram(unit);
+        histograms.put(name, histogram);
+        return histogram;
+    }
+
+    private static void rate(String name, LongAdder counter) {
+        Rate rate = new Rate(counter);
+        rates.add(rate);
+        values.put(name, () -> rate.perSecond);
+    }
+
+    // Отметка времени для замера; 0, если метрики выключены
+    static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    static void recordSince(Histogram histogram, long startNanos) {
+        if (startNanos != 0) histogram.record(System.nanoTime() - startNanos);
+    }
+
+    // Скорости (moves.per_sec и т.п.) пересчитываются раз в секунду на колесе таймаутов
+    static void startRates(HashedWheelTimer timer) {
+        timer.schedule(() -> {
+            for (Rate rate : rates) {
+                rate.sample();
+            }
+            startRates(timer);
+        }, 1, TimeUnit.SECONDS);
+    }
+
+    // "имя значение" по строке; у гистограмм - count, p50, p90, p99 и max
+    static String render() {
+        StringBuilder text = new StringBuilder();
+        snapshot().forEach((name, value) -> text.append(name).append(' ').append(value).append('\n'));
+        return text.toString();
+    }
+
+    static Map<String, Long> snapshot() {
+        Map<String, Long> result = new ConcurrentSkipListMap<>();
+        values.forEach((name, value) -> result.put(name, value.getAsLong()));
+        histograms.forEach((name, histogram) -> {
+            result.put(name + ".count", histogram.count());
+            result.put(name + ".p50", histogram.percentile(0.50));
+            result.put(name + ".p90", histogram.percentile(0.90));
+            result.put(name + ".p99", histogram.percentile(0.99));
+            result.put(name + ".max", histogram.max());
+        });
+        return result;
+    }
+
+    static void registerJmx() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Jmx(), new ObjectName("TicTacToe:type=Metrics"));
+        } catch (Exception e) {
+            Log.info("JMX registration failed: {}", e);
+        }
+    }
+
+    // Гистограмма с точностью около 25%: на каждую степень двойки - 4 корзины
+    static final class Histogram {
+        private static final int SUB_BUCKETS = 4;
+        private final LongAdder[] buckets = new LongAdder[64 * SUB_BUCKETS];
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        private final long unit; // делитель при выводе: нс -> мкс и т.п.
+
+        Histogram(long unit) {
+            this.unit = unit;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            buckets[index(value)].increment();
+            // Большинство замеров меньше максимума: обходимся чтением без CAS
+            if (value > max.get()) max.accumulate(value);
+        }
+
+        long count() {
+            long total = 0;
+            for (LongAdder bucket : buckets) {
+                total += bucket.sum();
+            }
+            return total;
+        }
+
+        long max() {
+            return max.get() / unit;
+        }
+
+        // Верхняя граница корзины, в которую попал перцентиль
+        long percentile(double fraction) {
+            long total = count();
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get()) / unit;
+                }
+            }
+            return max();
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) ((value >>> (exponent - 2)) & (SUB_BUCKETS - 1));
+            return (exponent - 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int exponent = index / SUB_BUCKETS + 1;
+            long sub = index % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+        }
+    }
+
+    private static final class Rate {
+        private final LongAdder counter;
+        private long previous;
+        private volatile long perSecond;
+
+        Rate(LongAdder counter) {
+            this.counter = counter;
+        }
+
+        void sample() {
+            long now = counter.sum();
+            perSecond = now - previous;
+            previous = now;
+        }
+    }
+
+    // Все метрики - атрибуты одного MBean, только для чтения
+    private static final class Jmx implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> snapshot = snapshot();
+            AttributeList list = new AttributeList();
+            for (String name : attributes) {
+                Long value = snapshot.get(name);
+                if (value != null) list.add(new Attribute(name, value));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : snapshot().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Tic-Tac-Toe server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
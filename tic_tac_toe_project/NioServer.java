@@ -0,0 +1,540 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Неблокирующий сервер: N потоков-селекторов обслуживают всех клиентов,
+// каждое соединение закреплено за одним event loop.
+//
+// С флагом --shards event loop'ы становятся шардами: комната принадлежит шарду, на котором
+// её создали, и соединения её игроков переезжают на этот шард (JOIN, QUICKPLAY, RESUME).
+// Тогда вся логика комнаты и игры идёт в одном потоке, и их блокировки ничего не делают.
+// Действия с чужой комнатой (таймауты, ход бота, зрители) передаются шарду задачей.
+class NioServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int WRITE_BATCH_SIZE = 64;
+
+    private final int port;
+    private final boolean sharded;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    NioServer(int port, int loopCount, boolean sharded) {
+        this.port = port;
+        this.sharded = sharded;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    // Шард текущего потока; null - не event loop шардированного сервера
+    static Executor currentShard() {
+        Thread thread = Thread.currentThread();
+        return thread instanceof EventLoop && ((EventLoop) thread).sharded ? (EventLoop) thread : null;
+    }
+
+    // Шард, на котором сейчас обслуживается соединение; null - без шардов
+    static Executor shardOf(Closeable connection) {
+        if (!(connection instanceof Connection)) return null;
+        EventLoop loop = ((Connection) connection).loop;
+        return loop.sharded ? loop : null;
+    }
+
+    // Выполнить действие в потоке, который сейчас обслуживает соединение. false - мы уже в нём
+    // (или шардов нет), действие выполняется сразу. Задача сама проверяет это снова: соединение
+    // могло переехать, пока она ждала в очереди
+    static boolean runOnOwner(Closeable connection, Runnable task) {
+        if (!(connection instanceof Connection)) return false;
+        EventLoop loop = ((Connection) connection).loop;
+        if (!loop.sharded || Thread.currentThread() == loop) return false;
+        loop.execute(task);
+        return true;
+    }
+
+    // Адрес клиента NIO-соединения; null - не NIO
+    static InetAddress addressOf(Closeable connection) {
+        return connection instanceof Connection ? ((Connection) connection).address : null;
+    }
+
+    // Блокировка для состояния комнаты: обычная без шардов, пустая - если комнату трогает только её шард
+    static Lock lockFor(Executor shard) {
+        return shard == null ? new ReentrantLock() : new ShardLock(shard);
+    }
+
+    // Продолжить действие на шарде shard вместе с соединением. false - уже на нём (или шардов нет),
+    // действие выполняется сразу. true - then выполнится на шарде, когда соединение туда переедет
+    // (соединения без сокета, как бот или место отключившегося игрока, не переезжают: только задача).
+    static boolean moveTo(Closeable connection, Executor shard, Runnable then) {
+        if (shard == null) return false;
+        if (connection instanceof Connection) {
+            return ((Connection) connection).moveTo((EventLoop) shard, then);
+        }
+        if (currentShard() == shard) return false;
+        shard.execute(then);
+        return true;
+    }
+
+    // Долгая работа соединения (PBKDF2 при входе) вне event loop: разбор его ввода встаёт,
+    // work идёт на пуле, then - снова в потоке соединения, после него - остаток ввода.
+    // false - соединение не NIO или мы не в его loop (блокирующий режим: поток и так свой)
+    static boolean offload(Closeable connection, Executor pool, Runnable work, Runnable then) {
+        return connection instanceof Connection && ((Connection) connection).offload(pool, work, then);
+    }
+
+    // listening вызывается, когда порт уже слушается (замер времени старта)
+    void run(Runnable listening) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i, sharded);
+            loops[i].start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), Admission.backlog());
+            Log.info("Server is running on port: {} (nio, {} {})", port, loops.length, sharded ? "shards" : "event loops");
+            listening.run();
+            while (true) {
+                // Accept оставляем блокирующим в главном потоке, каналы раздаём по кругу
+                SocketChannel channel = serverChannel.accept();
+                // Лишнее соединение закрывается до того, как попадёт в event loop
+                InetAddress address = channel.socket().getInetAddress();
+                if (!Admission.tryAdmit(address)) {
+                    Admission.reject(channel);
+                    continue;
+                }
+                try {
+                    // Вывод и так собирается в одну запись на обработку; Nagle только задерживал бы ход
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    Log.info("Connection error: {}", e.getMessage());
+                    Admission.release(address);
+                    channel.close();
+                    continue;
+                }
+                EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                loop.register(channel);
+            }
+        }
+    }
+
+    // Пустая блокировка: комнату трогает только поток её шарда (с -ea это проверяется)
+    private static final class ShardLock implements Lock {
+        private final Executor shard;
+
+        ShardLock(Executor shard) {
+            this.shard = shard;
+        }
+
+        @Override
+        public void lock() {
+            assert Thread.currentThread() == shard : "room state touched outside its shard: " + Thread.currentThread();
+        }
+
+        @Override
+        public void lockInterruptibly() {
+            lock();
+        }
+
+        @Override
+        public boolean tryLock() {
+            lock();
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) {
+            lock();
+            return true;
+        }
+
+        @Override
+        public void unlock() {
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class EventLoop extends Thread implements Executor {
+        private final boolean sharded;
+        private final Selector selector;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> arrivals = new ConcurrentLinkedQueue<>(); // переехали с другого шарда
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+
+        EventLoop(int index, boolean sharded) throws IOException {
+            super((sharded ? "shard-" : "nio-loop-") + index);
+            this.sharded = sharded;
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        // Задача для этого шарда: выполняется в его потоке, вывод сбрасывается после каждой
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void adopt(Connection connection) {
+            arrivals.add(connection);
+            selector.wakeup();
+        }
+
+        void requestWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    registerNewChannels();
+                    registerArrivals();
+                    runTasks();
+                    processPendingWrites();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection connection = (Connection) key.attachment();
+                        // Ключ от прежней регистрации: соединение уехало на другой шард (или уже вернулось)
+                        if (key != connection.key) continue;
+                        if (!key.isValid()) {
+                            connection.closeNow();
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                connection.read(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write(writeBatch);
+                            }
+                        } catch (RuntimeException e) {
+                            // Ошибка в разборе ввода или в логике игры стоит только этого соединения,
+                            // а не всего loop'а с его соединениями и комнатами
+                            Log.info("Connection failed: {}", e);
+                            connection.closeNow();
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.info("Event loop error: {}", e.getMessage());
+                } catch (RuntimeException e) {
+                    Log.info("Event loop error: {}", e);
+                }
+            }
+        }
+
+        private void registerNewChannels() {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.handler.onConnect();
+                    Outbound.flushDirty();
+                } catch (IOException e) {
+                    Log.info("Connection error: {}", e.getMessage());
+                    Admission.release(channel.socket().getInetAddress());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void registerArrivals() {
+            Connection connection;
+            while ((connection = arrivals.poll()) != null) {
+                try {
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (CancelledKeyException e) {
+                    // Соединение вернулось раньше, чем этот селектор снял его старый ключ
+                    try {
+                        selector.selectNow();
+                        connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    } catch (IOException retry) {
+                        connection.closeNow();
+                        continue;
+                    }
+                } catch (IOException e) {
+                    connection.closeNow();
+                    continue;
+                }
+                connection.arrived();
+                // Всё, что накопилось в очереди за время переезда
+                connection.write(writeBatch);
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.info("Shard task failed: {}", e);
+                }
+                Outbound.flushDirty();
+            }
+        }
+
+        private void processPendingWrites() {
+            Connection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                connection.write(writeBatch);
+            }
+        }
+    }
+
+    // Состояние одного соединения: нарезка входящих команд и исходящая очередь
+    private static class Connection implements Closeable, Outbound.Transport {
+        private volatile EventLoop loop; // меняется только потоком текущего loop при переезде
+        private final SocketChannel channel;
+        private final InetAddress address; // для Admission.release при закрытии
+        private final Outbound outbound;
+        private final TicTacToeServer.ClientHandler handler;
+        private SelectionKey key;
+        private final InputFramer input;
+        private volatile boolean closeRequested;
+        private volatile boolean abortRequested;
+        private volatile boolean closed;
+        // Переезд на другой шард, пока идёт разбор ввода: доделывается, когда разбор остановится
+        private boolean feeding;
+        private EventLoop movingTo;
+        private Runnable afterMove;
+        private ByteBuffer carry; // недоразобранный ввод, который дочитает новый шард (или loop после offload)
+        private boolean parked; // ждём offload: ввод не читаем и не разбираем
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.address = channel.socket().getInetAddress();
+            this.outbound = new Outbound(this);
+            this.handler = new TicTacToeServer.ClientHandler(outbound, this);
+            this.input = new InputFramer(handler);
+        }
+
+        void read(ByteBuffer buffer) {
+            buffer.clear();
+            int n;
+            try {
+                n = channel.read(buffer);
+            } catch (IOException e) {
+                Log.info("Connection error: {}", e.getMessage());
+                closeNow();
+                return;
+            }
+            if (n < 0) {
+                // Клиент отключился
+                closeNow();
+                return;
+            }
+
+            buffer.flip();
+            feed(buffer);
+            // Ответы на все команды из этого чтения (и сообщения соперникам) уходят одной пачкой
+            Outbound.flushDirty();
+        }
+
+        private void feed(ByteBuffer buffer) {
+            feeding = true;
+            boolean ok = input.feed(buffer);
+            feeding = false;
+            if (!ok) {
+                closeNow();
+            } else if (movingTo != null) {
+                // Команда попросила переезд: остаток ввода разберёт уже новый шард
+                if (buffer.hasRemaining()) {
+                    carry = ByteBuffer.allocate(buffer.remaining());
+                    carry.put(buffer).flip();
+                }
+                leave();
+            } else if (parked && buffer.hasRemaining()) {
+                // Буфер чтения общий для loop'а: остаток копируем до конца offload
+                carry = ByteBuffer.allocate(buffer.remaining());
+                carry.put(buffer).flip();
+            }
+        }
+
+        boolean offload(Executor pool, Runnable work, Runnable then) {
+            if (Thread.currentThread() != loop || key == null || closed) return false;
+            parked = true;
+            if (feeding) input.suspend();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            EventLoop owner = loop;
+            pool.execute(() -> {
+                boolean done = false;
+                try {
+                    work.run();
+                    done = true;
+                } catch (RuntimeException e) {
+                    Log.info("Offloaded task failed: {}", e);
+                }
+                owner.execute(done ? () -> unpark(then) : () -> unpark(this::closeNow));
+            });
+            return true;
+        }
+
+        private void unpark(Runnable then) {
+            parked = false;
+            if (closed) return; // отключили, пока шла работа: результат никому не нужен
+            try {
+                then.run();
+            } catch (RuntimeException e) {
+                Log.info("Connection failed: {}", e);
+                closeNow();
+                return;
+            }
+            if (closed || key == null) return;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            ByteBuffer rest = carry;
+            if (rest != null) {
+                carry = null;
+                feed(rest);
+            }
+            Outbound.flushDirty();
+        }
+
+        // Вызывается в потоке текущего loop или передаётся ему задачей
+        boolean moveTo(EventLoop target, Runnable then) {
+            EventLoop current = loop;
+            if (Thread.currentThread() != current) {
+                current.execute(() -> {
+                    if (!moveTo(target, then)) then.run();
+                });
+                return true;
+            }
+            if (current == target || closed) return false;
+            movingTo = target;
+            afterMove = then;
+            if (feeding) {
+                input.suspend();
+            } else {
+                leave();
+            }
+            return true;
+        }
+
+        private void leave() {
+            EventLoop target = movingTo;
+            movingTo = null;
+            Outbound.flushDirty();
+            key.cancel();
+            key = null;
+            // С этого момента запись и закрытие просят уже новый loop
+            loop = target;
+            target.adopt(this);
+        }
+
+        // Первая обработка на новом шарде: отложенное действие, затем остаток ввода
+        void arrived() {
+            Runnable then = afterMove;
+            afterMove = null;
+            if (then != null) {
+                try {
+                    then.run();
+                } catch (RuntimeException e) {
+                    Log.info("Shard task failed: {}", e);
+                }
+            }
+            // Если действие снова увезло соединение, остаток дочитает следующий шард
+            ByteBuffer rest = carry;
+            if (rest != null && !closed && loop == Thread.currentThread()) {
+                carry = null;
+                feed(rest);
+            }
+            Outbound.flushDirty();
+        }
+
+        // Все буферы из очереди пишутся одним gathering-вызовом, пока сокет их принимает
+        void write(ByteBuffer[] batch) {
+            if (closed) return;
+            if (Thread.currentThread() != loop) {
+                // Запрос пришёл в старый loop уже после переезда
+                loop.requestWrite(this);
+                return;
+            }
+            if (key == null) return; // ещё переезжает; новый loop допишет очередь сам
+            if (abortRequested) {
+                closeNow();
+                return;
+            }
+            try {
+                int count;
+                while ((count = outbound.gather(batch)) > 0) {
+                    channel.write(batch, 0, count);
+                    if (!outbound.release(batch, count)) {
+                        // Сокет заполнен, ждём OP_WRITE
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closeRequested) {
+                    closeNow();
+                }
+            } catch (IOException e) {
+                Log.info("Connection error: {}", e.getMessage());
+                closeNow();
+            }
+        }
+
+        @Override
+        public void requestDrain() {
+            if (!closed) {
+                loop.requestWrite(this);
+            }
+        }
+
+        // Очередь переполнена: закрываем, не дописывая
+        @Override
+        public void abort() {
+            abortRequested = true;
+            loop.requestWrite(this);
+        }
+
+        // Закрытие по команде клиента: сначала досылаем очередь, потом закрываем
+        @Override
+        public void close() {
+            closeRequested = true;
+            loop.requestWrite(this);
+        }
+
+        void closeNow() {
+            if (closed) return;
+            closed = true;
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.info("Failed to close socket: {}", e.getMessage());
+            }
+            Admission.release(address, handler.isClusterSession());
+            handler.onDisconnect();
+            Outbound.flushDirty();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Исходящая очередь соединения. Всё, что написано клиенту за одну единицу работы
+// (обработка входящих строк, ход бота, отключение соседа), копится и уходит одной записью
+// при Outbound.flushDirty(). Очередь ограничена: клиент, который не успевает читать,
+// отключается, а не тормозит того, кто ему пишет.
+//
+// Правило: каждый поток, который пишет клиентам, в конце своей единицы работы вызывает flushDirty().
+// Туда же можно отложить действие, которое должно идти после всего вывода этой единицы (defer).
+class Outbound {
+    // Как доставить данные из очереди в сокет
+    interface Transport {
+        void requestDrain();
+
+        void abort();
+    }
+
+    private static volatile int limitBytes = 256 * 1024;
+
+    // Соединения, в которые текущий поток писал с последнего flushDirty()
+    private static final ThreadLocal<Set<Outbound>> DIRTY = ThreadLocal.withInitial(LinkedHashSet::new);
+    // Действия, отложенные до flushDirty() текущего потока
+    private static final ThreadLocal<List<Runnable>> DEFERRED = ThreadLocal.withInitial(ArrayList::new);
+
+    private final Transport transport;
+    private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final ByteArrayOutputStream pendingText = new ByteArrayOutputStream();
+    private final PrintWriter writer;
+    private final ByteArrayOutputStream textLine = new ByteArrayOutputStream(); // строка без '\n' для framedText
+    private boolean framedText; // под pendingText
+    private volatile boolean closed;
+
+    Outbound(Transport transport) {
+        this.transport = transport;
+        this.writer = new TrackingWriter(new OutputStreamWriter(new PendingTextStream(), StandardCharsets.UTF_8));
+    }
+
+    static void setLimitBytes(int limit) {
+        limitBytes = limit;
+    }
+
+    // Исходящая очередь для игрока без соединения (бота): всё выбрасывается
+    static Outbound discarding() {
+        Outbound[] self = new Outbound[1];
+        self[0] = new Outbound(new Transport() {
+            @Override
+            public void requestDrain() {
+                while (self[0].poll() != null) {
+                }
+            }
+
+            @Override
+            public void abort() {
+            }
+        });
+        return self[0];
+    }
+
+    static void defer(Runnable action) {
+        DEFERRED.get().add(action);
+    }
+
+    static void flushDirty() {
+        List<Runnable> deferred = DEFERRED.get();
+        if (!deferred.isEmpty()) {
+            // Действие само может что-то отложить: оно выполнится следующим кругом
+            List<Runnable> actions = new ArrayList<>(deferred);
+            deferred.clear();
+            actions.forEach(Runnable::run);
+        }
+        Set<Outbound> dirty = DIRTY.get();
+        if (dirty.isEmpty()) return;
+        for (Outbound outbound : dirty) {
+            outbound.flush();
+        }
+        dirty.clear();
+    }
+
+    PrintWriter writer() {
+        return writer;
+    }
+
+    // После PROTO BINARY каждая строка текста уходит клиенту отдельным кадром BinaryProtocol.TEXT
+    void setFramedText(boolean framed) {
+        writer.flush();
+        synchronized (pendingText) {
+            framedText = framed;
+        }
+    }
+
+    // Готовый (возможно, общий для многих клиентов) массив байтов, без копирования
+    void send(byte[] payload) {
+        writer.flush();
+        synchronized (pendingText) {
+            movePendingText();
+            enqueue(ByteBuffer.wrap(payload));
+        }
+        DIRTY.get().add(this);
+    }
+
+    void flush() {
+        writer.flush();
+        synchronized (pendingText) {
+            movePendingText();
+        }
+        if (!queue.isEmpty()) {
+            if (Metrics.enabled) Metrics.OUTBOUND_DEPTH.record(queuedBytes.get());
+            transport.requestDrain();
+        }
+    }
+
+    long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    // Дальше - для транспорта; очередь разбирает только один поток
+
+    ByteBuffer poll() {
+        ByteBuffer buffer = queue.poll();
+        if (buffer != null) {
+            queuedBytes.addAndGet(-buffer.limit());
+            Metrics.OUTBOUND_BYTES.add(-buffer.limit());
+        }
+        return buffer;
+    }
+
+    // Складывает в batch до batch.length буферов из головы очереди для gathering-записи
+    int gather(ByteBuffer[] batch) {
+        int count = 0;
+        for (ByteBuffer buffer : queue) {
+            if (count == batch.length) break;
+            batch[count++] = buffer;
+        }
+        return count;
+    }
+
+    // Убирает из головы очереди полностью записанные буферы; true, если записано всё из batch
+    boolean release(ByteBuffer[] batch, int count) {
+        boolean all = true;
+        for (int i = 0; i < count; i++) {
+            if (all && !batch[i].hasRemaining()) {
+                poll();
+            } else {
+                all = false;
+            }
+            batch[i] = null;
+        }
+        return all;
+    }
+
+    // Вызывается под pendingText; writer.flush() делается до взятия блокировки,
+    // иначе порядок блокировок с println из другого потока был бы обратным
+    private void movePendingText() {
+        if (pendingText.size() == 0) return;
+        enqueue(ByteBuffer.wrap(pendingText.toByteArray()));
+        pendingText.reset();
+    }
+
+    private void enqueue(ByteBuffer buffer) {
+        if (closed) return;
+        if (queuedBytes.addAndGet(buffer.limit()) > limitBytes) {
+            closed = true;
+            queuedBytes.addAndGet(-buffer.limit());
+            // poll(), а не clear(): так счётчики остаются верными, даже если транспорт сейчас пишет
+            while (poll() != null) {
+            }
+            Metrics.SLOW_CLIENT_DISCONNECTS.increment();
+            Log.info("Outbound queue overflow, disconnecting slow client.");
+            transport.abort();
+            return;
+        }
+        Metrics.OUTBOUND_BYTES.add(buffer.limit());
+        queue.add(buffer);
+    }
+
+    private class PendingTextStream extends OutputStream {
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            synchronized (pendingText) {
+                if (framedText) {
+                    writeFramed(b, off, len);
+                } else {
+                    pendingText.write(b, off, len);
+                }
+                // Не даём тексту копиться мимо лимита, если flushDirty() долго не вызывается
+                if (pendingText.size() > limitBytes / 4) {
+                    movePendingText();
+                }
+            }
+        }
+
+        private void writeFramed(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n' || textLine.size() == BinaryProtocol.MAX_PAYLOAD) {
+                    pendingText.write(BinaryProtocol.TEXT);
+                    pendingText.write(textLine.size() >>> 8);
+                    pendingText.write(textLine.size());
+                    pendingText.write(textLine.toByteArray(), 0, textLine.size());
+                    textLine.reset();
+                }
+                if (b[i] != '\n' && b[i] != '\r') {
+                    textLine.write(b[i]);
+                }
+            }
+        }
+    }
+
+    // PrintWriter без autoflush, который помечает соединение как требующее отправки
+    private class TrackingWriter extends PrintWriter {
+        TrackingWriter(Writer out) {
+            super(out, false);
+        }
+
+        @Override
+        public void write(int c) {
+            super.write(c);
+            DIRTY.get().add(Outbound.this);
+        }
+
+        @Override
+        public void write(char[] buf, int off, int len) {
+            super.write(buf, off, len);
+            DIRTY.get().add(Outbound.this);
+        }
+
+        @Override
+        public void write(String s, int off, int len) {
+            super.write(s, off, len);
+            DIRTY.get().add(Outbound.this);
+        }
+    }
+
+    // Транспорт блокирующего режима: очередь пишет в сокет отдельная задача на пуле,
+    // поэтому медленный клиент блокирует только её, а не поток игры или соседа
+    static class SocketTransport implements Transport, Closeable {
+        private final Socket socket;
+        private final Executor executor;
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private Outbound outbound;
+        private OutputStream stream;
+        private volatile boolean closeRequested;
+
+        SocketTransport(Socket socket, Executor executor) {
+            this.socket = socket;
+            this.executor = executor;
+        }
+
+        void bind(Outbound outbound) {
+            this.outbound = outbound;
+        }
+
+        @Override
+        public void requestDrain() {
+            if (draining.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        // Закрытие после того, как очередь будет дописана (EXIT)
+        @Override
+        public void close() {
+            closeRequested = true;
+            outbound.flush();
+            requestDrain();
+        }
+
+        @Override
+        public void abort() {
+            closeSocket();
+        }
+
+        private void drain() {
+            while (true) {
+                try {
+                    if (stream == null) {
+                        stream = new BufferedOutputStream(socket.getOutputStream(), 16384);
+                    }
+                    ByteBuffer buffer;
+                    while ((buffer = outbound.poll()) != null) {
+                        stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    }
+                    stream.flush();
+                } catch (IOException e) {
+                    // Ошибку записи увидит поток чтения, когда соединение закроется
+                    closeSocket();
+                    draining.set(false);
+                    return;
+                }
+                if (closeRequested) {
+                    // То, что поставили в очередь вместе с закрытием, пока шла запись, тоже уходит
+                    if (!outbound.isEmpty()) continue;
+                    closeSocket();
+                }
+                draining.set(false);
+                if (outbound.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.info("Failed to close socket: {}", e.getMessage());
+            }
+        }
+    }
+}
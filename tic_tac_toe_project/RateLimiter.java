@@ -0,0 +1,155 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Лимиты частоты команд одного соединения: token bucket на каждый вид команд и общий на все.
+// Проверяет их InputFramer до того, как команда попадёт в ClientHandler, так что флуд не тратит
+// ни время комнаты, ни PBKDF2, ни обход списка комнат. Команда сверх лимита не выполняется,
+// клиент получает отказ; кто продолжает слать после отказов (кончилась корзина штрафов),
+// отключается.
+//
+// Корзина - GCRA: вместо числа жетонов хранится одно число, "теоретическое время" следующей
+// команды; взять жетон - сдвинуть его CAS'ом на интервал, корзина пуста, если оно ушло
+// в будущее дальше, чем на burst интервалов. Пополнять корзины фоновым потоком не нужно.
+final class RateLimiter {
+    enum Kind {
+        COMMAND("--rate-commands", 500), // любая команда и ход
+        LOGIN("--rate-logins", 2),       // ввод до входа и кадр LOGIN: PBKDF2 дорогой
+        LIST("--rate-list", 20),         // LIST обходит комнаты
+        ROOM("--rate-rooms", 50),        // CREATE, JOIN, QUICKPLAY, WATCH, RESUME, TOURNAMENT
+        QUERY("--rate-queries", 10);     // REPLAY, GAMES, STATS
+
+        final String option;
+        final int defaultPerSecond;
+
+        Kind(String option, int defaultPerSecond) {
+            this.option = option;
+            this.defaultPerSecond = defaultPerSecond;
+        }
+    }
+
+    enum Verdict { ALLOW, REJECT, DISCONNECT }
+
+    private static final int STRIKES = Kind.values().length; // корзина отказов: 50 подряд, потом 5 в секунду
+    private static final int STRIKE_BURST = 50;
+    private static final int STRIKES_PER_SECOND = 5;
+
+    // Интервал между жетонами и размер всплеска (в интервалах) по видам; 0 - без лимита
+    private static final long[] intervalNanos = new long[Kind.values().length + 1];
+    private static final long[] burst = new long[Kind.values().length + 1];
+    private static volatile boolean enabled = true;
+
+    static final LongAdder REJECTED = Metrics.counter("ratelimit.rejected");
+    static final LongAdder DISCONNECTS = Metrics.counter("ratelimit.disconnects");
+
+    static {
+        for (Kind kind : Kind.values()) {
+            setRate(kind.ordinal(), kind.defaultPerSecond);
+        }
+        setRate(STRIKES, STRIKES_PER_SECOND);
+        burst[STRIKES] = STRIKE_BURST;
+    }
+
+    // --rate-<вид>=<команд в секунду> (0 - без лимита), --no-rate-limit выключает всё
+    static void configure(String[] args) {
+        enabled = !TicTacToeServer.hasFlag(args, "--no-rate-limit");
+        for (Kind kind : Kind.values()) {
+            setRate(kind.ordinal(), TicTacToeServer.intOption(args, kind.option, kind.defaultPerSecond));
+        }
+    }
+
+    // Всплеск - две секунды лимита
+    private static void setRate(int index, int perSecond) {
+        intervalNanos[index] = perSecond <= 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / perSecond;
+        burst[index] = Math.max(2, 2L * perSecond);
+    }
+
+    // Время, до которого расписаны жетоны каждой корзины; трогает в основном поток соединения,
+    // но при RESUME и переезде между шардами оно переходит из потока в поток
+    private final AtomicLongArray next = new AtomicLongArray(Kind.values().length + 1);
+
+    RateLimiter() {
+        long now = System.nanoTime();
+        for (int i = 0; i < next.length(); i++) {
+            next.set(i, now);
+        }
+    }
+
+    Verdict check(Kind kind) {
+        if (!enabled) return Verdict.ALLOW;
+        long now = System.nanoTime();
+        if (tryTake(kind.ordinal(), now)) {
+            if (kind == Kind.COMMAND || tryTake(Kind.COMMAND.ordinal(), now)) return Verdict.ALLOW;
+            // Команда не прошла по общему лимиту: жетон своего вида не тратится
+            giveBack(kind.ordinal());
+        }
+        REJECTED.increment();
+        if (tryTake(STRIKES, now)) return Verdict.REJECT;
+        DISCONNECTS.increment();
+        return Verdict.DISCONNECT;
+    }
+
+    private boolean tryTake(int index, long now) {
+        long interval = intervalNanos[index];
+        if (interval == 0) return true;
+        while (true) {
+            long scheduled = next.get(index);
+            long after = Math.max(scheduled, now) + interval;
+            if (after - now > burst[index] * interval) return false;
+            if (next.compareAndSet(index, scheduled, after)) return true;
+        }
+    }
+
+    private void giveBack(int index) {
+        long interval = intervalNanos[index];
+        if (interval != 0) next.addAndGet(index, -interval);
+    }
+
+    // Вид команды по её тексту (строка или кадр COMMAND) - по первому слову, без создания String
+    static Kind kindOf(byte[] text, int offset, int length, boolean loggedIn) {
+        if (!loggedIn) return Kind.LOGIN;
+        int end = offset + length;
+        while (offset < end && text[offset] == ' ') offset++;
+        if (isWord(text, offset, end, "LIST")) return Kind.LIST;
+        if (isWord(text, offset, end, "CREATE") || isWord(text, offset, end, "JOIN")
+                || isWord(text, offset, end, "QUICKPLAY") || isWord(text, offset, end, "WATCH")
+                || isWord(text, offset, end, "RESUME") || isWord(text, offset, end, "TOURNAMENT")) {
+            return Kind.ROOM;
+        }
+        if (isWord(text, offset, end, "REPLAY") || isWord(text, offset, end, "GAMES")
+                || isWord(text, offset, end, "STATS")) {
+            return Kind.QUERY;
+        }
+        return Kind.COMMAND;
+    }
+
+    // Вид кадра BinaryProtocol; до входа любой кадр - попытка входа, текст кадра COMMAND разбирается как строка
+    static Kind kindOfFrame(int type, byte[] data, int offset, int length, boolean loggedIn) {
+        if (!loggedIn) return Kind.LOGIN;
+        switch (type) {
+            case BinaryProtocol.LOGIN:
+                return Kind.LOGIN;
+            case BinaryProtocol.LIST:
+                return Kind.LIST;
+            case BinaryProtocol.CREATE:
+            case BinaryProtocol.JOIN:
+            case BinaryProtocol.QUICKPLAY:
+            case BinaryProtocol.RESUME:
+            case BinaryProtocol.WATCH:
+                return Kind.ROOM;
+            case BinaryProtocol.COMMAND:
+                return kindOf(data, offset, length, loggedIn);
+            default:
+                return Kind.COMMAND;
+        }
+    }
+
+    // Слово без учёта регистра, за которым конец или пробел
+    private static boolean isWord(byte[] text, int offset, int end, String word) {
+        if (end - offset < word.length()) return false;
+        for (int i = 0; i < word.length(); i++) {
+            if (Character.toUpperCase((char) text[offset + i]) != word.charAt(i)) return false;
+        }
+        return offset + word.length() == end || text[offset + word.length()] == ' ';
+    }
+}
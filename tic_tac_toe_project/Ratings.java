@@ -0,0 +1,39 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Рейтинг Эло игроков (в памяти). Новичок начинает с INITIAL, обновляется после каждой
+// доигранной партии двух людей. Через рестарт переносится снимком (Snapshot).
+final class Ratings {
+    static final int INITIAL = 1200;
+    private static final int K = 32;
+
+    private static final Map<String, Integer> RATINGS = new ConcurrentHashMap<>();
+
+    private Ratings() {
+    }
+
+    // null - игрок не вошёл; ConcurrentHashMap не принимает null-ключ
+    static int get(String username) {
+        if (username == null) throw new IllegalArgumentException("username is null");
+        return RATINGS.getOrDefault(username, INITIAL);
+    }
+
+    // score - очки первого игрока: 1 - победа, 0.5 - ничья, 0 - поражение
+    static void recordGame(String first, String second, double score) {
+        int firstRating = get(first);
+        int secondRating = get(second);
+        double expected = 1.0 / (1.0 + Math.pow(10, (secondRating - firstRating) / 400.0));
+        int delta = (int) Math.round(K * (score - expected));
+        RATINGS.compute(first, (name, rating) -> (rating == null ? INITIAL : rating) + delta);
+        RATINGS.compute(second, (name, rating) -> (rating == null ? INITIAL : rating) - delta);
+    }
+
+    static Map<String, Integer> snapshot() {
+        return new HashMap<>(RATINGS);
+    }
+
+    static void restore(Map<String, Integer> ratings) {
+        RATINGS.putAll(ratings);
+    }
+}
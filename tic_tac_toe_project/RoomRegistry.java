@@ -0,0 +1,131 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Все комнаты сервера. Создание и поиск идут через ConcurrentHashMap без общего монитора,
+// а комнаты, в которые ещё можно войти, дополнительно лежат в отсортированном индексе:
+// LIST читает из него только свою страницу, а не перебирает все комнаты.
+// В кластере страница сливается на ходу с таким же индексом комнат других узлов.
+class RoomRegistry {
+    static final int PAGE_SIZE = 20;
+    // Дальше без курсора не листаем: пропуск страниц стоит O(номер страницы)
+    static final int MAX_PAGE = 100;
+
+    private final Map<String, TicTacToeServer.Room> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<String, TicTacToeServer.Room> joinable = new ConcurrentSkipListMap<>();
+    private final AtomicInteger joinableCount = new AtomicInteger(); // size() у skip list - O(n)
+
+    // Строка LIST: своя комната или комната другого узла (Cluster.RemoteRoom)
+    interface Listing {
+        String getName();
+
+        RoomSettings getSettings();
+    }
+
+    // Одна страница LIST; hasMore - есть ли следующая, last - курсор для неё (null - страница пуста)
+    static final class Page {
+        final List<Listing> rooms;
+        final boolean hasMore;
+        final String last;
+
+        Page(List<Listing> rooms, boolean hasMore) {
+            this.rooms = rooms;
+            this.hasMore = hasMore;
+            this.last = rooms.isEmpty() ? null : rooms.get(rooms.size() - 1).getName();
+        }
+    }
+
+    // false - комната с таким именем уже есть. В индекс LIST комната попадает,
+    // когда в неё войдёт создатель
+    boolean create(TicTacToeServer.Room room) {
+        return rooms.putIfAbsent(room.getName(), room) == null;
+    }
+
+    TicTacToeServer.Room get(String name) {
+        return rooms.get(name);
+    }
+
+    void remove(TicTacToeServer.Room room) {
+        setJoinable(room, false);
+        rooms.remove(room.getName(), room);
+    }
+
+    // Вызывается комнатой под её блокировкой при каждом изменении состава игроков,
+    // поэтому обновления индекса для одной комнаты не перемешиваются
+    void setJoinable(TicTacToeServer.Room room, boolean open) {
+        if (open) {
+            if (joinable.putIfAbsent(room.getName(), room) == null) {
+                joinableCount.incrementAndGet();
+            }
+        } else if (joinable.remove(room.getName(), room)) {
+            joinableCount.decrementAndGet();
+        }
+    }
+
+    int size() {
+        return rooms.size();
+    }
+
+    // Все комнаты (остановка сервера сохраняет их партии в снимок)
+    Collection<TicTacToeServer.Room> all() {
+        return rooms.values();
+    }
+
+    int joinableCount() {
+        return joinableCount.get();
+    }
+
+    // Комнаты, в которые можно войти, в порядке имён
+    Collection<TicTacToeServer.Room> joinableRooms() {
+        return joinable.values();
+    }
+
+    // page считается с 1; prefix пустой - без фильтра
+    Page joinablePage(int page, String prefix) {
+        return joinablePage(page, prefix, null, Collections.emptyNavigableMap());
+    }
+
+    // То же вместе с комнатами других узлов: слияние двух отсортированных индексов,
+    // при совпадении имён показывается своя комната. after - курсор (last предыдущей страницы):
+    // страница начинается сразу за этим именем, а с null пропускаются (page - 1) страниц.
+    Page joinablePage(int page, String prefix, String after, NavigableMap<String, ? extends Listing> others) {
+        Iterator<? extends Listing> own = byPrefix(joinable, prefix, after).values().iterator();
+        Iterator<? extends Listing> remote = byPrefix(others, prefix, after).values().iterator();
+        Listing nextOwn = own.hasNext() ? own.next() : null;
+        Listing nextRemote = remote.hasNext() ? remote.next() : null;
+        int skip = after != null ? 0 : (page - 1) * PAGE_SIZE;
+        List<Listing> result = new ArrayList<>(PAGE_SIZE);
+        while (nextOwn != null || nextRemote != null) {
+            int order = nextOwn == null ? 1 : nextRemote == null ? -1 : nextOwn.getName().compareTo(nextRemote.getName());
+            Listing room;
+            if (order <= 0) {
+                room = nextOwn;
+                nextOwn = own.hasNext() ? own.next() : null;
+                if (order == 0) nextRemote = remote.hasNext() ? remote.next() : null;
+            } else {
+                room = nextRemote;
+                nextRemote = remote.hasNext() ? remote.next() : null;
+            }
+            if (skip > 0) {
+                skip--;
+            } else if (result.size() == PAGE_SIZE) {
+                return new Page(result, true);
+            } else {
+                result.add(room);
+            }
+        }
+        return new Page(result, false);
+    }
+
+    private static <V> NavigableMap<String, V> byPrefix(NavigableMap<String, V> map, String prefix, String after) {
+        NavigableMap<String, V> matching = prefix.isEmpty() ? map : map.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        return after == null ? matching : matching.tailMap(after, false);
+    }
+}
@@ -0,0 +1,121 @@
+// Параметры комнаты, которые задаются хвостом команды CREATE:
+// CREATE <room_name> <password> [size win_length] [minutes+increment] [AI]
+class RoomSettings {
+    static final RoomSettings CLASSIC = new RoomSettings(3, 3, false);
+    static final int MAX_CLOCK_MINUTES = 180;
+    static final int MAX_INCREMENT_SECONDS = 180;
+    static final String SIZE_ERROR = "Board size must be " + GameBoard.MIN_SIZE + ".." + GameBoard.MAX_SIZE + " and win length 3..size.";
+    static final String CLOCK_ERROR = "Clock must be 1.." + MAX_CLOCK_MINUTES + " minutes plus 0.." + MAX_INCREMENT_SECONDS
+            + " seconds per move (e.g. 3+2).";
+
+    final int size;
+    final int winLength;
+    final boolean ai; // второй игрок - бот
+    final int clockSeconds;     // запас времени на партию, 0 - без часов
+    final int incrementSeconds; // добавка к запасу после каждого хода
+
+    RoomSettings(int size, int winLength, boolean ai) {
+        this(size, winLength, ai, 0, 0);
+    }
+
+    RoomSettings(int size, int winLength, boolean ai, int clockSeconds, int incrementSeconds) {
+        this.size = size;
+        this.winLength = winLength;
+        this.ai = ai;
+        this.clockSeconds = clockSeconds;
+        this.incrementSeconds = incrementSeconds;
+    }
+
+    boolean isClassic() {
+        return size == 3 && winLength == 3 && !ai && clockSeconds == 0;
+    }
+
+    boolean hasClock() {
+        return clockSeconds > 0;
+    }
+
+    String describe() {
+        return size + "x" + size + ", " + winLength + " in a row"
+                + (hasClock() ? ", " + clockSeconds / 60 + "+" + incrementSeconds + " clock" : "")
+                + (ai ? ", vs AI" : "");
+    }
+
+    // Хвост команды CREATE после пароля, из которого parse() восстановит эти же настройки
+    String commandTail() {
+        StringBuilder tail = new StringBuilder();
+        if (size != 3 || winLength != 3) tail.append(' ').append(size).append(' ').append(winLength);
+        if (hasClock()) tail.append(' ').append(clockSeconds / 60).append('+').append(incrementSeconds);
+        if (ai) tail.append(" AI");
+        return tail.toString();
+    }
+
+    // Разбирает "<password> [size win_length] [minutes+increment] [AI]": настройки снимаются с конца
+    // строки, всё, что осталось, считается паролем. Некорректные настройки - settings == null,
+    // а в error сообщение о том, что именно не так (размер поля или часы).
+    static Parsed parse(String rest) {
+        String[] tokens = rest.trim().split(" +");
+        int end = tokens.length;
+        boolean ai = false;
+        if (end >= 2 && tokens[end - 1].equalsIgnoreCase("AI")) {
+            ai = true;
+            end--;
+        }
+        // Блиц-часы в шахматной записи: 3+2 - три минуты на партию и две секунды за ход
+        int clockSeconds = 0;
+        int incrementSeconds = 0;
+        int plus = end >= 2 ? tokens[end - 1].indexOf('+') : -1;
+        if (plus > 0 && isNumber(tokens[end - 1].substring(0, plus)) && isNumber(tokens[end - 1].substring(plus + 1))) {
+            int minutes = Integer.parseInt(tokens[end - 1].substring(0, plus));
+            incrementSeconds = Integer.parseInt(tokens[end - 1].substring(plus + 1));
+            if (minutes < 1 || minutes > MAX_CLOCK_MINUTES || incrementSeconds > MAX_INCREMENT_SECONDS) {
+                return Parsed.invalid(CLOCK_ERROR);
+            }
+            clockSeconds = minutes * 60;
+            end--;
+        }
+        int size = 3;
+        int winLength = 3;
+        if (end >= 3 && isNumber(tokens[end - 1]) && isNumber(tokens[end - 2])) {
+            size = Integer.parseInt(tokens[end - 2]);
+            winLength = Integer.parseInt(tokens[end - 1]);
+            if (size < GameBoard.MIN_SIZE || size > GameBoard.MAX_SIZE || winLength < 3 || winLength > size) {
+                return Parsed.invalid(SIZE_ERROR);
+            }
+            end -= 2;
+        }
+        RoomSettings settings = size == 3 && winLength == 3 && !ai && clockSeconds == 0
+                ? CLASSIC
+                : new RoomSettings(size, winLength, ai, clockSeconds, incrementSeconds);
+        return new Parsed(String.join(" ", java.util.Arrays.copyOf(tokens, end)), settings, null);
+    }
+
+    // Пароль в том виде, в каком его сохраняет CREATE: без пробелов по краям, внутри по одному.
+    // JOIN приводит введённый пароль к нему же, иначе "a  b" создавался бы, но не подходил
+    static String normalizePassword(String password) {
+        return String.join(" ", password.trim().split(" +"));
+    }
+
+    private static boolean isNumber(String token) {
+        if (token.isEmpty() || token.length() > 3) return false;
+        for (int i = 0; i < token.length(); i++) {
+            if (!Character.isDigit(token.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    static class Parsed {
+        final String password;
+        final RoomSettings settings;
+        final String error; // null - настройки корректны
+
+        Parsed(String password, RoomSettings settings, String error) {
+            this.password = password;
+            this.settings = settings;
+            this.error = error;
+        }
+
+        static Parsed invalid(String error) {
+            return new Parsed(null, null, error);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+// Поле 3x3 поверх Bitboard: всё состояние - один int
+class SmallBoard implements GameBoard {
+    private int bits = Bitboard.EMPTY;
+
+    int bits() {
+        return bits;
+    }
+
+    @Override
+    public int size() {
+        return 3;
+    }
+
+    @Override
+    public int winLength() {
+        return 3;
+    }
+
+    @Override
+    public boolean isFree(int row, int col) {
+        return Bitboard.isFree(bits, Bitboard.cell(row, col));
+    }
+
+    @Override
+    public char charAt(int row, int col) {
+        return Bitboard.charAt(bits, Bitboard.cell(row, col));
+    }
+
+    @Override
+    public boolean place(int row, int col, int player) {
+        bits = Bitboard.place(bits, Bitboard.cell(row, col), player);
+        return Bitboard.hasWon(bits, player);
+    }
+
+    @Override
+    public boolean isFull() {
+        return Bitboard.isFull(bits);
+    }
+
+    @Override
+    public int moveCount() {
+        return Bitboard.moveCount(bits);
+    }
+
+    @Override
+    public void reset() {
+        bits = Bitboard.EMPTY;
+    }
+
+    @Override
+    public GameBoard copy() {
+        SmallBoard copy = new SmallBoard();
+        copy.bits = bits;
+        return copy;
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Снимок сервера для тёплого рестарта: пользователи, рейтинги и партии, которые не доиграли
+// за время остановки (поле, чей ход, остаток часов, токены мест). Пишет его останавливающийся
+// процесс последним делом, читает следующий при старте и сразу удаляет: снимок - передача
+// состояния от процесса процессу, а не резервная копия. После падения снимка нет, и партии,
+// как и раньше, поднимает журнал.
+//
+// Формат: [magic "TTTS"][версия][время записи, мс][секция пользователей: длина, байты UserStore]
+// [рейтинги: число, пары имя-рейтинг][партии: число, партии][CRC32 всего предыдущего].
+// Пишется во временный файл и переименовывается, так что недописанный снимок не прочитать.
+final class Snapshot {
+    private static final int MAGIC = 0x54545453;
+    private static final int VERSION = 1;
+
+    // Партия на месте остановки; ходы - клетки row * size + col по порядку, первым ходил firstPlayer
+    static final class Game {
+        final String name;
+        final String password;
+        final RoomSettings settings;
+        final String[] players;
+        final int bots; // бит i - игрок i бот
+        final int firstPlayer;
+        final long[] seatTokens;
+        final int[] cells;
+        final long[] clockMillis; // остаток часов X и O; null - без часов или неизвестен (журнал)
+
+        Game(String name, String password, RoomSettings settings, String[] players, int bots, int firstPlayer,
+             long[] seatTokens, int[] cells, long[] clockMillis) {
+            this.name = name;
+            this.password = password;
+            this.settings = settings;
+            this.players = players;
+            this.bots = bots;
+            this.firstPlayer = firstPlayer;
+            this.seatTokens = seatTokens;
+            this.cells = cells;
+            this.clockMillis = clockMillis;
+        }
+
+        // Партия из журнала; часы журнал не хранит
+        static Game of(Journal.RoomRecord record) {
+            int[] cells = new int[record.moveCount];
+            for (int i = 0; i < record.moveCount; i++) {
+                cells[i] = record.moveRow(i) * record.settings.size + record.moveCol(i);
+            }
+            return new Game(record.name, record.password, record.settings, record.players, record.bots,
+                    record.firstPlayer, record.seatTokens, cells, null);
+        }
+
+        // Игроки ходят по очереди, так что кто ходил i-м, следует из того, кто начал
+        int mover(int move) {
+            return (firstPlayer + move) % 2;
+        }
+
+        int currentPlayer() {
+            return mover(cells.length);
+        }
+    }
+
+    final long writtenMillis;
+    final byte[] users; // секция пользователей, её разбирает FileUserStore
+    final Map<String, Integer> ratings;
+    final List<Game> games;
+
+    private Snapshot(long writtenMillis, byte[] users, Map<String, Integer> ratings, List<Game> games) {
+        this.writtenMillis = writtenMillis;
+        this.users = users;
+        this.ratings = ratings;
+        this.games = games;
+    }
+
+    static void write(Path file, UserStore users, Map<String, Integer> ratings, List<Game> games) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+
+        ByteArrayOutputStream userBytes = new ByteArrayOutputStream(64 * 1024);
+        users.writeSnapshot(new DataOutputStream(userBytes));
+        out.writeInt(userBytes.size());
+        userBytes.writeTo(out);
+
+        out.writeInt(ratings.size());
+        for (Map.Entry<String, Integer> e : ratings.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeInt(e.getValue());
+        }
+
+        out.writeInt(games.size());
+        for (Game game : games) {
+            writeGame(out, game);
+        }
+        out.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, bytes.toByteArray());
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // null - снимка нет. Прочитанный (или испорченный) снимок удаляется: второй раз он
+    // вернул бы партии, которые с тех пор доиграли
+    static Snapshot read(Path file) throws IOException {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        Files.delete(file);
+        if (data.length < 4 + 4 + 8 + 4) throw new IOException("snapshot is truncated");
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(data, data.length - 4, 4).getInt()) {
+            throw new IOException("snapshot checksum mismatch");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("not a snapshot of this version");
+        long writtenMillis = in.readLong();
+        byte[] users = in.readNBytes(in.readInt());
+
+        int ratingCount = in.readInt();
+        Map<String, Integer> ratings = new HashMap<>(ratingCount * 2);
+        for (int i = 0; i < ratingCount; i++) {
+            ratings.put(in.readUTF(), in.readInt());
+        }
+
+        int gameCount = in.readInt();
+        List<Game> games = new ArrayList<>(gameCount);
+        for (int i = 0; i < gameCount; i++) {
+            games.add(readGame(in));
+        }
+        return new Snapshot(writtenMillis, users, ratings, games);
+    }
+
+    private static void writeGame(DataOutputStream out, Game game) throws IOException {
+        out.writeUTF(game.name);
+        out.writeUTF(game.password);
+        out.writeByte(game.settings.size);
+        out.writeByte(game.settings.winLength);
+        out.writeBoolean(game.settings.ai);
+        out.writeShort(game.settings.clockSeconds);
+        out.writeByte(game.settings.incrementSeconds);
+        for (int i = 0; i < 2; i++) {
+            out.writeUTF(game.players[i]);
+            out.writeLong(game.seatTokens[i]);
+        }
+        out.writeByte(game.bots);
+        out.writeByte(game.firstPlayer);
+        // На полях до 16x16 клетка - байт, больше - два
+        boolean wide = game.settings.size * game.settings.size > 256;
+        out.writeShort(game.cells.length);
+        for (int cell : game.cells) {
+            if (wide) out.writeShort(cell); else out.writeByte(cell);
+        }
+        out.writeBoolean(game.clockMillis != null);
+        if (game.clockMillis != null) {
+            out.writeLong(game.clockMillis[0]);
+            out.writeLong(game.clockMillis[1]);
+        }
+    }
+
+    private static Game readGame(DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        String password = in.readUTF();
+        RoomSettings settings = new RoomSettings(in.readUnsignedByte(), in.readUnsignedByte(), in.readBoolean(),
+                in.readUnsignedShort(), in.readUnsignedByte());
+        String[] players = new String[2];
+        long[] seatTokens = new long[2];
+        for (int i = 0; i < 2; i++) {
+            players[i] = in.readUTF();
+            seatTokens[i] = in.readLong();
+        }
+        int bots = in.readUnsignedByte();
+        int firstPlayer = in.readUnsignedByte();
+        boolean wide = settings.size * settings.size > 256;
+        int[] cells = new int[in.readUnsignedShort()];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = wide ? in.readUnsignedShort() : in.readUnsignedByte();
+        }
+        long[] clockMillis = in.readBoolean() ? new long[] {in.readLong(), in.readLong()} : null;
+        return new Game(name, password, settings, players, bots, firstPlayer, seatTokens, cells, clockMillis);
+    }
+}
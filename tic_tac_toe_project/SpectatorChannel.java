@@ -0,0 +1,258 @@
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Трансляция партии зрителям (WATCH). Игра под своей блокировкой только кладёт событие
+// в lock-free очередь, а рассылка идёт отдельной задачей на пуле: каждое событие сериализуется
+// один раз (текстом и кадром) и один и тот же массив байтов уходит всем зрителям.
+// Зритель, у которого в очереди скопилось больше LAG_BYTES, пропускает события; когда он
+// разгребётся, ему приходит сразу последняя позиция. Совсем застрявшего отключает лимит Outbound.
+final class SpectatorChannel {
+    private static final long LAG_BYTES = 32 * 1024;
+    private static final long CATCH_UP_RETRY_MS = 200;
+
+    // Позиция после события с номером seq: заголовок (кто играет, чей ход или итог) и поле
+    private static final class Snapshot {
+        final long seq;
+        private final GameBoard board;
+        private final String header;
+        private volatile byte[] text;
+        private volatile byte[] frame;
+
+        Snapshot(long seq, GameBoard board, String header) {
+            this.seq = seq;
+            this.board = board;
+            this.header = header;
+        }
+
+        // Гонка двух рассылок безвредна: обе посчитают одинаковые байты
+        byte[] text() {
+            byte[] result = text;
+            if (result == null) {
+                result = concat(BoardRenderer.encode(header), BoardRenderer.render(board));
+                text = result;
+            }
+            return result;
+        }
+
+        byte[] frame() {
+            byte[] result = frame;
+            if (result == null) {
+                result = concat(BinaryProtocol.text(header), BoardRenderer.renderFrame(board));
+                frame = result;
+            }
+            return result;
+        }
+    }
+
+    // Событие рассылки. Поле целиком рендерится уже в потоке рассылки, а не под блокировкой игры
+    private static final class Event {
+        final long seq;
+        private final Snapshot board; // событие - вся позиция; иначе null
+        private final byte[] text;
+        private final byte[] delta;   // для зрителей в режиме DELTA
+        private final byte[] frame;
+
+        Event(Snapshot board) {
+            this(board.seq, board, null, null, null);
+        }
+
+        Event(long seq, Snapshot board, byte[] text, byte[] delta, byte[] frame) {
+            this.seq = seq;
+            this.board = board;
+            this.text = text;
+            this.delta = delta;
+            this.frame = frame;
+        }
+
+        byte[] text(boolean deltaMode) {
+            if (deltaMode && delta != null) return delta;
+            return text != null ? text : board.text();
+        }
+
+        byte[] frame() {
+            return frame != null ? frame : board.frame();
+        }
+    }
+
+    // Поля меняет только поток рассылки
+    private static final class Watcher {
+        final TicTacToeServer.ClientHandler client;
+        boolean behind = true; // новый зритель сначала получает позицию целиком
+        long seen;             // последнее событие, которое зритель уже видел
+
+        Watcher(TicTacToeServer.ClientHandler client) {
+            this.client = client;
+        }
+    }
+
+    private final Map<TicTacToeServer.ClientHandler, Watcher> watchers = new ConcurrentHashMap<>();
+    private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong seq = new AtomicLong();
+    private final Executor executor;
+    private final HashedWheelTimer timer;
+    private volatile Snapshot latest;
+    private volatile boolean stale = true; // пока зрителей не было, позиция не обновлялась
+    private volatile boolean closed;
+
+    SpectatorChannel(Executor executor, HashedWheelTimer timer) {
+        this.executor = executor;
+        this.timer = timer;
+    }
+
+    // false - комната уже закрыта
+    boolean add(TicTacToeServer.ClientHandler client) {
+        if (closed) return false;
+        watchers.put(client, new Watcher(client));
+        if (closed) {
+            // Комната закрылась между проверкой и вставкой
+            watchers.remove(client);
+            return false;
+        }
+        requestDrain();
+        return true;
+    }
+
+    void remove(TicTacToeServer.ClientHandler client) {
+        watchers.remove(client);
+    }
+
+    int size() {
+        return watchers.size();
+    }
+
+    // Позиция устарела: первый зритель просит игру опубликовать поле заново
+    boolean isStale() {
+        return stale;
+    }
+
+    // Дальше - вызывается игрой под её блокировкой. Пока зрителей нет, ничего не делается
+
+    void publishBoard(GameBoard board, String header) {
+        if (watchers.isEmpty()) {
+            stale = true;
+            return;
+        }
+        Snapshot snapshot = new Snapshot(seq.incrementAndGet(), board.copy(), header);
+        latest = snapshot;
+        stale = false;
+        events.add(new Event(snapshot));
+        requestDrain();
+    }
+
+    void publishMove(GameBoard board, String header, char mark, int row, int col) {
+        if (watchers.isEmpty()) {
+            stale = true;
+            return;
+        }
+        Snapshot snapshot = new Snapshot(seq.incrementAndGet(), board.copy(), header);
+        latest = snapshot;
+        stale = false;
+        // На 3x3 после хода показываем всё поле, на больших - одну строку, как игрокам
+        byte[] text = board.size() == 3
+                ? null
+                : BoardRenderer.encode(mark + " placed at " + (row + 1) + " " + (col + 1) + ". " + header);
+        events.add(new Event(snapshot.seq, snapshot, text, BoardRenderer.renderMove(mark, row, col),
+                BinaryProtocol.move(mark, row, col)));
+        requestDrain();
+    }
+
+    // Строка становится и заголовком позиции: опоздавший зритель увидит итог партии над полем
+    void publishText(String line) {
+        if (watchers.isEmpty()) {
+            stale = true;
+            return;
+        }
+        Snapshot previous = latest;
+        long number = seq.incrementAndGet();
+        if (previous != null && !stale) {
+            latest = new Snapshot(number, previous.board, line);
+        }
+        byte[] text = BoardRenderer.encode(line);
+        events.add(new Event(number, null, text, null, BinaryProtocol.text(line)));
+        requestDrain();
+    }
+
+    // Комната закрылась: зрители получают последнюю строку и отпускаются
+    void close(String line) {
+        closed = true;
+        publishText(line);
+        requestDrain();
+    }
+
+    private void requestDrain() {
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        boolean anyBehind = false;
+        try {
+            Event event;
+            while ((event = events.poll()) != null) {
+                for (Watcher watcher : watchers.values()) {
+                    anyBehind |= deliver(watcher, event);
+                }
+            }
+            // Новые и отстававшие зрители, которым не досталось событий, догоняют позицией
+            for (Watcher watcher : watchers.values()) {
+                if (watcher.behind) anyBehind |= deliver(watcher, null);
+            }
+            if (closed) {
+                for (Watcher watcher : watchers.values()) {
+                    watcher.client.stopWatching(this);
+                }
+                watchers.clear();
+                anyBehind = false;
+            }
+        } catch (RuntimeException e) {
+            Log.info("Spectator broadcast failed: {}", e);
+        } finally {
+            Outbound.flushDirty();
+            draining.set(false);
+        }
+        if (!events.isEmpty() || (closed && !watchers.isEmpty())) {
+            requestDrain();
+        } else if (anyBehind) {
+            timer.schedule(this::requestDrain, CATCH_UP_RETRY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // true - зритель всё ещё отстаёт
+    private boolean deliver(Watcher watcher, Event event) {
+        TicTacToeServer.ClientHandler client = watcher.client;
+        if (client.queuedBytes() > LAG_BYTES) {
+            watcher.behind = true;
+            return true;
+        }
+        boolean binary = client.isBinaryProtocol();
+        if (watcher.behind) {
+            watcher.behind = false;
+            Snapshot snapshot = latest;
+            if (snapshot != null && snapshot.seq > watcher.seen) {
+                client.send(binary ? snapshot.frame() : snapshot.text());
+                watcher.seen = snapshot.seq;
+            }
+        }
+        // Событие старше отправленной позиции в ней уже учтено
+        if (event == null || event.seq <= watcher.seen) return false;
+        watcher.seen = event.seq;
+        client.send(binary ? event.frame() : event.text(client.isDeltaMode()));
+        return false;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(first.length + second.length);
+        out.write(first, 0, first.length);
+        out.write(second, 0, second.length);
+        return out.toByteArray();
+    }
+}
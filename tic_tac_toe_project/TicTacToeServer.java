@@ -1,78 +1,632 @@
+import com.sun.net.httpserver.HttpServer;
+
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
 
 public class TicTacToeServer {
 
-    private static final int PORT = 12345;
-    private static final Map<String, Room> rooms = new ConcurrentHashMap<>();
-    private static final Map<String, String> users = new ConcurrentHashMap<>();
+    private static final int DEFAULT_PORT = 12345;
+    private static final RoomRegistry rooms = new RoomRegistry();
+    private static final Matchmaker matchmaker = new Matchmaker(TicTacToeServer::startQuickGame);
+    private static final AtomicInteger quickGames = new AtomicInteger();
+    private static final int DEFAULT_HASH_ITERATIONS = 20_000;
+    private static final int GAMES_LISTED = 10; // сколько последних партий показывает GAMES
+    // Учётные записи; в main заменяется хранилищем с файлом (--users-file)
+    private static UserStore users = FileUserStore.inMemory(DEFAULT_HASH_ITERATIONS, 10_000);
+    private static Journal journal = Journal.disabled();
+    // Сыгранные партии для REPLAY, GAMES и ArchiveScanner
+    private static GameArchive archive = GameArchive.disabled();
+    // Другие узлы кластера (--cluster-port): чьи имена комнат, общий LIST, пересылка сессий
+    private static Cluster cluster = Cluster.disabled();
+    // Места в партиях, восстановленных из журнала: токен -> игрок, который ещё не вернулся
+    private static final Map<Long, ClientHandler> seats = new ConcurrentHashMap<>();
+    // Сессии вошедших игроков: токен выдаётся при входе, по нему RESUME возвращает в партию после обрыва
+    private static final Map<Long, ClientHandler> sessions = new ConcurrentHashMap<>();
+    private static final SecureRandom TOKENS = new SecureRandom();
+    // Сколько секунд место отключившегося игрока ждёт его возвращения (--grace-seconds)
+    private static volatile int graceSeconds = 120;
+    // Лимит на один ход, секунды (--move-seconds, 0 - без лимита): брошенная партия не держит комнату вечно
+    private static volatile int moveSeconds = 120;
+    // Все таймауты сервера - часы ходов и ожидание отключившихся - на одном колесе, шаг 100 мс
+    private static final HashedWheelTimer timeouts = new HashedWheelTimer("timeouts", 100, TimeUnit.MILLISECONDS, 512);
+    private static final Tournaments tournaments = new Tournaments(timeouts);
+    // Потоки для ClientHandler: обычный пул или виртуальные потоки (--virtual)
+    private static ExecutorService executor = Executors.newCachedThreadPool();
+    // PBKDF2 при входе в NIO-режиме (--login-threads): хеш считается здесь, а не в event loop
+    private static ExecutorService logins;
+    // Сервер останавливается (shutdown): новые партии не начинаются, идущие доигрываются
+    private static volatile boolean draining = false;
 
     public static void main(String[] args) throws IOException {
-        System.out.println("Starting Tic-Tac-Toe server...");
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server is running on port: " + PORT);
+        long mainStarted = System.nanoTime();
+        int port = intOption(args, "--port", DEFAULT_PORT);
+        Log.enabled = !hasFlag(args, "--no-log");
+        Log.info("Starting Tic-Tac-Toe server...");
+        if (hasFlag(args, "--virtual")) {
+            executor = newVirtualThreadExecutor();
+        }
+        Outbound.setLimitBytes(intOption(args, "--max-outbound-kb", 256) * 1024);
+        Admission.configure(intOption(args, "--max-connections", 100_000), intOption(args, "--max-per-ip", 0),
+                intOption(args, "--backlog", 1024));
+        RateLimiter.configure(args);
+        // Снимок, оставленный прошлым процессом при остановке: пользователи, рейтинги, недоигранные партии
+        Path snapshotFile = snapshotPath(args);
+        Snapshot snapshot = readSnapshot(snapshotFile);
+        users = openUserStore(args, snapshot);
+        logins = newLoginPool(intOption(args, "--login-threads", Runtime.getRuntime().availableProcessors()));
+        if (snapshot != null) {
+            Ratings.restore(snapshot.ratings);
+        }
+        graceSeconds = intOption(args, "--grace-seconds", graceSeconds);
+        moveSeconds = intOption(args, "--move-seconds", moveSeconds);
+        // Таблица бота для 3x3 считается сразу, а не на первом ходе
+        AiPlayer.start(intOption(args, "--ai-threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 4)),
+                intOption(args, "--ai-time-ms", 200));
+        // Архив открывается раньше журнала: восстановленные партии тоже попадут в него.
+        // Партии из снимка поднимаются первыми: в журнале те же партии, их он пропустит
+        openArchive(args);
+        int restoredGames = restoreGames(snapshot);
+        restoredGames += openJournal(args);
+        startMetrics(args);
+        cluster = Cluster.start(args, port, rooms, executor, TicTacToeServer::rebalanceRooms);
+        int drainSeconds = intOption(args, "--drain-seconds", 30);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(drainSeconds, snapshotFile), "shutdown"));
+        int restored = restoredGames;
+        boolean exitAfterStart = hasFlag(args, "--exit-after-start");
+        Runnable listening = () -> started(mainStarted, restored, exitAfterStart);
+        if (hasFlag(args, "--nio")) {
+            // Неблокирующий режим: один или несколько event loop вместо потока на клиента
+            int loops = intOption(args, "--loops", Runtime.getRuntime().availableProcessors());
+            new NioServer(port, loops, false).run(listening);
+            return;
+        }
+        if (option(args, "--shards", null) != null) {
+            // Event loop'ы - шарды: комната и соединения её игроков обслуживаются одним потоком
+            int shards = intOption(args, "--shards", Runtime.getRuntime().availableProcessors());
+            new NioServer(port, shards, true).run(listening);
+            return;
+        }
+        try (ServerSocket serverSocket = new ServerSocket(port, Admission.backlog())) {
+            Log.info("Server is running on port: {}", port);
+            listening.run();
             while (true) {
-                new ClientHandler(serverSocket.accept()).start();
+                Socket socket = serverSocket.accept();
+                // Лишнее соединение закрывается до того, как под него заведён поток
+                if (!Admission.tryAdmit(socket.getInetAddress())) {
+                    Admission.reject(socket);
+                    continue;
+                }
+                try {
+                    socket.setTcpNoDelay(true); // как и в NioServer: вывод уже собран в одну запись
+                    executor.execute(new ClientHandler(socket));
+                } catch (IOException | RuntimeException e) {
+                    Log.info("Connection error: {}", e.getMessage());
+                    Admission.release(socket.getInetAddress());
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    // Пул logins: фиксированное число потоков-демонов, PBKDF2 грузит процессор, а не ждёт
+    private static ExecutorService newLoginPool(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "login-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() есть только начиная с Java 21,
+    // поэтому ищем его через reflection и на старых JVM откатываемся на пул потоков
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            ExecutorService virtualExecutor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            Log.info("Using virtual threads for clients.");
+            return virtualExecutor;
+        } catch (ReflectiveOperationException e) {
+            Log.info("Virtual threads require Java 21+, falling back to a cached thread pool.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Метрики: STATS всегда, JMX всегда, HTTP - только с --stats-port=<порт> (слушает только localhost)
+    private static void startMetrics(String[] args) throws IOException {
+        Metrics.enabled = !hasFlag(args, "--no-metrics");
+        Metrics.gauge("rooms", rooms::size);
+        Metrics.gauge("rooms.joinable", rooms::joinableCount);
+        Metrics.gauge("matchmaker.waiting", matchmaker::waitingCount);
+        Metrics.gauge("timeouts.armed", timeouts::size);
+        Metrics.gauge("users", users::size);
+        Metrics.startRates(timeouts);
+        Metrics.registerJmx();
+        int statsPort = intOption(args, "--stats-port", 0);
+        if (statsPort == 0) return;
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), statsPort), 0);
+        http.createContext("/", exchange -> {
+            byte[] body = Metrics.render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream response = exchange.getResponseBody()) {
+                response.write(body);
+            }
+        });
+        http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "stats-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        http.start();
+        Log.info("Stats are served on http://localhost:{}/", statsPort);
+    }
+
+    // Порт слушается: сколько занял старт от запуска JVM (сюда входит загрузка классов, которую
+    // сокращает AppCDS) и от входа в main (снимок, журнал, таблица бота)
+    private static void started(long mainStarted, int restoredGames, boolean exit) {
+        long sinceLaunch = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        long inMain = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mainStarted);
+        Metrics.gauge("startup.ms", () -> sinceLaunch);
+        Log.info("Started in {} ms since JVM launch ({} ms in main), {} games restored", sinceLaunch, inMain, restoredGames);
+        // Тренировочный запуск для AppCDS: классы старта загружены, JVM записывает архив при выходе
+        if (exit) System.exit(0);
+    }
+
+    // --snapshot-file= с пустым значением отключает снимок
+    private static Path snapshotPath(String[] args) {
+        String file = option(args, "--snapshot-file", "snapshot.bin");
+        return file.isEmpty() ? null : Paths.get(file);
+    }
+
+    private static Snapshot readSnapshot(Path file) {
+        if (file == null) return null;
+        try {
+            Snapshot snapshot = Snapshot.read(file);
+            if (snapshot != null) {
+                Log.info("Snapshot {} written {} ms ago: {} games", file,
+                        System.currentTimeMillis() - snapshot.writtenMillis, snapshot.games.size());
+            }
+            return snapshot;
+        } catch (IOException e) {
+            // Старт как после падения: партии поднимет журнал, пользователей - users.db
+            Log.info("Ignoring snapshot {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    // --users-file= с пустым значением оставляет пользователей только в памяти
+    private static UserStore openUserStore(String[] args, Snapshot snapshot) throws IOException {
+        String file = option(args, "--users-file", "users.db");
+        int iterations = intOption(args, "--hash-iterations", DEFAULT_HASH_ITERATIONS);
+        int cacheSize = intOption(args, "--login-cache", 10_000);
+        byte[] fromSnapshot = snapshot == null ? null : snapshot.users;
+        if (file.isEmpty()) {
+            return new FileUserStore(null, iterations, cacheSize, fromSnapshot);
+        }
+        UserStore store = new FileUserStore(Paths.get(file), iterations, cacheSize, fromSnapshot);
+        Log.info("Loaded {} users from {}", store.size(), file);
+        return store;
+    }
+
+    // --archive-dir= с пустым значением отключает архив партий
+    private static void openArchive(String[] args) throws IOException {
+        String dir = option(args, "--archive-dir", "archive");
+        if (dir.isEmpty()) return;
+        archive = GameArchive.open(Paths.get(dir), intOption(args, "--archive-segment-mb", 64) * 1024 * 1024);
+    }
+
+    // --journal-dir= с пустым значением отключает журнал; возвращает число восстановленных партий
+    private static int openJournal(String[] args) throws IOException {
+        String dir = option(args, "--journal-dir", "journal");
+        if (dir.isEmpty()) return 0;
+        journal = Journal.open(Paths.get(dir), intOption(args, "--journal-segment-mb", 4) * 1024 * 1024,
+                intOption(args, "--journal-sync-ms", 10));
+        int games = 0;
+        for (Journal.RoomRecord record : journal.recoveredRooms()) {
+            if (restoreGame(Snapshot.Game.of(record))) games++;
+        }
+        Log.info("Recovered {} games from {}", games, dir);
+        return games;
+    }
+
+    private static int restoreGames(Snapshot snapshot) {
+        if (snapshot == null) return 0;
+        int games = 0;
+        for (Snapshot.Game game : snapshot.games) {
+            if (restoreGame(game)) games++;
+        }
+        return games;
+    }
+
+    // Партия из снимка или журнала: игроки пока отсутствуют и вернутся командой RESUME <token>.
+    // false - комната с этим именем уже есть
+    private static boolean restoreGame(Snapshot.Game game) {
+        Room room = new Room(game.name, game.password, game.settings);
+        if (!rooms.create(room)) return false;
+        ClientHandler[] players = new ClientHandler[2];
+        for (int i = 0; i < 2; i++) {
+            if ((game.bots & (1 << i)) != 0) {
+                players[i] = ClientHandler.bot();
+            } else {
+                players[i] = ClientHandler.absent(game.players[i]);
+                seats.put(game.seatTokens[i], players[i]);
+                players[i].awaitReturn();
             }
         }
+        GameBoard board = GameBoard.create(game.settings.size, game.settings.winLength);
+        for (int i = 0; i < game.cells.length; i++) {
+            board.place(game.cells[i] / board.size(), game.cells[i] % board.size(), game.mover(i));
+        }
+        room.restore(Arrays.asList(players), board, game.firstPlayer, game.cells, game.currentPlayer(),
+                game.seatTokens, game.clockMillis);
+        return true;
     }
 
-    private static class ClientHandler extends Thread {
+    // Остановка (SIGTERM, Ctrl+C; хук JVM): узел уходит из кластера, новые партии не начинаются,
+    // идущие доигрываются не дольше --drain-seconds. Оставшиеся замирают и вместе с пользователями
+    // и рейтингами уходят в снимок; следующий процесс поднимает их из него и игроки возвращаются
+    // командой RESUME. Архив и лог дописываются последними, когда партий уже не будет
+    private static void shutdown(int drainSeconds, Path snapshotFile) {
+        long started = System.nanoTime();
+        draining = true;
+        cluster.leave();
+        int playing = forEachRoom(room -> room.isBeingPlayed() ? room : null).size();
+        Log.info("Draining: {} games in progress, waiting up to {} s", playing, drainSeconds);
+        for (ClientHandler player : sessions.values()) {
+            player.out.println("Server is restarting: games in progress can be finished, new games are not started.");
+        }
+        Outbound.flushDirty();
+        long deadline = started + TimeUnit.SECONDS.toNanos(drainSeconds);
+        while (playing > 0 && System.nanoTime() - deadline < 0) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            playing = forEachRoom(room -> room.isBeingPlayed() ? room : null).size();
+        }
+
+        List<Snapshot.Game> suspended = forEachRoom(Room::suspend);
+        if (snapshotFile != null) {
+            try {
+                Snapshot.write(snapshotFile, users, Ratings.snapshot(), suspended);
+                Log.info("Snapshot {}: {} users, {} games", snapshotFile, users.size(), suspended.size());
+            } catch (IOException e) {
+                Log.info("Failed to write snapshot {}: {}", snapshotFile, e.getMessage());
+            }
+        }
+        archive.close();
+        Log.info("Stopped in {} ms, {} games left for the next start",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), suspended.size());
+        // Последние сообщения игрокам уходят из очередей, пока JVM ещё жива
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.awaitDrained();
+    }
+
+    // Опрос всех комнат в их шардах (там, где комнату можно трогать); null-ответы отбрасываются.
+    // Комната, шард которой не ответил за секунду, пропускается
+    private static <T> List<T> forEachRoom(Function<Room, T> probe) {
+        List<Room> all = new ArrayList<>(rooms.all());
+        List<T> results = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(all.size());
+        for (Room room : all) {
+            room.execute(() -> {
+                try {
+                    T result = probe.apply(room);
+                    if (result != null) results.add(result);
+                    Outbound.flushDirty();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            done.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (results) {
+            return new ArrayList<>(results);
+        }
+    }
+
+    // Пара из очереди QUICKPLAY: комната с паролем, который никто не знает, сразу на двоих
+    private static void startQuickGame(ClientHandler first, ClientHandler second) {
+        if (draining) {
+            // Пара нашлась, когда сервер уже останавливается: партию не начинаем
+            first.unmatched();
+            second.unmatched();
+            return;
+        }
+        Room room;
+        // Комната живёт на шарде первого игрока, второй к нему переезжает
+        Executor shard = NioServer.shardOf(first.connection);
+        do {
+            room = new Room("qp-" + quickGames.incrementAndGet(), Long.toHexString(new Random().nextLong()), RoomSettings.CLASSIC, shard);
+        } while (!rooms.create(room));
+        journal.roomCreated(room.getName(), room.getPassword(), room.getSettings());
+        Log.info("Quickplay match: {} vs {} in {}", first.getUsername(), second.getUsername(), room.getName());
+        first.matched(second);
+        second.matched(first);
+        first.enterMatchedRoom(room);
+        second.enterMatchedRoom(room);
+    }
+
+    // Стол партии турнира: комната на шарде первого игрока, оба садятся, как в QUICKPLAY.
+    // null - имя уже занято
+    static Room openTournamentTable(String name, Tournaments.Game game) {
+        Room room = new Room(name, Long.toHexString(new Random().nextLong()), game.settings(),
+                NioServer.shardOf(game.first().connection));
+        room.setTournamentGame(game);
+        if (!rooms.create(room)) return null;
+        journal.roomCreated(room.getName(), room.getPassword(), room.getSettings());
+        game.first().enterMatchedRoom(room);
+        game.second().enterMatchedRoom(room);
+        return room;
+    }
+
+    // Проход кластера: комната ждёт второго игрока, а её имя теперь принадлежит другому узлу
+    // (тот вошёл в кластер или этот останавливается) - ожидающий создаёт её заново у владельца.
+    // Начатые партии доигрываются там, где начались
+    private static void rebalanceRooms() {
+        int moved = 0;
+        for (Room room : rooms.joinableRooms()) {
+            Cluster.Node owner = cluster.ownerOf(room.getName());
+            if (owner == null || room.getSettings().ai || room.getTournamentGame() != null) continue;
+            room.execute(() -> handOver(room, owner));
+            if (++moved == Cluster.MAX_HANDOVERS_PER_PASS) break;
+        }
+    }
+
+    private static void handOver(Room room, Cluster.Node owner) {
+        ClientHandler player = room.releaseWaitingPlayer();
+        if (player == null) return;
+        Cluster.HANDED_OVER.increment();
+        Log.info("Room {} moves to node {}", room.getName(), owner.id);
+        player.moveRoom(owner, "CREATE " + room.getName() + " " + room.getPassword() + room.getSettings().commandTail());
+        Outbound.flushDirty();
+    }
+
+    static boolean hasFlag(String[] args, String name) {
+        for (String arg : args) {
+            if (arg.equals(name)) return true;
+        }
+        return false;
+    }
+
+    static String option(String[] args, String name, String defaultValue) {
+        String prefix = name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) return arg.substring(prefix.length());
+        }
+        return defaultValue;
+    }
+
+    static int intOption(String[] args, String name, int defaultValue) {
+        String value = option(args, name, null);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.info("Invalid value for {}: {}, using {}", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static class ClientHandler implements Runnable {
+        private enum Stage { USERNAME, PASSWORD, MENU }
+
         private Socket socket;
-        private BufferedReader in;
-        private PrintWriter out;
+        // Соединение и вывод меняются, когда игрок возвращается в партию командой RESUME
+        private volatile Closeable connection; // сокет или NIO-канал, через который общаемся с клиентом
+        volatile PrintWriter out; // без autoflush: вывод уходит одной записью в Outbound.flushDirty()
+        private volatile Outbound outbound;
         private String username;
-        private Room currentRoom; 
-        private boolean waitingForReplayAnswer = false; // Ждём ответа "yes/no" после конца игры?
-        private boolean yourTurn = false; // Сейчас ход этого игрока?
-        private boolean gameOver = false; // Игра закончилась?
+        private volatile Room currentRoom; 
+        private Stage stage = Stage.USERNAME;
+        private String pendingUsername;
+        private volatile boolean waitingForReplayAnswer = false; // Ждём ответа "yes/no" после конца игры?
+        private volatile boolean yourTurn = false; // Сейчас ход этого игрока?
+        private volatile boolean gameOver = false; // Игра закончилась?
+        private boolean bot = false; // Игрок-бот без соединения
+        private volatile boolean deltaMode = false; // Вместо поля после хода присылать только "MOVE X r c"
+        private volatile boolean binaryProtocol = false; // Клиент перешёл на кадры BinaryProtocol
+        private volatile Matchmaker.Ticket quickplayTicket; // Заявка в очереди QUICKPLAY
+        private volatile boolean disconnected = false;
+        // Игрок отключился посреди партии (или партия восстановлена из журнала) и место ждёт его RESUME.
+        // Возвращение и истечение ожидания соревнуются за этот флаг
+        private final AtomicBoolean absent = new AtomicBoolean();
+        private volatile HashedWheelTimer.Timeout abandonTimer;
+        private volatile long sessionToken; // 0 - не выдан
+        private volatile ClientHandler resumedAs; // После RESUME это соединение обслуживает другого игрока
+        private volatile SpectatorChannel watching; // Комната, за партией в которой следит игрок (WATCH)
+        private volatile Cluster.Route route; // Команды игрока выполняет другой узел кластера
+        private volatile boolean clusterSession; // Игрока прислал другой узел кластера (CLUSTER)
+        private final AtomicBoolean released = new AtomicBoolean(); // Сессия уже отпущена назад на его узел
+        // Курсор LIST: следующая страница того же префикса начинается после последней показанной комнаты
+        private int listPage;
+        private String listPrefix;
+        private String listLast;
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
+            Outbound.SocketTransport transport = new Outbound.SocketTransport(socket, executor);
+            this.outbound = new Outbound(transport);
+            transport.bind(outbound);
+            this.out = outbound.writer();
+            this.connection = transport;
+        }
+
+        // Клиент неблокирующего сервера: вывод и закрытие идут через event loop
+        ClientHandler(Outbound outbound, Closeable connection) {
+            this.outbound = outbound;
+            this.out = outbound.writer();
+            this.connection = connection;
+        }
+
+        // Бот сидит в комнате как обычный игрок, но всё, что ему пишут, уходит в пустоту
+        static ClientHandler bot() {
+            ClientHandler bot = new ClientHandler(Outbound.discarding(), () -> { });
+            bot.username = "Computer";
+            bot.stage = Stage.MENU;
+            bot.bot = true;
+            return bot;
+        }
+
+        // Игрок восстановленной из журнала партии, пока он не вернулся: вывод никуда не идёт
+        static ClientHandler absent(String username) {
+            ClientHandler player = new ClientHandler(Outbound.discarding(), () -> { });
+            player.username = username;
+            player.stage = Stage.MENU;
+            player.absent.set(true);
+            return player;
+        }
+
+        // Кто обрабатывает ввод этого соединения
+        ClientHandler current() {
+            ClientHandler target = resumedAs;
+            return target == null ? this : target.current();
+        }
+
+        public boolean isAbsent() {
+            return absent.get();
         }
 
         public String getUsername() {
             return username;
         }
 
-        public synchronized void setYourTurn(boolean turn) {
+        public boolean isBot() {
+            return bot;
+        }
+
+        public boolean isDeltaMode() {
+            return deltaMode;
+        }
+
+        long queuedBytes() {
+            return outbound.queuedBytes();
+        }
+
+        public boolean isBinaryProtocol() {
+            return binaryProtocol;
+        }
+
+        boolean isClusterSession() {
+            return clusterSession;
+        }
+
+        public boolean isDisconnected() {
+            return disconnected;
+        }
+
+        // Вошёл под именем: до этого весь ввод считается попыткой входа (RateLimiter)
+        boolean isLoggedIn() {
+            return stage == Stage.MENU;
+        }
+
+        // Не null - ввод пересылается на другой узел кластера
+        Cluster.Route route() {
+            return route;
+        }
+
+        void routeTo(Cluster.Route target) {
+            route = target;
+        }
+
+        // Сессия на другом узле закончилась, команды снова выполняет этот узел; lost - почему
+        // она оборвалась (null - узел комнаты сам отпустил игрока). false - сессия уже не эта
+        boolean unroute(Cluster.Route from, String lost) {
+            if (route != from) return false;
+            route = null;
+            if (lost != null) routeLost(lost);
+            return true;
+        }
+
+        // Команда не дошла до узла или узел пропал: игрок снова в меню своего узла
+        void routeLost(String message) {
+            Log.info("{}: {}", username, message);
+            reply(BinaryProtocol.STATUS_NOT_IN_GAME, message);
+            printMenu();
+        }
+
+        // На другом узле игрок вышел из игры (EXIT)
+        void closeRouted(Cluster.Route from) {
+            if (route != from) return;
+            route = null;
+            close();
+        }
+
+        void notice(String message) {
+            prompt(message);
+        }
+
+        // Отправляет уже закодированное сообщение; один и тот же массив может уйти многим клиентам
+        void send(byte[] payload) {
+            outbound.send(payload);
+        }
+
+        public void setYourTurn(boolean turn) {
             this.yourTurn = turn;
         }
 
-        public synchronized boolean isYourTurn() {
+        public boolean isYourTurn() {
             return yourTurn;
         }
 
-        public synchronized void setWaitingForReplayAnswer(boolean waiting) {
+        public void setWaitingForReplayAnswer(boolean waiting) {
             this.waitingForReplayAnswer = waiting;
         }
 
-        public synchronized boolean isWaitingForReplayAnswer() {
+        public boolean isWaitingForReplayAnswer() {
             return waitingForReplayAnswer;
         }
 
-        public synchronized void setGameOver(boolean over) {
+        public void setGameOver(boolean over) {
             this.gameOver = over;
         }
 
-        public synchronized boolean isGameOver() {
+        public boolean isGameOver() {
             return gameOver;
         }
 
-        public synchronized Room getCurrentRoom() {
+        public Room getCurrentRoom() {
             return currentRoom;
         }
 
-        public synchronized void setCurrentRoom(Room room) {
+        public void setCurrentRoom(Room room) {
             this.currentRoom = room;
+            if (room == null) releaseIfIdle();
         }
 
-        public synchronized void leaveRoom() {
-            if (currentRoom != null) {
-                currentRoom.removePlayer(this);
-                currentRoom = null;
+        public void leaveRoom() {
+            Room room = currentRoom;
+            if (room != null) {
+                room.removePlayer(this);
+                setCurrentRoom(null);
                 printMenuIfApplicable();
             }
         }
@@ -80,101 +634,371 @@ public class TicTacToeServer {
         @Override
         public void run() {
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+                InputStream in = socket.getInputStream();
+                InputFramer input = new InputFramer(this);
 
-                out.println("Welcome to Tic-Tac-Toe!");
-                authenticateUser();
-
-                // Вывод меню
-                printMenu();
+                onConnect();
+                Outbound.flushDirty();
 
+                byte[] buffer = new byte[8192];
                 while (true) {
-                    String input = in.readLine();
-                    if (input == null) {
+                    int n = in.read(buffer);
+                    if (n < 0) {
                         // Клиент отключился
                         break;
                     }
-
-                    //Ждём ответа о переигровке
-                    if (isWaitingForReplayAnswer()) {
-                        handleReplayAnswer(input);
-                        continue;
-                    }
-
-                    // Проверка на ход
-                    if (currentRoom != null && currentRoom.isGameInProgress()) {
-                        // Если сейчас ход этого игрока, пытаемся интерпретировать ввод как ход
-                        if (isYourTurn()) {
-                            if (tryMakeMove(input)) {
-                                continue;
-                            } 
-                        }
-                    }
-
-                    // Обработк команды, если не ход
-                    handleCommand(input);
+                    boolean ok = input.feed(ByteBuffer.wrap(buffer, 0, n));
+                    // Ответы на все команды из одного чтения уходят одной записью
+                    Outbound.flushDirty();
+                    if (!ok) break;
                 }
 
             } catch (IOException e) {
-                System.out.println("Connection error: " + e.getMessage());
+                Log.info("Connection error: {}", e.getMessage());
             } finally {
-                if (username != null) {
-                    System.out.println(username + " disconnected.");
-                    leaveRoom();
-                }
+                onDisconnect();
+                Outbound.flushDirty();
                 try {
                     socket.close();
                 } catch (IOException e) {
-                    System.out.println("Failed to close socket: " + e.getMessage());
+                    Log.info("Failed to close socket: {}", e.getMessage());
                 }
+                Admission.release(socket.getInetAddress(), clusterSession);
             }
         }
 
-        private void authenticateUser() throws IOException {
-            while (true) {
-                out.println("Enter your username (letters and digits only):");
-                String inputUsername = in.readLine();
-                if (inputUsername == null || !inputUsername.matches("[a-zA-Z0-9]+")) {
-                    out.println("Invalid username. Use letters and digits only.");
-                    continue;
+        void onConnect() {
+            Metrics.CONNECTIONS_OPENED.increment();
+            out.println("Welcome to Tic-Tac-Toe!");
+            out.println("Enter your username (letters and digits only):");
+        }
+
+        // Обработка одной входящей строки; вызывается и потоком клиента, и event loop'ом
+        void onLine(String input) {
+            if (stage == Stage.USERNAME && input.trim().equalsIgnoreCase("PROTO BINARY")) {
+                // Дальше и в ответ, и от клиента идут только кадры
+                outbound.setFramedText(true);
+                binaryProtocol = true;
+                reply(BinaryProtocol.STATUS_OK, null);
+                return;
+            }
+
+            if (stage != Stage.MENU) {
+                // RESUME <token> работает и до входа: токен сам подтверждает, чей это игрок
+                if (stage == Stage.USERNAME && input.trim().toUpperCase().startsWith("RESUME ")) {
+                    resume(input.trim().substring(7));
+                } else if (stage == Stage.USERNAME && input.startsWith(Cluster.HANDSHAKE + " ")) {
+                    clusterLogin(input);
+                } else {
+                    authenticateUser(input);
                 }
+                return;
+            }
+
+            //Ждём ответа о переигровке
+            if (isWaitingForReplayAnswer()) {
+                handleReplayAnswer(input);
+                return;
+            }
+
+            // Проверка на ход
+            if (currentRoom != null && currentRoom.isGameInProgress()) {
+                // Если сейчас ход этого игрока, пытаемся интерпретировать ввод как ход
+                if (isYourTurn()) {
+                    if (tryMakeMove(input)) {
+                        return;
+                    } 
+                }
+            }
+
+            // Обработк команды, если не ход
+            handleCommand(input);
+        }
+
+        void onDisconnect() {
+            Cluster.Route routed = route;
+            if (routed != null) {
+                // Узел комнаты увидит обрыв сессии и поступит с местом, как с обычным отключением
+                route = null;
+                routed.close();
+            }
+            leaveSpectators();
+            if (resumedAs != null) {
+                resumedAs.onDisconnect();
+                return;
+            }
+            Metrics.CONNECTIONS_CLOSED.increment();
+            disconnected = true;
+            cancelQuickplay();
+            if (username == null) return;
+
+            Room room = currentRoom;
+            GameHandler game = room == null ? null : room.getGameHandler();
+            if (graceSeconds > 0 && game != null && game.getState() == GameHandler.State.WAITING_FOR_MOVE) {
+                // Партию не отдаём сразу: место ждёт RESUME, пока не истечёт --grace-seconds
+                Log.info("{} disconnected, keeping the seat for {}s.", username, graceSeconds);
+                Outbound discarding = Outbound.discarding();
+                outbound = discarding;
+                out = discarding.writer();
+                connection = () -> { };
+                absent.set(true);
+                game.playerAway(this);
+                awaitReturn();
+                return;
+            }
+            Log.info("{} disconnected.", username);
+            endSession();
+            leaveRoom();
+        }
+
+        void awaitReturn() {
+            abandonTimer = timeouts.schedule(() -> {
+                // Место принадлежит комнате: уходим из неё в её шарде
+                Room room = currentRoom;
+                if (room == null) {
+                    abandon();
+                } else {
+                    room.execute(this::abandon);
+                }
+            }, graceSeconds, TimeUnit.SECONDS);
+        }
+
+        // Игрок не вернулся вовремя: уходит из комнаты, как при обычном отключении
+        private void abandon() {
+            if (!absent.compareAndSet(true, false)) return;
+            Metrics.ABANDONED_SEATS.increment();
+            Log.info("{} did not come back, leaving the room.", username);
+            endSession();
+            leaveRoom();
+            Outbound.flushDirty();
+        }
+
+        private void endSession() {
+            if (sessionToken != 0) {
+                sessions.remove(sessionToken, this);
+            }
+        }
+
+        private void close() {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                
+            }
+        }
+
+        // Ответ на команду: текст для человека или кадр STATUS для клиента BinaryProtocol
+        void reply(int status, String message) {
+            if (binaryProtocol) {
+                send(BinaryProtocol.frame(BinaryProtocol.STATUS, (byte) status));
+            } else if (message != null) {
+                out.println(message);
+            }
+            // Сессия с другого узла: отказ в JOIN, UNWATCH и т.п. могли оставить игрока вне комнаты
+            if (clusterSession) releaseIfIdle();
+        }
 
+        // Подсказки и меню нужны только человеку
+        private void prompt(String message) {
+            if (!binaryProtocol) {
+                out.println(message);
+            }
+        }
+
+        private void authenticateUser(String input) {
+            if (stage == Stage.USERNAME) {
+                if (!isValidUsername(input)) {
+                    out.println("Invalid username. Use letters and digits only.");
+                    out.println("Enter your username (letters and digits only):");
+                    return;
+                }
+                pendingUsername = input;
+                stage = Stage.PASSWORD;
                 out.println("Enter your password:");
-                String inputPassword = in.readLine();
-
-                synchronized (users) {
-                    if (users.containsKey(inputUsername)) {
-                        if (users.get(inputUsername).equals(inputPassword)) {
-                            username = inputUsername;
-                            out.println("Welcome back, " + username + "!");
-                            System.out.println("User logged in: " + username);
-                            break;
-                        } else {
-                            out.println("Incorrect password.");
-                        }
-                    } else {
-                        users.put(inputUsername, inputPassword);
-                        username = inputUsername;
-                        out.println("Registration successful. Welcome, " + username + "!");
-                        System.out.println("New user registered: " + username);
-                        break;
-                    }
+                return;
+            }
+
+            String inputUsername = pendingUsername;
+            pendingUsername = null;
+            login(inputUsername, input);
+        }
+
+        private static boolean isValidUsername(String name) {
+            return name.matches("[a-zA-Z0-9]+");
+        }
+
+        // "CLUSTER <секрет> <имя> <binary 0|1> <delta 0|1>": игрока присылает его узел, который уже
+        // проверил пароль; вход без пароля защищает общий секрет узлов. Сессия живёт, пока игрок
+        // в комнате этого узла, токена для RESUME у неё нет
+        private void clusterLogin(String input) {
+            String[] parts = input.trim().split(" ");
+            if (parts.length != 5 || !cluster.acceptsSecret(parts[1]) || !isValidUsername(parts[2])) {
+                Log.info("Rejected a cluster session.");
+                out.println("Cluster sessions are not accepted.");
+                close();
+                return;
+            }
+            username = parts[2];
+            stage = Stage.MENU;
+            clusterSession = true;
+            Admission.exempt(socket != null ? socket.getInetAddress() : NioServer.addressOf(connection));
+            deltaMode = parts[4].equals("1");
+            // Всё до READY (приветствие) узел игрока выбрасывает; READY ещё текстом, дальше - протокол игрока
+            send(Cluster.control("READY", false));
+            if (parts[3].equals("1")) {
+                outbound.setFramedText(true);
+                binaryProtocol = true;
+            }
+            Log.info("{} arrived from another node.", username);
+        }
+
+        // Сессия с другого узла возвращается туда, как только игрок не в комнате и не смотрит партию.
+        // END отправляется в конце единицы работы, после всего, что команда ещё напишет игроку;
+        // там же проверяется, что игрок свободен: флаги партии сбрасываются уже после выхода из комнаты
+        private void releaseIfIdle() {
+            if (clusterSession && !released.get()) {
+                Outbound.defer(this::release);
+            }
+        }
+
+        // END уходит в той же записи, что и последний ответ ("Exiting the room." и т.п.): если бы
+        // он задержался, следующая команда игрока успела бы выполниться здесь, а не на его узле
+        private void release() {
+            if (!isIdle() || !released.compareAndSet(false, true)) return;
+            send(Cluster.control("END", binaryProtocol));
+            close();
+        }
+
+        private boolean isIdle() {
+            return currentRoom == null && watching == null && quickplayTicket == null
+                    && !waitingForReplayAnswer && !disconnected;
+        }
+
+        // Комната, где ждал игрок, переехала на узел node: он создаёт её там заново той же командой
+        void moveRoom(Cluster.Node node, String command) {
+            if (clusterSession) {
+                // Пересоздаст её узел игрока
+                if (released.compareAndSet(false, true)) {
+                    send(Cluster.control("MOVE " + node.id + " " + command, binaryProtocol));
+                    close();
                 }
+                return;
+            }
+            prompt("Room moved to node " + node.id + ".");
+            cluster.route(this, node, command);
+        }
+
+        // Команда, которую вернул узел комнаты (комната переехала на этот узел), - как введённая игроком
+        void runCommand(String command) {
+            if (NioServer.runOnOwner(connection, () -> runCommand(command))) return;
+            handleCommand(command);
+            Outbound.flushDirty();
+        }
+
+        // Комната с этим именем живёт на другом узле: туда уходит сессия вместе с командой.
+        // Сессии, которые прислал другой узел, дальше не пересылаются
+        private boolean routeToNode(Cluster.Node node, String command) {
+            if (node == null || clusterSession) return false;
+            if (currentRoom != null || !cancelQuickplay()) {
+                reply(BinaryProtocol.STATUS_BAD_REQUEST, "Leave your current room first.");
+                return true;
+            }
+            leaveSpectators();
+            cluster.route(this, node, command);
+            return true;
+        }
+
+        void login(String inputUsername, String password) {
+            if (stage == Stage.MENU) {
+                reply(BinaryProtocol.STATUS_BAD_REQUEST, "Already logged in.");
+                return;
+            }
+            if (!isValidUsername(inputUsername)) {
+                loginResult(BinaryProtocol.LOGIN_INVALID_USERNAME, "Invalid username. Use letters and digits only.");
+                afterLogin();
+                return;
+            }
+            // PBKDF2 - десятки миллисекунд: в NIO-режиме он идёт на пуле logins, а соединение
+            // ждёт результата, не занимая свой loop; в блокирующем режиме поток и так свой
+            long started = Metrics.start();
+            UserStore.Result[] login = new UserStore.Result[1];
+            Runnable hash = () -> login[0] = users.login(inputUsername, password);
+            Runnable finish = () -> {
+                Metrics.recordSince(Metrics.LOGIN_LATENCY, started);
+                loginChecked(inputUsername, login[0]);
+            };
+            if (!NioServer.offload(connection, logins, hash, finish)) {
+                hash.run();
+                finish.run();
+            }
+        }
+
+        // Результат проверки пароля; вызывается в потоке соединения
+        private void loginChecked(String inputUsername, UserStore.Result login) {
+            Metrics.LOGINS.increment();
+            if (login == UserStore.Result.REGISTERED) {
+                username = inputUsername;
+                loginResult(BinaryProtocol.LOGIN_REGISTERED, "Registration successful. Welcome, " + username + "!");
+                Log.info("New user registered: {}", username);
+            } else if (login == UserStore.Result.WELCOME_BACK) {
+                username = inputUsername;
+                loginResult(BinaryProtocol.LOGIN_WELCOME_BACK, "Welcome back, " + username + "!");
+                Log.info("User logged in: {}", username);
+            } else {
+                Metrics.LOGIN_FAILURES.increment();
+                loginResult(BinaryProtocol.LOGIN_WRONG_PASSWORD, "Incorrect password.");
+            }
+            afterLogin();
+        }
+
+        private void afterLogin() {
+            if (username == null) {
+                stage = Stage.USERNAME;
+                prompt("Enter your username (letters and digits only):");
+                return;
+            }
+
+            stage = Stage.MENU;
+            sessionToken = TOKENS.nextLong();
+            sessions.put(sessionToken, this);
+            if (binaryProtocol) {
+                send(BinaryProtocol.frame(BinaryProtocol.SESSION_TOKEN, ByteBuffer.allocate(8).putLong(sessionToken).array()));
+            } else {
+                out.println("Session token: " + Long.toHexString(sessionToken) + " (RESUME <token> after a lost connection)");
+            }
+            // Вывод меню
+            printMenu();
+        }
+
+        private void loginResult(int result, String message) {
+            if (binaryProtocol) {
+                send(BinaryProtocol.frame(BinaryProtocol.LOGIN_RESULT, (byte) result));
+            } else {
+                out.println(message);
             }
         }
 
         private void printMenu() {
+            if (binaryProtocol) return;
             out.println("======================================");
             out.println("Available commands:");
-            out.println("1. LIST - Show available rooms");
-            out.println("2. CREATE <room_name> <password> - Create a new room");
+            out.println("1. LIST [page] [prefix] - Show rooms waiting for players");
+            out.println("2. CREATE <room_name> <password> [size win_length] [minutes+increment] [AI] - Create a new room (e.g. 15 5 for gomoku, 3+2 for a blitz clock, AI to play the computer)");
             out.println("3. JOIN <room_name> <password> - Join an existing room");
-            out.println("4. EXIT - Exit the game");
+            out.println("4. BOARD - Show the current board during a game");
+            out.println("5. DELTA ON|OFF - Receive only the changed cell after each move");
+            out.println("6. QUICKPLAY [CANCEL] - Find an opponent with a similar rating");
+            out.println("7. WATCH <room_name> | UNWATCH - Follow a game as a spectator");
+            out.println("8. TOURNAMENT CREATE <name> SWISS <rounds>|KO [size win_length] [minutes+increment],");
+            out.println("   TOURNAMENT JOIN|LEAVE|START|STATUS <name> - Swiss or knockout tournaments");
+            out.println("9. REPLAY <game_id> | GAMES [player] - Replay an archived game, list recent games");
+            out.println("10. STATS - Show server metrics");
+            out.println("11. EXIT - Exit the game");
             out.println("======================================");
         }
 
         private void printMenuIfApplicable() {
+            if (route != null) return; // меню пришлёт узел комнаты
             Room room = getCurrentRoom();
             if (room == null || (!room.isGameInProgress() && !isWaitingForReplayAnswer())) {
                 printMenu();
@@ -192,354 +1016,1339 @@ public class TicTacToeServer {
             String action = parts[0].toUpperCase();
 
             if (action.equals("LIST")) {
-                listRooms();
+                // LIST [page] [prefix]
+                int page = 1;
+                String prefix = "";
+                if (parts.length > 1) {
+                    try {
+                        page = Math.max(1, Integer.parseInt(parts[1]));
+                        prefix = parts.length > 2 ? parts[2].trim() : "";
+                    } catch (NumberFormatException e) {
+                        prefix = command.substring(parts[0].length()).trim();
+                    }
+                }
+                listRooms(page, prefix);
             } else if (action.equals("CREATE")) {
+                RoomSettings.Parsed parsed = parts.length < 3 ? null : RoomSettings.parse(parts[2]);
                 if (parts.length < 3) {
-                    out.println("Usage: CREATE <room_name> <password>");
+                    reply(BinaryProtocol.STATUS_BAD_REQUEST, "Usage: CREATE <room_name> <password> [size win_length] [minutes+increment] [AI]");
+                } else if (parsed.error != null) {
+                    reply(BinaryProtocol.STATUS_BAD_REQUEST, parsed.error);
                 } else {
-                    createAndJoinRoom(parts[1], parts[2]);
+                    createAndJoinRoom(parts[1], parsed.password, parsed.settings);
                 }
             } else if (action.equals("JOIN")) {
                 if (parts.length < 3) {
-                    out.println("Usage: JOIN <room_name> <password>");
+                    reply(BinaryProtocol.STATUS_BAD_REQUEST, "Usage: JOIN <room_name> <password>");
                 } else {
                     joinRoom(parts[1], parts[2]);
                 }
-            } else if (action.equals("EXIT")) {
-                out.println("Goodbye!");
-                leaveRoom();
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    
+            } else if (action.equals("BOARD")) {
+                showBoard();
+            } else if (action.equals("STATS")) {
+                out.print(Metrics.render());
+            } else if (action.equals("REPLAY")) {
+                long id = parts.length < 2 ? -1 : parseGameId(parts[1]);
+                if (id <= 0) {
+                    reply(BinaryProtocol.STATUS_BAD_REQUEST, "Usage: REPLAY <game_id>");
+                } else {
+                    // Ответ придёт из потока архива
+                    archive.replay(id, this::archiveReply);
+                }
+            } else if (action.equals("GAMES")) {
+                archive.games(parts.length > 1 ? parts[1] : username, GAMES_LISTED, this::archiveReply);
+            } else if (action.equals("DELTA")) {
+                if (parts.length > 1 && parts[1].equalsIgnoreCase("OFF")) {
+                    deltaMode = false;
+                    reply(BinaryProtocol.STATUS_OK, "Delta mode off: the whole board is sent after every move.");
+                } else {
+                    deltaMode = true;
+                    reply(BinaryProtocol.STATUS_OK, "Delta mode on: moves are sent as MOVE <mark> <row> <col>.");
+                }
+            } else if (action.equals("RESUME")) {
+                if (parts.length < 2) {
+                    reply(BinaryProtocol.STATUS_BAD_REQUEST, "Usage: RESUME <token>");
+                } else {
+                    resume(parts[1]);
                 }
+                return;
+            } else if (action.equals("QUICKPLAY")) {
+                quickplay(!(parts.length > 1 && parts[1].equalsIgnoreCase("CANCEL")));
+            } else if (action.equals("WATCH")) {
+                if (parts.length < 2) {
+                    reply(BinaryProtocol.STATUS_BAD_REQUEST, "Usage: WATCH <room_name>");
+                } else {
+                    watch(parts[1]);
+                }
+                return;
+            } else if (action.equals("UNWATCH")) {
+                unwatch();
+            } else if (action.equals("TOURNAMENT")) {
+                tournament(parts.length > 1 ? parts[1].toUpperCase() : "", parts.length > 2 ? parts[2].trim() : "");
+            } else if (action.equals("EXIT")) {
+                exit();
                 return; 
             } else {
-                out.println("Unknown command.");
+                reply(BinaryProtocol.STATUS_BAD_REQUEST, "Unknown command.");
             }
 
             printMenuIfApplicable();
         }
 
+        private static long parseGameId(String text) {
+            try {
+                return Long.parseLong(text.startsWith("#") ? text.substring(1) : text);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private void archiveReply(String text) {
+            out.print(text);
+            Outbound.flushDirty();
+        }
+
+        void showBoard() {
+            Room room = getCurrentRoom();
+            GameHandler game = room == null ? null : room.getGameHandler();
+            if (game == null) {
+                reply(BinaryProtocol.STATUS_NOT_IN_GAME, "You are not in a game.");
+            } else {
+                game.printBoardTo(this);
+            }
+        }
+
+        // Возвращение на своё место в партии: после обрыва соединения (токен сессии)
+        // или после рестарта сервера (токен места из журнала)
+        void resume(String tokenText) {
+            long token;
+            try {
+                token = Long.parseUnsignedLong(tokenText.trim(), 16);
+            } catch (NumberFormatException e) {
+                reply(BinaryProtocol.STATUS_BAD_REQUEST, "Invalid token.");
+                return;
+            }
+            ClientHandler seat = sessions.get(token);
+            if (seat == null) seat = seats.get(token);
+            if (seat == null || seat == this || (username != null && !seat.getUsername().equals(username))) {
+                reply(BinaryProtocol.STATUS_NOT_IN_GAME, "Invalid token.");
+                return;
+            }
+            if (currentRoom != null || !cancelQuickplay()) {
+                reply(BinaryProtocol.STATUS_BAD_REQUEST, "Leave your current room first.");
+                return;
+            }
+            // Место занимаем уже на шарде его комнаты: проверки там повторятся
+            Room seatRoom = seat.getCurrentRoom();
+            if (seatRoom != null && NioServer.moveTo(connection, seatRoom.shard, () -> resume(tokenText))) return;
+            if (!seat.absent.compareAndSet(true, false)) {
+                reply(BinaryProtocol.STATUS_NOT_IN_GAME, "That session is not waiting for a reconnect.");
+                return;
+            }
+            HashedWheelTimer.Timeout timer = seat.abandonTimer;
+            if (timer != null) timer.cancel();
+            seats.remove(token, seat);
+
+            // Дальше ввод этого соединения обрабатывает игрок на месте, а его вывод идёт сюда
+            seat.outbound = outbound;
+            seat.out = out;
+            seat.connection = connection;
+            seat.binaryProtocol = binaryProtocol;
+            seat.deltaMode = deltaMode;
+            seat.disconnected = false;
+            seat.stage = Stage.MENU;
+            leaveSpectators();
+            resumedAs = seat;
+            endSession();
+
+            Room room = seat.getCurrentRoom();
+            GameHandler game = room == null ? null : room.getGameHandler();
+            if (game == null || !game.isInProgress()) {
+                seat.reply(BinaryProtocol.STATUS_NOT_IN_GAME, "That game is over.");
+                seat.leaveRoom();
+                return;
+            }
+            seat.reply(BinaryProtocol.STATUS_OK, "Resuming your game in room " + room.getName() + ".");
+            Log.info("{} resumed the game in room {}", seat.getUsername(), room.getName());
+            game.playerReturned(seat);
+        }
+
+        void quickplay(boolean start) {
+            if (!start) {
+                if (quickplayTicket != null && cancelQuickplay()) {
+                    reply(BinaryProtocol.STATUS_OK, "Search cancelled.");
+                } else {
+                    reply(BinaryProtocol.STATUS_BAD_REQUEST, "You are not searching for a game.");
+                }
+                return;
+            }
+            if (username == null) {
+                // Подбор идёт по рейтингу игрока: без входа искать некого
+                reply(BinaryProtocol.STATUS_BAD_REQUEST, "Log in first.");
+            } else if (currentRoom != null) {
+                reply(BinaryProtocol.STATUS_BAD_REQUEST, "You are already in a room.");
+            } else if (quickplayTicket != null) {
+                reply(BinaryProtocol.STATUS_BAD_REQUEST, "Already searching for an opponent.");
+            } else if (!refuseWhileDraining()) {
+                int rating = Ratings.get(username);
+                quickplayTicket = matchmaker.enqueue(this, rating);
+                reply(BinaryProtocol.STATUS_OK, "Searching for an opponent (your rating: " + rating + "). Type QUICKPLAY CANCEL to stop.");
+            }
+        }
+
+        // false - пара уже найдена, игрока вот-вот посадят в комнату
+        private boolean cancelQuickplay() {
+            Matchmaker.Ticket ticket = quickplayTicket;
+            if (ticket == null) return true;
+            if (!ticket.cancel()) return false;
+            quickplayTicket = null;
+            return true;
+        }
+
+        // Посадка в комнату, которую назначил сервер (QUICKPLAY, партия турнира);
+        // с шардами - после переезда на шард комнаты
+        void enterMatchedRoom(Room room) {
+            // Занят ли игрок, проверяем там, где выполняются его команды, и только потом переезжаем
+            if (NioServer.runOnOwner(connection, () -> enterMatchedRoom(room))) return;
+            if (currentRoom != null || route != null || !cancelQuickplay()) {
+                // За пустым местом следит сама комната (у турнира - таймаут неявки)
+                prompt("You are busy and miss your game in room " + room.getName() + ".");
+                return;
+            }
+            if (NioServer.moveTo(connection, room.shard, () -> enterMatchedRoom(room))) return;
+            leaveSpectators();
+            room.addPlayer(this);
+            // Игрок мог отключиться, пока его сажали в комнату: его onDisconnect уже не увидел комнату
+            if (isDisconnected()) {
+                room.removePlayer(this);
+            }
+        }
+
+        // Вызывается потоком подбора вместо matched, если сервер уже останавливается
+        void unmatched() {
+            quickplayTicket = null;
+            reply(BinaryProtocol.STATUS_SHUTTING_DOWN, "Server is restarting, the search is cancelled.");
+        }
+
+        // Вызывается потоком подбора перед посадкой в комнату
+        void matched(ClientHandler opponent) {
+            quickplayTicket = null;
+            leaveSpectators();
+            prompt("Opponent found: " + opponent.getUsername() + " (rating " + Ratings.get(opponent.getUsername()) + ").");
+        }
+
+        // Зритель не занимает место в комнате: события партии приходят ему через SpectatorChannel
+        void watch(String roomName) {
+            if (currentRoom != null) {
+                reply(BinaryProtocol.STATUS_BAD_REQUEST, "Leave your current room first.");
+                return;
+            }
+            Room room = rooms.get(roomName);
+            if (room == null && routeToNode(cluster.locate(roomName), "WATCH " + roomName)) return;
+            if (room == null) {
+                reply(BinaryProtocol.STATUS_ROOM_NOT_FOUND, "Room not found.");
+                return;
+            }
+            leaveSpectators();
+            // Ответ уходит раньше первой позиции, которую зрителю пришлёт поток рассылки
+            reply(BinaryProtocol.STATUS_OK, "Watching room " + room.getName() + ". Type UNWATCH to stop.");
+            Outbound.flushDirty();
+            SpectatorChannel channel = room.getSpectators();
+            if (!channel.add(this)) {
+                reply(BinaryProtocol.STATUS_ROOM_NOT_FOUND, "Room was closed.");
+                return;
+            }
+            watching = channel;
+            // Пока зрителей не было, игра не обновляла позицию для трансляции.
+            // Зритель не переезжает на шард комнаты: просим шард сам опубликовать позицию
+            room.execute(() -> {
+                GameHandler game = room.getGameHandler();
+                if (game != null && channel.isStale()) {
+                    game.publishToSpectators();
+                }
+            });
+        }
+
+        void unwatch() {
+            if (watching == null) {
+                reply(BinaryProtocol.STATUS_NOT_IN_GAME, "You are not watching a game.");
+                return;
+            }
+            leaveSpectators();
+            reply(BinaryProtocol.STATUS_OK, "Stopped watching.");
+        }
+
+        private void leaveSpectators() {
+            SpectatorChannel channel = watching;
+            if (channel != null) {
+                channel.remove(this);
+                watching = null;
+            }
+        }
+
+        // Комната закрылась, канал сам отпустил зрителя
+        void stopWatching(SpectatorChannel channel) {
+            if (watching == channel) {
+                watching = null;
+                releaseIfIdle();
+            }
+        }
+
+        // Команды турниров выполняет поток Tournaments, ответ приходит оттуда
+        private void tournament(String action, String rest) {
+            String[] args = rest.split(" +", 2);
+            String name = args[0];
+            if (name.isEmpty()) {
+                reply(BinaryProtocol.STATUS_BAD_REQUEST, "Usage: TOURNAMENT CREATE|JOIN|LEAVE|START|STATUS <name>");
+                return;
+            }
+            switch (action) {
+                case "CREATE": if (!refuseWhileDraining()) createTournament(name, args.length > 1 ? args[1] : ""); break;
+                case "JOIN": tournaments.join(this, name); break;
+                case "LEAVE": tournaments.leave(this, name); break;
+                case "START": if (!refuseWhileDraining()) tournaments.start(this, name); break;
+                case "STATUS": tournaments.status(this, name); break;
+                default: reply(BinaryProtocol.STATUS_BAD_REQUEST, "Usage: TOURNAMENT CREATE|JOIN|LEAVE|START|STATUS <name>");
+            }
+        }
+
+        // "<SWISS <rounds>|KO> [size win_length] [minutes+increment]"; настройки партий - как у CREATE, без бота
+        private void createTournament(String name, String spec) {
+            String[] tokens = spec.trim().split(" +", 2);
+            String format = tokens[0].toUpperCase();
+            String settingsText = tokens.length > 1 ? tokens[1] : "";
+            int rounds = 0;
+            if (format.equals("SWISS")) {
+                String[] roundsAndRest = settingsText.split(" +", 2);
+                try {
+                    rounds = Integer.parseInt(roundsAndRest[0]);
+                } catch (NumberFormatException e) {
+                    rounds = 0;
+                }
+                settingsText = roundsAndRest.length > 1 ? roundsAndRest[1] : "";
+            }
+            RoomSettings.Parsed parsed = RoomSettings.parse("- " + settingsText);
+            if (!(format.equals("KO") || (format.equals("SWISS") && rounds >= 1 && rounds <= Tournaments.MAX_SWISS_ROUNDS))) {
+                reply(BinaryProtocol.STATUS_BAD_REQUEST, "Usage: TOURNAMENT CREATE <name> SWISS <rounds 1.."
+                        + Tournaments.MAX_SWISS_ROUNDS + ">|KO [size win_length] [minutes+increment]");
+            } else if (parsed.error != null) {
+                reply(BinaryProtocol.STATUS_BAD_REQUEST, parsed.error);
+            } else if (!parsed.password.equals("-") || parsed.settings.ai) {
+                reply(BinaryProtocol.STATUS_BAD_REQUEST, RoomSettings.SIZE_ERROR);
+            } else {
+                tournaments.create(this, name, format.equals("KO") ? Tournaments.Format.KNOCKOUT : Tournaments.Format.SWISS,
+                        rounds, parsed.settings);
+            }
+        }
+
+        void exit() {
+            reply(BinaryProtocol.STATUS_OK, "Goodbye!");
+            leaveRoom();
+            if (clusterSession && released.compareAndSet(false, true)) {
+                // Соединение с игроком закроет его узел
+                send(Cluster.control("CLOSE", binaryProtocol));
+            }
+            close();
+        }
+
         private void handleReplayAnswer(String input) {
             input = input.trim().toLowerCase();
             if (input.equals("yes")) {
-                setWaitingForReplayAnswer(false);
-                Room room = getCurrentRoom();
-                if (room != null && room.getGameHandler() != null) {
-                    room.getGameHandler().playerReplayAnswer(this, true);
-                }
+                answerReplay(true);
             } else if (input.equals("no")) {
-                setWaitingForReplayAnswer(false);
-                Room room = getCurrentRoom();
-                if (room != null && room.getGameHandler() != null) {
-                    room.getGameHandler().playerReplayAnswer(this, false);
-                }
+                answerReplay(false);
             } else {
                 out.println("Please answer yes or no:");
-                return;
             }
+        }
 
+        void answerReplay(boolean again) {
+            if (!isWaitingForReplayAnswer()) {
+                reply(BinaryProtocol.STATUS_NOT_IN_GAME, "Nothing to answer.");
+                return;
+            }
+            setWaitingForReplayAnswer(false);
+            Room room = getCurrentRoom();
+            if (room != null && room.getGameHandler() != null) {
+                room.getGameHandler().playerReplayAnswer(this, again);
+            }
             printMenuIfApplicable();
         }
 
-        private void listRooms() {
-            if (rooms.isEmpty()) {
-                out.println("No available rooms.");
-            } else {
-                StringBuilder roomList = new StringBuilder("Available rooms:\n");
-                rooms.forEach((name, room) -> {
-                    String roomStatus = room.isFull() ? "(Full)" : "(Waiting for players)";
-                    roomList.append("- ").append(name).append(" ").append(roomStatus).append("\n");
-                });
-                out.println(roomList);
+        // LIST [page] [prefix]: одна страница комнат, в которые можно войти
+        void listRooms(int page, String prefix) {
+            String after = page == listPage + 1 && prefix.equals(listPrefix) ? listLast : null;
+            if (after == null && page > RoomRegistry.MAX_PAGE) {
+                reply(BinaryProtocol.STATUS_BAD_REQUEST, "Page " + page + " is too far: page through with LIST <n+1> or narrow the list with a name prefix.");
+                return;
+            }
+            // В кластере - вместе с комнатами других узлов по их последнему ROOMS
+            RoomRegistry.Page result = rooms.joinablePage(page, prefix, after, cluster.directory());
+            listPage = page;
+            listPrefix = prefix;
+            listLast = result.last;
+            if (binaryProtocol) {
+                sendRoomList(result);
+            } else if (result.rooms.isEmpty()) {
+                out.println(page == 1 ? "No available rooms." : "No more rooms.");
+            } else {
+                StringBuilder roomList = new StringBuilder("Rooms waiting for players (page ").append(page)
+                        .append(", ").append(rooms.joinableCount() + cluster.directory().size()).append(" of ")
+                        .append(rooms.size() + cluster.remoteRoomCount()).append(" open):\n");
+                for (RoomRegistry.Listing room : result.rooms) {
+                    roomList.append("- ").append(room.getName());
+                    if (!room.getSettings().isClassic()) {
+                        roomList.append(" [").append(room.getSettings().describe()).append("]");
+                    }
+                    roomList.append("\n");
+                }
+                if (result.hasMore) {
+                    roomList.append("Next page: LIST ").append(page + 1).append(prefix.isEmpty() ? "" : " " + prefix).append("\n");
+                }
+                out.print(roomList);
+            }
+        }
+
+        // Страница комнат кадром ROOM_LIST; первый байт - есть ли следующая страница
+        private void sendRoomList(RoomRegistry.Page page) {
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            entries.write(page.hasMore ? 1 : 0);
+            for (RoomRegistry.Listing room : page.rooms) {
+                byte[] name = room.getName().getBytes(StandardCharsets.UTF_8);
+                int nameLength = Math.min(name.length, 255); // имена длиннее 255 байт обрезаются
+                entries.write(nameLength);
+                entries.write(name, 0, nameLength);
+                entries.write(room.getSettings().size);
+                entries.write(room.getSettings().winLength);
+                entries.write((room.getSettings().ai ? 2 : 0) | (room.getSettings().hasClock() ? 4 : 0));
+            }
+            send(BinaryProtocol.frame(BinaryProtocol.ROOM_LIST, entries.toByteArray()));
+        }
+
+        void createAndJoinRoom(String roomName, String password, RoomSettings settings) {
+            password = RoomSettings.normalizePassword(password);
+            // Имя принадлежит другому узлу: комната создаётся там
+            if (rooms.get(roomName) == null
+                    && routeToNode(cluster.ownerOf(roomName), "CREATE " + roomName + " " + password + settings.commandTail())) {
+                return;
+            }
+            if (!clusterSession && cluster.listing(roomName) != null) {
+                reply(BinaryProtocol.STATUS_ROOM_EXISTS, "Room already exists.");
+                return;
+            }
+            if (refuseWhileDraining()) return;
+            Room newRoom = new Room(roomName, password, settings);
+            // putIfAbsent вместо synchronized (rooms): создание атомарно и не держит общий монитор
+            if (!rooms.create(newRoom)) {
+                reply(BinaryProtocol.STATUS_ROOM_EXISTS, "Room already exists.");
+                return;
+            }
+            journal.roomCreated(roomName, password, settings);
+            prompt("Room created: " + roomName + ". Joining the room...");
+            Log.info("Room created: {} ({})", roomName, settings.describe());
+            enterRoom(newRoom);
+        }
+
+        void joinRoom(String roomName, String password) {
+            password = RoomSettings.normalizePassword(password);
+            Room room = rooms.get(roomName);
+            if (room == null && routeToNode(cluster.locate(roomName), "JOIN " + roomName + " " + password)) return;
+            if (room == null) {
+                reply(BinaryProtocol.STATUS_ROOM_NOT_FOUND, "Room not found.");
+            } else if (!room.getPassword().equals(password)) {
+                reply(BinaryProtocol.STATUS_WRONG_PASSWORD, "Incorrect password.");
+            } else if (!refuseWhileDraining()) {
+                prompt("Joining room: " + roomName);
+                Log.info("Player joining room: {}", roomName);
+                enterRoom(room);
+            }
+        }
+
+        // Сервер останавливается: партия, которая начнётся сейчас, не успеет доиграться
+        private boolean refuseWhileDraining() {
+            if (!draining) return false;
+            reply(BinaryProtocol.STATUS_SHUTTING_DOWN, "Server is restarting, new games are not started.");
+            return true;
+        }
+
+        private void enterRoom(Room room) {
+            if (currentRoom != null) {
+                reply(BinaryProtocol.STATUS_BAD_REQUEST, "You are already in a room.");
+                return;
+            }
+            if (!cancelQuickplay()) {
+                reply(BinaryProtocol.STATUS_BAD_REQUEST, "Matchmaking in progress, try again.");
+                return;
+            }
+            // Игрок переезжает на шард комнаты, там проверки повторятся
+            if (NioServer.moveTo(connection, room.shard, () -> enterRoom(room))) return;
+            leaveSpectators();
+            int status = room.addPlayer(this);
+            if (status == BinaryProtocol.STATUS_ROOM_FULL) {
+                reply(status, "Room is full.");
+            } else if (status != BinaryProtocol.STATUS_OK) {
+                reply(status, "Room not found.");
+            }
+        }
+
+        private boolean tryMakeMove(String input) {
+            String[] parts = input.trim().split(" ");
+            if (parts.length == 2) {
+                try {
+                    int row = Integer.parseInt(parts[0]);
+                    int col = Integer.parseInt(parts[1]);
+                    Room room = getCurrentRoom();
+                    if (room != null && room.isGameInProgress()) {
+                        makeMove(row, col);
+                        return true; 
+                    }
+                } catch (NumberFormatException e) {
+                    // Не число
+                }
+            }
+            return false; 
+        }
+
+        // Ход с номерами строки и столбца с 1, как их вводит игрок
+        void makeMove(int row, int col) {
+            Room room = getCurrentRoom();
+            GameHandler game = room == null ? null : room.getGameHandler();
+            if (game == null || !game.isInProgress()) {
+                reply(BinaryProtocol.STATUS_NOT_IN_GAME, "You are not in a game.");
+                return;
+            }
+            int status = game.tryMove(this, row, col);
+            if (status == BinaryProtocol.STATUS_NOT_YOUR_TURN) {
+                reply(status, "Not your turn!");
+            } else if (status != BinaryProtocol.STATUS_OK) {
+                reply(status, "Invalid move. Try again.");
+            }
+        }
+
+        // События игры: человеку - строки как раньше, клиенту BinaryProtocol - кадры
+
+        void gameStarted(GameBoard board, char mark, String message) {
+            if (binaryProtocol) {
+                send(BinaryProtocol.frame(BinaryProtocol.GAME_START,
+                        (byte) board.size(), (byte) board.winLength(), BinaryProtocol.mark(mark)));
+            } else {
+                out.println(message);
+            }
+        }
+
+        void turnChanged(boolean mine, char mark, String opponentName) {
+            if (binaryProtocol) {
+                send(BinaryProtocol.frame(BinaryProtocol.TURN, (byte) (mine ? 1 : 0), BinaryProtocol.mark(mark)));
+            } else if (mine) {
+                out.println("It is now your turn. You are " + mark + ".");
+            } else {
+                out.println("Please wait. Opponent (" + opponentName + ") is making a move. You are " + mark + ".");
+            }
+        }
+
+        void clockChanged(long xMillis, long oMillis) {
+            if (binaryProtocol) {
+                send(BinaryProtocol.frame(BinaryProtocol.CLOCK,
+                        ByteBuffer.allocate(8).putInt((int) xMillis).putInt((int) oMillis).array()));
+            } else {
+                out.println("Clock: X " + formatClock(xMillis) + ", O " + formatClock(oMillis));
+            }
+        }
+
+        private static String formatClock(long millis) {
+            long seconds = (millis + 999) / 1000;
+            return seconds / 60 + ":" + (seconds % 60 < 10 ? "0" : "") + seconds % 60;
+        }
+
+        void gameResult(int result) {
+            if (binaryProtocol) {
+                send(BinaryProtocol.frame(BinaryProtocol.RESULT, (byte) result));
+                return;
+            }
+            switch (result) {
+                case BinaryProtocol.RESULT_WIN: out.println("You win!"); break;
+                case BinaryProtocol.RESULT_LOSE: out.println("You lose."); break;
+                case BinaryProtocol.RESULT_DRAW: out.println("It's a draw!"); break;
+                default: out.println("Your opponent left the game."); break;
+            }
+        }
+
+        void seatToken(long token) {
+            if (binaryProtocol) {
+                send(BinaryProtocol.frame(BinaryProtocol.SEAT_TOKEN, ByteBuffer.allocate(8).putLong(token).array()));
+            } else {
+                out.println("Reconnect token: " + Long.toHexString(token) + " (RESUME <token> after a server restart)");
+            }
+        }
+
+        void promptReplay() {
+            if (binaryProtocol) {
+                send(BinaryProtocol.frame(BinaryProtocol.REPLAY_PROMPT));
+            } else {
+                out.println("Do you want to play again with the same player? (yes/no):");
+            }
+        }
+    }
+
+    static class Room implements RoomRegistry.Listing {
+        private final String name;
+        private final String password;
+        private final RoomSettings settings;
+        private final List<ClientHandler> players = new ArrayList<>();
+        final Executor shard; // null - без шардов, комнату защищает блокировка
+        private final Lock lock;
+        private GameHandler gameHandler;
+        private Tournaments.Game tournamentGame; // стол турнира: без переигровки, результат уходит турниру
+        private boolean closed; // комната опустела и удалена из реестра
+        private final SpectatorChannel spectators = new SpectatorChannel(executor, timeouts);
+
+        // Комната создаётся на шарде, где выполняется команда CREATE
+        public Room(String name, String password, RoomSettings settings) {
+            this(name, password, settings, NioServer.currentShard());
+        }
+
+        Room(String name, String password, RoomSettings settings, Executor shard) {
+            this.name = name;
+            this.password = password;
+            this.settings = settings;
+            this.shard = shard;
+            this.lock = NioServer.lockFor(shard);
+        }
+
+        // Действие над комнатой из чужого потока (таймер, бот, зритель): сразу или задачей её шарду
+        void execute(Runnable task) {
+            if (shard == null || NioServer.currentShard() == shard) {
+                task.run();
+            } else {
+                shard.execute(task);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        @Override
+        public RoomSettings getSettings() {
+            return settings;
+        }
+
+        SpectatorChannel getSpectators() {
+            return spectators;
+        }
+
+        // До публикации комнаты в реестре
+        void setTournamentGame(Tournaments.Game game) {
+            this.tournamentGame = game;
+        }
+
+        Tournaments.Game getTournamentGame() {
+            return tournamentGame;
+        }
+
+        // ReentrantLock вместо synchronized: виртуальный поток не пинит carrier-поток,
+        // пока ждёт блокировку комнаты (с шардами блокировка пустая, см. NioServer.lockFor).
+        // Возвращает BinaryProtocol.STATUS_OK или причину отказа
+        public int addPlayer(ClientHandler player) {
+            lock.lock();
+            try {
+                if (closed) return BinaryProtocol.STATUS_ROOM_NOT_FOUND;
+                if (players.size() >= 2) return BinaryProtocol.STATUS_ROOM_FULL;
+                players.add(player);
+                player.setCurrentRoom(this);
+                player.reply(BinaryProtocol.STATUS_OK, "You joined room: " + name);
+                if (players.size() == 1 && settings.ai) {
+                    ClientHandler bot = ClientHandler.bot();
+                    players.add(bot);
+                    bot.setCurrentRoom(this);
+                    player.out.println("You are playing against the computer. Starting the game...");
+                    Log.info("Game starting in room: {} (vs AI)", name);
+                    startGame();
+                } else if (players.size() == 1) {
+                    player.out.println("Waiting for another player to join...");
+                } else if (players.size() == 2) {
+                    players.forEach(p -> p.out.println("Another player joined. Starting the game..."));
+                    Log.info("Game starting in room: {}", name);
+                    startGame();
+                }
+                rooms.setJoinable(this, players.size() < 2);
+                return BinaryProtocol.STATUS_OK;
+            } finally {
+                lock.unlock();
             }
         }
 
-        private void createAndJoinRoom(String roomName, String password) {
-            synchronized (rooms) {
-                if (rooms.containsKey(roomName)) {
-                    out.println("Room already exists.");
+        public void removePlayer(ClientHandler player) {
+            GameHandler handler;
+            lock.lock();
+            try {
+                if (!players.remove(player)) return;
+                player.setCurrentRoom(null);
+                handler = gameHandler;
+                // Без людей боту (и местам, на которые так никто и не вернулся) в комнате делать нечего
+                if (players.stream().allMatch(p -> p.isBot() || p.isAbsent())) {
+                    players.forEach(p -> p.setCurrentRoom(null));
+                    players.clear();
+                }
+                // Если игроков не осталось, удаляем комнату
+                if (players.isEmpty()) {
+                    close();
                 } else {
-                    Room newRoom = new Room(roomName, password);
-                    rooms.put(roomName, newRoom);
-                    out.println("Room created: " + roomName + ". Joining the room...");
-                    System.out.println("Room created: " + roomName);
-                    newRoom.addPlayer(this);
-                    out.println("You joined room: " + roomName);
+                    rooms.setJoinable(this, players.size() < 2);
                 }
+            } finally {
+                lock.unlock();
+            }
+            // Игру уведомляем вне блокировки комнаты: игра сама может вызвать removePlayer
+            if (handler != null) {
+                handler.playerLeft(player);
             }
         }
 
-        private void joinRoom(String roomName, String password) {
-            Room room;
-            synchronized (rooms) {
-                room = rooms.get(roomName);
-            }
+        private void close() {
+            closed = true;
+            rooms.remove(this);
+            journal.roomRemoved(name);
+            spectators.close("Room " + name + " was closed.");
+            Log.info("Room {} is empty and removed.", name);
+        }
 
-            if (room == null) {
-                out.println("Room not found.");
-            } else if (!room.getPassword().equals(password)) {
-                out.println("Incorrect password.");
-            } else {
-                out.println("Joining room: " + roomName);
-                System.out.println("Player joining room: " + roomName);
-                room.addPlayer(this);
-                out.println("You joined room: " + roomName);
+        // Комната переезжает на другой узел кластера: ожидающий второго игрока уходит из неё без
+        // сообщений, и она закрывается. null - в комнате уже игра, двое или никого
+        ClientHandler releaseWaitingPlayer() {
+            lock.lock();
+            try {
+                if (closed || gameHandler != null || players.size() != 1 || players.get(0).isBot()) return null;
+                ClientHandler player = players.remove(0);
+                player.currentRoom = null; // без releaseIfIdle: сессию отпустит moveRoom
+                close();
+                return player;
+            } finally {
+                lock.unlock();
             }
         }
 
-        private boolean tryMakeMove(String input) {
-            String[] parts = input.trim().split(" ");
-            if (parts.length == 2) {
-                try {
-                    int row = Integer.parseInt(parts[0]);
-                    int col = Integer.parseInt(parts[1]);
-                    Room room = getCurrentRoom();
-                    if (room != null && room.isGameInProgress()) {
-                        boolean moveMade = room.getGameHandler().tryMove(this, row, col);
-                        if (!moveMade) {
-                            out.println("Invalid move. Try again.");
-                        }
-                        return true; 
-                    }
-                } catch (NumberFormatException e) {
-                    // Не число
-                }
+        // Турнир учёл результат стола: игроки выходят в меню, комната закрывается
+        void dismiss() {
+            List<ClientHandler> seated;
+            lock.lock();
+            try {
+                if (closed) return;
+                seated = new ArrayList<>(players);
+                if (seated.isEmpty()) close();
+            } finally {
+                lock.unlock();
+            }
+            for (ClientHandler player : seated) {
+                player.leaveRoom();
             }
-            return false; 
         }
-    }
-
-    private static class Room {
-        private final String name;
-        private final String password;
-        private final List<ClientHandler> players = new ArrayList<>();
-        private GameHandler gameHandler;
 
-        public Room(String name, String password) {
-            this.name = name;
-            this.password = password;
+        // Таймаут неявки за стол турнира: партия так и не началась - не севший проигрывает
+        void checkNoShow() {
+            String present;
+            lock.lock();
+            try {
+                if (gameHandler != null) return;
+                // Комната могла и закрыться: единственный севший успел уйти
+                present = players.isEmpty() ? null : players.get(0).getUsername();
+            } finally {
+                lock.unlock();
+            }
+            tournaments.noShow(tournamentGame, present);
         }
 
-        public String getName() {
-            return name;
+        public boolean isFull() {
+            lock.lock();
+            try {
+                return players.size() >= 2;
+            } finally {
+                lock.unlock();
+            }
         }
 
-        public String getPassword() {
-            return password;
+        public boolean isGameInProgress() {
+            GameHandler handler = getGameHandler();
+            return handler != null && handler.isInProgress();
         }
 
-        public synchronized void addPlayer(ClientHandler player) {
-            players.add(player);
-            player.setCurrentRoom(this);
-            if (players.size() == 1) {
-                player.out.println("Waiting for another player to join...");
-            } else if (players.size() == 2) {
-                players.forEach(p -> p.out.println("Another player joined. Starting the game..."));
-                System.out.println("Game starting in room: " + name);
-                startGame();
+        public GameHandler getGameHandler() {
+            lock.lock();
+            try {
+                return gameHandler;
+            } finally {
+                lock.unlock();
             }
         }
 
-        public synchronized void removePlayer(ClientHandler player) {
-            players.remove(player);
-            player.setCurrentRoom(null);
-            // Если игроков не осталось, удаляем комнату
-            if (players.isEmpty()) {
-                rooms.remove(name);
-                System.out.println("Room " + name + " is empty and removed.");
+        // Партия из снимка или журнала: места уже заняты, игра продолжается с сохранённого хода.
+        // clockMillis - остаток часов (только из снимка), null - часы сначала
+        void restore(List<ClientHandler> restoredPlayers, GameBoard board, int firstPlayer, int[] moves,
+                     int currentPlayerIndex, long[] seatTokens, long[] clockMillis) {
+            lock.lock();
+            try {
+                players.addAll(restoredPlayers);
+                restoredPlayers.forEach(p -> p.setCurrentRoom(this));
+                gameHandler = new GameHandler(this, new ArrayList<>(players), board, seatTokens);
+                gameHandler.resume(firstPlayer, moves, currentPlayerIndex, clockMillis);
+            } finally {
+                lock.unlock();
             }
         }
 
-        public synchronized boolean isFull() {
-            return players.size() >= 2;
-        }
-
-        public synchronized boolean isGameInProgress() {
-            return gameHandler != null && gameHandler.isInProgress();
+        // Остановка сервера: ждём, пока доиграют партии, за которыми кто-то сидит
+        boolean isBeingPlayed() {
+            GameHandler handler = getGameHandler();
+            return handler != null && handler.isBeingPlayed();
         }
 
-        public synchronized GameHandler getGameHandler() {
-            return gameHandler;
+        // Остановка сервера: партия замирает для снимка; null - партия не идёт
+        Snapshot.Game suspend() {
+            GameHandler handler = getGameHandler();
+            return handler == null ? null : handler.suspend();
         }
 
-        private synchronized void startGame() {
+        private void startGame() {
             gameHandler = new GameHandler(this, new ArrayList<>(players));
             gameHandler.start();
         }
 
-        public synchronized void endGame() {
+        public void endGame() {
             
         }
     }
 
-    private static class GameHandler extends Thread {
+    // Игра как конечный автомат: состояние меняется прямо в tryMove/playerReplayAnswer/playerLeft,
+    // отдельный поток на комнату не нужен
+    static class GameHandler {
+        enum State { WAITING_FOR_MOVE, WAITING_FOR_REPLAY, FINISHED }
+
         private final Room room;
         private final List<ClientHandler> players;
-        private char[][] board = new char[3][3];
+        private final Lock lock;
+        private final GameBoard board;
+        private int boardVersion = 0; // меняется при каждом изменении поля
+        private byte[] renderedBoard; // кэш рендера большого поля для boardVersion == renderedVersion
+        private int renderedVersion = -1;
+        private byte[] renderedFrame; // то же для кадра BinaryProtocol.BOARD_STATE
+        private int renderedFrameVersion = -1;
         private int currentPlayerIndex = 0;
-        private boolean inProgress = true;
-        private boolean waitingReplay = false;
+        private volatile State state = State.WAITING_FOR_MOVE;
         private final Map<ClientHandler, Boolean> replayAnswers = new HashMap<>();
+        private final long[] seatTokens; // по ним игроки возвращаются в партию после рестарта (RESUME)
+        // Часы: остаток партии у каждого игрока (если у комнаты есть часы) и таймаут текущего хода
+        private final long[] clockNanos = new long[2];
+        private long turnStartedAt;
+        private HashedWheelTimer.Timeout turnTimeout;
+        private int turnNumber; // устаревший таймаут прошлого хода ничего не делает
+        // Запись партии для архива: клетки row * size + col по порядку, кто ходил первым, когда началась
+        private final int[] moves;
+        private int moveCount;
+        private int firstPlayerIndex;
+        private long startedMillis;
 
         public GameHandler(Room room, List<ClientHandler> players) {
+            this(room, players, GameBoard.create(room.getSettings().size, room.getSettings().winLength),
+                    new long[] {TOKENS.nextLong(), TOKENS.nextLong()});
+        }
+
+        GameHandler(Room room, List<ClientHandler> players, GameBoard board, long[] seatTokens) {
             this.room = room;
+            this.lock = NioServer.lockFor(room.shard);
             this.players = players;
-            for (char[] row : board) {
-                Arrays.fill(row, ' ');
+            this.board = board;
+            this.seatTokens = seatTokens;
+            this.moves = new int[board.size() * board.size()];
+            resetClocks();
+        }
+
+        // Продолжение партии, восстановленной из снимка или журнала. Время начала они не хранят:
+        // в архиве партия считается начатой при восстановлении
+        void resume(int firstPlayer, int[] restoredMoves, int playerIndex, long[] clockMillis) {
+            lock.lock();
+            try {
+                newRecord(firstPlayer);
+                System.arraycopy(restoredMoves, 0, moves, 0, restoredMoves.length);
+                moveCount = restoredMoves.length;
+                currentPlayerIndex = playerIndex;
+                if (clockMillis != null) {
+                    for (int i = 0; i < 2; i++) {
+                        clockNanos[i] = TimeUnit.MILLISECONDS.toNanos(clockMillis[i]);
+                    }
+                }
+                state = State.WAITING_FOR_MOVE;
+                gameBegan();
+                beginTurn();
+            } finally {
+                lock.unlock();
             }
         }
 
-        public synchronized boolean isInProgress() {
-            return inProgress;
+        // Игрок вернулся на своё место командой RESUME: показываем ему партию заново
+        void playerReturned(ClientHandler player) {
+            lock.lock();
+            try {
+                int index = players.indexOf(player);
+                if (index < 0 || state != State.WAITING_FOR_MOVE) return;
+                player.gameStarted(board, markOf(index), "Game is resuming!");
+                player.send(player.isBinaryProtocol() ? currentBoardFrame() : currentBoardBytes());
+                ClientHandler opponent = players.get(1 - index);
+                boolean mine = index == currentPlayerIndex;
+                player.turnChanged(mine, markOf(index), opponent.getUsername());
+                if (room.getSettings().hasClock()) {
+                    player.clockChanged(clockMillis(0), clockMillis(1));
+                }
+                if (!mine && opponent.isAbsent()) {
+                    player.out.println("Your opponent has not reconnected yet.");
+                }
+                if (opponent.getCurrentRoom() == room) {
+                    opponent.out.println("Your opponent reconnected.");
+                }
+            } finally {
+                lock.unlock();
+            }
         }
 
-        @Override
-        public void run() {
-            // Случайно выбираем, кто ходит первым при первом запуске игры
-            currentPlayerIndex = new Random().nextInt(2);
+        // Соединение игрока оборвалось, но место за ним держится до RESUME или таймаута
+        void playerAway(ClientHandler player) {
+            lock.lock();
+            try {
+                for (ClientHandler p : players) {
+                    if (p != player && p.getCurrentRoom() == room) {
+                        p.out.println("Your opponent disconnected. Waiting up to " + graceSeconds + "s for them to return...");
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
 
-            broadcast("Game is starting!");
-            printBoardToAll();
-            informTurns();
+        public boolean isInProgress() {
+            return state != State.FINISHED;
+        }
 
-            gameLoop();
+        // Ход ждут, и хотя бы один человек за столом на связи
+        boolean isBeingPlayed() {
+            lock.lock();
+            try {
+                if (state != State.WAITING_FOR_MOVE) return false;
+                for (ClientHandler p : players) {
+                    if (!p.isBot() && !p.isAbsent()) return true;
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
 
-            inProgress = false;
-            room.endGame();
+        // Остановка сервера: партия замирает как есть и уходит в снимок. В журнале она остаётся
+        // незаконченной, так что без снимка её поднимет журнал; в архив она не пишется
+        Snapshot.Game suspend() {
+            lock.lock();
+            try {
+                if (state != State.WAITING_FOR_MOVE) return null;
+                long[] clocks = room.getSettings().hasClock() ? new long[] {clockMillis(0), clockMillis(1)} : null;
+                if (turnTimeout != null) {
+                    turnTimeout.cancel();
+                    turnTimeout = null;
+                }
+                state = State.FINISHED;
+                Metrics.GAMES_ACTIVE.decrement();
+                String[] names = new String[2];
+                int bots = 0;
+                for (int i = 0; i < 2; i++) {
+                    ClientHandler p = players.get(i);
+                    names[i] = p.getUsername();
+                    if (p.isBot()) bots |= 1 << i;
+                    if (!p.isBot() && p.getCurrentRoom() == room) {
+                        p.setYourTurn(false);
+                        p.setGameOver(true);
+                        p.out.println("Server is restarting. Log in again and send RESUME "
+                                + Long.toHexString(seatTokens[i]) + " to continue this game.");
+                    }
+                }
+                return new Snapshot.Game(room.getName(), room.getPassword(), room.getSettings(), names, bots,
+                        firstPlayerIndex, seatTokens.clone(), Arrays.copyOf(moves, moveCount), clocks);
+            } finally {
+                lock.unlock();
+            }
         }
 
-        private void gameLoop() {
-            while (true) {
-                ClientHandler currentPlayer = players.get(currentPlayerIndex);
-                ClientHandler opponent = players.get(1 - currentPlayerIndex);
+        public State getState() {
+            return state;
+        }
+
+        public void start() {
+            lock.lock();
+            try {
+                // Случайно выбираем, кто ходит первым при первом запуске игры
+                currentPlayerIndex = new Random().nextInt(2);
+                newRecord(currentPlayerIndex);
+                gameBegan();
 
-                setPlayerTurn(currentPlayer, true);
-                waitForAction(); // Ожидание хода
+                announceStart("Game is starting!");
+                printBoardToAll();
+                beginTurn();
+            } finally {
+                lock.unlock();
+            }
+        }
 
-                if (checkWin()) {
-                    currentPlayer.out.println("You win!");
-                    opponent.out.println("You lose.");
-                    break;
-                } else if (isBoardFull()) {
-                    broadcast("It's a draw!");
-                    break;
+        // Возвращает BinaryProtocol.STATUS_OK или причину, по которой ход не принят
+        public int tryMove(ClientHandler player, int row, int col) {
+            long started = Metrics.start();
+            lock.lock();
+            try {
+                if (state != State.WAITING_FOR_MOVE || players.get(currentPlayerIndex) != player) {
+                    return BinaryProtocol.STATUS_NOT_YOUR_TURN;
                 }
 
-                setPlayerTurn(currentPlayer, false);
-                currentPlayerIndex = 1 - currentPlayerIndex;
-                informTurns();
-            }
+                row = row - 1;
+                col = col - 1;
+                int size = board.size();
+                if (row < 0 || row >= size || col < 0 || col >= size || !board.isFree(row, col)) {
+                    return BinaryProtocol.STATUS_INVALID_MOVE;
+                }
 
-            // Игра закончилась, предлагаем переиграть
-            waitingReplay = true;
-            replayAnswers.clear();
-            for (ClientHandler p : players) {
-                if (p.getCurrentRoom() == room) {
-                    p.out.println("Do you want to play again with the same player? (yes/no):");
-                    p.setWaitingForReplayAnswer(true);
+                stopClock();
+                // Победу проверяем сразу при установке: только линии через эту клетку
+                boolean won = board.place(row, col, currentPlayerIndex);
+                boardVersion++;
+                moves[moveCount++] = row * size + col;
+                journal.move(room.getName(), currentPlayerIndex, row, col);
+                Log.info("Move by {} at {}, {}", player.getUsername(), (row+1), (col+1));
+                printMoveToAll(row, col);
+                room.getSpectators().publishMove(board, spectatorHeader(1 - currentPlayerIndex),
+                        markOf(currentPlayerIndex), row, col);
+
+                ClientHandler opponent = players.get(1 - currentPlayerIndex);
+                if (won) {
+                    player.gameResult(BinaryProtocol.RESULT_WIN);
+                    opponent.gameResult(BinaryProtocol.RESULT_LOSE);
+                    room.getSpectators().publishText(player.getUsername() + " (" + markOf(currentPlayerIndex) + ") wins.");
+                    rate(player, opponent, 1.0);
+                    journal.gameEnded(room.getName());
+                    recordResult(player, GameArchive.END_LINE);
+                    askForReplay();
+                } else if (isBoardFull()) {
+                    room.getSpectators().publishText("It's a draw.");
+                    rate(player, opponent, 0.5);
+                    journal.gameEnded(room.getName());
+                    for (ClientHandler p : players) {
+                        if (p.getCurrentRoom() == room) p.gameResult(BinaryProtocol.RESULT_DRAW);
+                    }
+                    recordResult(null, GameArchive.END_LINE);
+                    askForReplay();
+                } else {
+                    setPlayerTurn(player, false);
+                    currentPlayerIndex = 1 - currentPlayerIndex;
+                    beginTurn();
                 }
+                Metrics.MOVES.increment();
+                Metrics.recordSince(Metrics.MOVE_LATENCY, started);
+                return BinaryProtocol.STATUS_OK;
+            } finally {
+                lock.unlock();
             }
+        }
 
-            waitForReplayAnswers();
+        public void playerReplayAnswer(ClientHandler player, boolean answer) {
+            List<ClientHandler> leavingPlayers;
+            lock.lock();
+            try {
+                if (state != State.WAITING_FOR_REPLAY) return; 
+                replayAnswers.put(player, answer);
+                player.setWaitingForReplayAnswer(false);
+                if (replayAnswers.size() < players.size()) return;
+                leavingPlayers = resolveReplay();
+            } finally {
+                lock.unlock();
+            }
+            // Из комнаты выходим уже без блокировки игры, чтобы не брать локи в обратном порядке
+            for (ClientHandler lp : leavingPlayers) {
+                room.removePlayer(lp);
+            }
+        }
 
-            boolean allYes = !replayAnswers.isEmpty() && replayAnswers.values().stream().allMatch(b -> b);
-            if (allYes) {
-                // Перезапуск игры
-                // Случайно выбираем, кто ходит первым при новом раунде
-                currentPlayerIndex = new Random().nextInt(2);
-                resetBoard();
-                waitingReplay = false;
-                for (ClientHandler p : players) {
-                    if (p.getCurrentRoom() == room) {
-                        p.setWaitingForReplayAnswer(false);
-                        p.setGameOver(false);
+        // Вызывается комнатой, когда игрок покинул её (EXIT или обрыв соединения)
+        public void playerLeft(ClientHandler player) {
+            List<ClientHandler> leavingPlayers = Collections.emptyList();
+            lock.lock();
+            try {
+                if (state == State.WAITING_FOR_MOVE) {
+                    state = State.FINISHED;
+                    Metrics.GAMES_ACTIVE.decrement();
+                    stopClock();
+                    journal.gameEnded(room.getName());
+                    room.getSpectators().publishText(player.getUsername() + " left the game.");
+                    ClientHandler opponent = players.get(0) == player ? players.get(1) : players.get(0);
+                    // Ушедший проигрывает и по рейтингу, как в архиве: иначе из проигранной партии выгодно уйти
+                    rate(opponent, player, 1.0);
+                    recordResult(opponent, GameArchive.END_LEFT);
+                    releaseSeats();
+                    for (ClientHandler p : players) {
+                        if (p != player && p.getCurrentRoom() == room) {
+                            p.gameResult(BinaryProtocol.RESULT_OPPONENT_LEFT);
+                            p.setYourTurn(false);
+                            p.setGameOver(true);
+                            p.out.println("Waiting for another player to join...");
+                        }
                     }
-                }
-                broadcast("Starting a new round...");
-                printBoardToAll();
-                informTurns();
-                gameLoop();
-            } else {
-                // Кто-то сказал "no"
-                List<ClientHandler> leavingPlayers = new ArrayList<>();
-                for (Map.Entry<ClientHandler, Boolean> e : replayAnswers.entrySet()) {
-                    if (!e.getValue()) {
-                        e.getKey().out.println("Exiting the room.");
-                        leavingPlayers.add(e.getKey());
+                } else if (state == State.WAITING_FOR_REPLAY) {
+                    // Ушедший игрок считается ответившим "no"
+                    replayAnswers.put(player, false);
+                    if (replayAnswers.size() == players.size()) {
+                        leavingPlayers = resolveReplay();
                     }
                 }
+            } finally {
+                lock.unlock();
+            }
+            for (ClientHandler lp : leavingPlayers) {
+                room.removePlayer(lp);
+            }
+        }
 
-                for (ClientHandler lp : leavingPlayers) {
-                    room.removePlayer(lp);
-                }
+        // Рейтинг меняют только партии двух людей
+        private void rate(ClientHandler player, ClientHandler opponent, double score) {
+            if (!player.isBot() && !opponent.isBot()) {
+                Ratings.recordGame(player.getUsername(), opponent.getUsername(), score);
+            }
+        }
 
-                waitingReplay = false;
-                for (ClientHandler p : players) {
-                    if (p.getCurrentRoom() == room) {
-                        p.setWaitingForReplayAnswer(false);
-                        p.setGameOver(true);
-                        p.setYourTurn(false);
-                    }
-                }
+        private void beginTurn() {
+            informTurns();
+            startClock();
+            ClientHandler currentPlayer = players.get(currentPlayerIndex);
+            setPlayerTurn(currentPlayer, true);
+            if (currentPlayer.isBot()) {
+                // Ход считается на копии поля в пуле бота, затем проходит через обычный tryMove
+                int size = board.size();
+                int turn = turnNumber;
+                AiPlayer.requestMove(board.copy(), currentPlayerIndex, cell -> room.execute(() -> {
+                    botMove(turn, currentPlayer, cell / size + 1, cell % size + 1);
+                    Outbound.flushDirty();
+                }));
+            }
+        }
+
+        // Ход бота доходит, только если его ход ещё тот же: после таймаута и переигровки
+        // старый ход попал бы на новое поле
+        private void botMove(int turn, ClientHandler bot, int row, int col) {
+            lock.lock();
+            try {
+                if (state != State.WAITING_FOR_MOVE || turn != turnNumber) return;
+                tryMove(bot, row, col);
+            } finally {
+                lock.unlock();
             }
+        }
+
+        private void newRecord(int firstPlayer) {
+            firstPlayerIndex = firstPlayer;
+            moveCount = 0;
+            startedMillis = System.currentTimeMillis();
+        }
+
+        private static void gameBegan() {
+            Metrics.GAMES_STARTED.increment();
+            Metrics.GAMES_ACTIVE.increment();
+        }
 
-            inProgress = false;
+        private void resetClocks() {
+            Arrays.fill(clockNanos, TimeUnit.SECONDS.toNanos(room.getSettings().clockSeconds));
         }
 
-        public synchronized void playerReplayAnswer(ClientHandler player, boolean answer) {
-            if (!waitingReplay) return; 
-            replayAnswers.put(player, answer);
-            player.setWaitingForReplayAnswer(false);
-            if (replayAnswers.size() == players.size()) {
-                notifyAll();
+        // Ход ограничен меньшим из лимита на ход и остатка часов партии
+        private void startClock() {
+            turnNumber++;
+            turnStartedAt = System.nanoTime();
+            long limit = moveSeconds > 0 ? TimeUnit.SECONDS.toNanos(moveSeconds) : Long.MAX_VALUE;
+            if (room.getSettings().hasClock()) {
+                limit = Math.min(limit, clockNanos[currentPlayerIndex]);
+                sendClocks();
             }
+            if (limit == Long.MAX_VALUE) return;
+            int turn = turnNumber;
+            turnTimeout = timeouts.schedule(() -> room.execute(() -> timeExpired(turn)), limit, TimeUnit.NANOSECONDS);
         }
 
-        private synchronized void waitForReplayAnswers() {
-            while (replayAnswers.size() < players.size() && inSameRoom()) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    
+        // Ход сделан или партия кончилась: снимаем таймаут и списываем время с часов
+        private void stopClock() {
+            if (turnTimeout != null) {
+                turnTimeout.cancel();
+                turnTimeout = null;
+            }
+            if (room.getSettings().hasClock()) {
+                long left = clockNanos[currentPlayerIndex] - (System.nanoTime() - turnStartedAt);
+                clockNanos[currentPlayerIndex] = Math.max(0, left) + TimeUnit.SECONDS.toNanos(room.getSettings().incrementSeconds);
+            }
+        }
+
+        // Остаток часов игрока с учётом идущего хода
+        private long clockMillis(int playerIndex) {
+            long left = clockNanos[playerIndex];
+            if (playerIndex == currentPlayerIndex && state == State.WAITING_FOR_MOVE) {
+                left -= System.nanoTime() - turnStartedAt;
+            }
+            return TimeUnit.NANOSECONDS.toMillis(Math.max(0, left));
+        }
+
+        private void sendClocks() {
+            long x = clockMillis(0);
+            long o = clockMillis(1);
+            for (ClientHandler p : players) {
+                if (p.getCurrentRoom() == room) p.clockChanged(x, o);
+            }
+        }
+
+        // Время хода вышло: проигрыш по времени, дальше обычное предложение переиграть
+        private void timeExpired(int turn) {
+            lock.lock();
+            try {
+                if (state != State.WAITING_FOR_MOVE || turn != turnNumber) return;
+                turnTimeout = null;
+                if (room.getSettings().hasClock()) {
+                    clockNanos[currentPlayerIndex] = Math.max(0,
+                            clockNanos[currentPlayerIndex] - (System.nanoTime() - turnStartedAt));
+                }
+                ClientHandler loser = players.get(currentPlayerIndex);
+                ClientHandler winner = players.get(1 - currentPlayerIndex);
+                Log.info("Time is up for {} in room {}", loser.getUsername(), room.getName());
+                for (ClientHandler p : players) {
+                    if (p.getCurrentRoom() == room) p.out.println("Time is up for " + loser.getUsername() + ".");
                 }
+                winner.gameResult(BinaryProtocol.RESULT_WIN);
+                loser.gameResult(BinaryProtocol.RESULT_LOSE);
+                room.getSpectators().publishText("Time is up for " + loser.getUsername() + ". " + winner.getUsername() + " wins.");
+                rate(winner, loser, 1.0);
+                journal.gameEnded(room.getName());
+                recordResult(winner, GameArchive.END_TIME);
+                askForReplay();
+            } finally {
+                lock.unlock();
             }
+            Outbound.flushDirty();
         }
 
-        private boolean inSameRoom() {
-            for (ClientHandler p : replayAnswers.keySet()) {
-                if (p.getCurrentRoom() != room) {
-                    return false;
+        // Партия окончена (winner == null - ничья): запись уходит в архив, игрокам - её номер
+        // для REPLAY; у стола турнира результат ещё и уходит турниру
+        private void recordResult(ClientHandler winner, int end) {
+            int bots = (players.get(0).isBot() ? 1 : 0) | (players.get(1).isBot() ? 2 : 0);
+            int outcome = winner == null ? GameArchive.OUTCOME_DRAW
+                    : winner == players.get(0) ? GameArchive.OUTCOME_X : GameArchive.OUTCOME_O;
+            long id = archive.add(players.get(0).getUsername(), players.get(1).getUsername(), bots, board.size(),
+                    board.winLength(), firstPlayerIndex, outcome, end, startedMillis, moves, moveCount);
+            if (id > 0) {
+                for (ClientHandler p : players) {
+                    if (!p.isBot() && p.getCurrentRoom() == room) p.out.println("Game saved as #" + id + " (REPLAY " + id + ").");
                 }
             }
-            return true;
+            Tournaments.Game game = room.getTournamentGame();
+            if (game != null) {
+                tournaments.gameEnded(game, winner == null ? null : winner.getUsername());
+            }
         }
 
-        private synchronized void resetBoard() {
-            for (char[] row : board) {
-                Arrays.fill(row, ' ');
+        private void askForReplay() {
+            if (room.getTournamentGame() != null) {
+                // В турнире переигровки нет: комнату закроет турнир, когда учтёт результат
+                setPlayerTurn(players.get(currentPlayerIndex), false);
+                state = State.FINISHED;
+                Metrics.GAMES_ACTIVE.decrement();
+                releaseSeats();
+                for (ClientHandler p : players) {
+                    p.setGameOver(true);
+                }
+                return;
+            }
+            if (draining) {
+                // Сервер останавливается: переигровки не будет, игроки выходят в меню
+                setPlayerTurn(players.get(currentPlayerIndex), false);
+                state = State.FINISHED;
+                Metrics.GAMES_ACTIVE.decrement();
+                releaseSeats();
+                for (ClientHandler p : players) {
+                    p.setGameOver(true);
+                    if (!p.isBot() && p.getCurrentRoom() == room) p.out.println("Server is restarting, no rematch this time.");
+                }
+                Outbound.defer(room::dismiss);
+                return;
+            }
+            // Игра закончилась, предлагаем переиграть
+            setPlayerTurn(players.get(currentPlayerIndex), false);
+            state = State.WAITING_FOR_REPLAY;
+            Metrics.GAMES_ACTIVE.decrement();
+            replayAnswers.clear();
+            for (ClientHandler p : players) {
+                if (p.isBot()) {
+                    replayAnswers.put(p, true);
+                } else if (p.getCurrentRoom() == room) {
+                    p.promptReplay();
+                    p.setWaitingForReplayAnswer(true);
+                } else {
+                    replayAnswers.put(p, false);
+                }
             }
         }
 
-        public synchronized boolean tryMove(ClientHandler player, int row, int col) {
-            if (players.get(currentPlayerIndex) != player) {
-                player.out.println("Not your turn!");
-                return false;
+        // Возвращает игроков, которые ответили "no" и должны выйти из комнаты
+        private List<ClientHandler> resolveReplay() {
+            if (draining) {
+                // Переигровку, о которой договорились уже во время остановки, не начинаем
+                replayAnswers.replaceAll((p, yes) -> false);
+            }
+            boolean allYes = replayAnswers.values().stream().allMatch(b -> b);
+            if (allYes) {
+                // Перезапуск игры
+                // Случайно выбираем, кто ходит первым при новом раунде
+                currentPlayerIndex = new Random().nextInt(2);
+                resetBoard();
+                newRecord(currentPlayerIndex);
+                resetClocks();
+                state = State.WAITING_FOR_MOVE;
+                gameBegan();
+                for (ClientHandler p : players) {
+                    p.setWaitingForReplayAnswer(false);
+                    p.setGameOver(false);
+                }
+                announceStart("Starting a new round...");
+                printBoardToAll();
+                beginTurn();
+                return Collections.emptyList();
             }
 
-            row = row - 1;
-            col = col - 1;
-            if (row < 0 || row >= 3 || col < 0 || col >= 3 || board[row][col] != ' ') {
-                return false;
+            // Кто-то сказал "no"
+            state = State.FINISHED;
+            releaseSeats();
+            List<ClientHandler> leavingPlayers = new ArrayList<>();
+            for (Map.Entry<ClientHandler, Boolean> e : replayAnswers.entrySet()) {
+                ClientHandler p = e.getKey();
+                if (!e.getValue() && p.getCurrentRoom() == room) {
+                    p.out.println("Exiting the room.");
+                    leavingPlayers.add(p);
+                }
             }
 
-            board[row][col] = (currentPlayerIndex == 0) ? 'X' : 'O';
-            System.out.println("Move by " + player.getUsername() + " at " + (row+1) + ", " + (col+1));
-            printBoardToAll();
+            for (ClientHandler p : players) {
+                if (p.getCurrentRoom() == room) {
+                    p.setWaitingForReplayAnswer(false);
+                    p.setGameOver(true);
+                    p.setYourTurn(false);
+                }
+            }
+            room.endGame();
+            return leavingPlayers;
+        }
 
-            notifyAll(); // Ход сделан, продолжаем игру
-            return true;
+        private void resetBoard() {
+            board.reset();
+            boardVersion++;
         }
 
         private void informTurns() {
@@ -548,65 +2357,137 @@ public class TicTacToeServer {
             ClientHandler opponent = players.get(1 - currentPlayerIndex);
 
             if (currentPlayer.getCurrentRoom() == room)
-                currentPlayer.out.println("It is now your turn. You are " + (currentPlayerIndex == 0 ? 'X' : 'O') + ".");
+                currentPlayer.turnChanged(true, markOf(currentPlayerIndex), opponent.getUsername());
             if (opponent.getCurrentRoom() == room)
-                opponent.out.println("Please wait. Opponent (" + currentPlayer.getUsername() + ") is making a move. You are " + ((1 - currentPlayerIndex == 0) ? 'X' : 'O') + ".");
+                opponent.turnChanged(false, markOf(1 - currentPlayerIndex), currentPlayer.getUsername());
         }
 
-        private void printBoardToAll() {
-            StringBuilder sb = new StringBuilder();
-            sb.append("Current board:\n");
-            sb.append("   1   2   3\n");
-            for (int i = 0; i < 3; i++) {
-                sb.append(i+1).append(" ");
-                for (int j = 0; j < 3; j++) {
-                    sb.append(" ").append(board[i][j]).append(" ");
-                    if (j < 2) sb.append("|");
+        private void announceStart(String message) {
+            int bots = 0;
+            for (int i = 0; i < players.size(); i++) {
+                ClientHandler p = players.get(i);
+                if (p.isBot()) bots |= 1 << i;
+                if (p.getCurrentRoom() == room) {
+                    p.gameStarted(board, markOf(i), message);
+                    if (!p.isBot()) p.seatToken(seatTokens[i]);
+                }
+            }
+            journal.gameStarted(room.getName(), players.get(0).getUsername(), players.get(1).getUsername(),
+                    bots, currentPlayerIndex, seatTokens);
+            room.getSpectators().publishBoard(board, spectatorHeader(currentPlayerIndex));
+        }
+
+        // Позиция для первого зрителя: пока зрителей не было, трансляция её не обновляла
+        void publishToSpectators() {
+            lock.lock();
+            try {
+                if (state == State.WAITING_FOR_MOVE) {
+                    room.getSpectators().publishBoard(board, spectatorHeader(currentPlayerIndex));
+                } else {
+                    room.getSpectators().publishBoard(board, spectatorHeader(-1));
                 }
-                sb.append("\n");
-                if (i < 2) sb.append("  ---+---+---\n");
+            } finally {
+                lock.unlock();
             }
+        }
 
-            broadcast(sb.toString());
+        // "alice (X) vs bob (O), O to move"; toMove < 0 - партия не идёт
+        private String spectatorHeader(int toMove) {
+            String header = room.getName() + ": " + players.get(0).getUsername() + " (X) vs "
+                    + players.get(1).getUsername() + " (O)";
+            return toMove < 0 ? header + ", game over" : header + ", " + markOf(toMove) + " to move";
         }
 
-        //проверка на выйгрышь
-        private boolean checkWin() {
-            for (int i = 0; i < 3; i++) {
-                if (board[i][0] != ' ' && board[i][0] == board[i][1] && board[i][1] == board[i][2]) return true;
-                if (board[0][i] != ' ' && board[0][i] == board[1][i] && board[1][i] == board[2][i]) return true;
+        private void releaseSeats() {
+            for (long token : seatTokens) {
+                seats.remove(token);
             }
-            return (board[0][0] != ' ' && board[0][0] == board[1][1] && board[1][1] == board[2][2]) ||
-                   (board[0][2] != ' ' && board[0][2] == board[1][1] && board[1][1] == board[2][0]);
         }
 
-        private boolean isBoardFull() {
-            for (char[] row : board) {
-                for (char cell : row) {
-                    if (cell == ' ') return false;
+        private static char markOf(int playerIndex) {
+            return playerIndex == 0 ? 'X' : 'O';
+        }
+
+        private void printBoardToAll() {
+            byte[] text = null;
+            byte[] frame = null;
+            for (ClientHandler p : players) {
+                if (p.getCurrentRoom() != room) continue;
+                if (p.isBinaryProtocol()) {
+                    if (frame == null) frame = currentBoardFrame();
+                    p.send(frame);
+                } else {
+                    if (text == null) text = currentBoardBytes();
+                    p.send(text);
                 }
             }
-            return true;
         }
 
-        private synchronized void setPlayerTurn(ClientHandler player, boolean turn) {
-            player.setYourTurn(turn);
+        public void printBoardTo(ClientHandler player) {
+            lock.lock();
+            try {
+                player.send(player.isBinaryProtocol() ? currentBoardFrame() : currentBoardBytes());
+            } finally {
+                lock.unlock();
+            }
         }
 
-        private void broadcast(String message) {
+        // На 3x3 после хода показываем всё поле, на больших полях - только изменившуюся клетку.
+        // Клиенты в режиме DELTA всегда получают одну строку MOVE.
+        private void printMoveToAll(int row, int col) {
+            char mark = board.charAt(row, col);
+            byte[] full = null;
+            byte[] delta = null;
+            byte[] frame = null;
             for (ClientHandler p : players) {
-                if (p.getCurrentRoom() == room) {
-                    p.out.println(message);
+                if (p.getCurrentRoom() != room) continue;
+                if (p.isBinaryProtocol()) {
+                    if (frame == null) frame = BinaryProtocol.move(mark, row, col);
+                    p.send(frame);
+                } else if (p.isDeltaMode()) {
+                    if (delta == null) delta = BoardRenderer.renderMove(mark, row, col);
+                    p.send(delta);
+                } else {
+                    if (full == null) {
+                        full = board.size() == 3
+                                ? currentBoardBytes()
+                                : BoardRenderer.encode(mark + " placed at " + (row+1) + " " + (col+1) + ". Type BOARD to see the whole board.");
+                    }
+                    p.send(full);
                 }
             }
         }
 
-        private synchronized void waitForAction() {
-            try {
-                wait();
-            } catch (InterruptedException e) {
-                
+        // Поле рендерится один раз на состояние: 3x3 - общим кэшем, большие - кэшем комнаты
+        private byte[] currentBoardBytes() {
+            if (board instanceof SmallBoard) {
+                return BoardRenderer.render(board);
+            }
+            if (renderedVersion != boardVersion) {
+                renderedBoard = BoardRenderer.render(board);
+                renderedVersion = boardVersion;
+            }
+            return renderedBoard;
+        }
+
+        private byte[] currentBoardFrame() {
+            if (board instanceof SmallBoard) {
+                return BoardRenderer.renderFrame(board);
             }
+            if (renderedFrameVersion != boardVersion) {
+                renderedFrame = BoardRenderer.renderFrame(board);
+                renderedFrameVersion = boardVersion;
+            }
+            return renderedFrame;
+        }
+
+        private boolean isBoardFull() {
+            return board.isFull();
         }
+
+        private void setPlayerTurn(ClientHandler player, boolean turn) {
+            player.setYourTurn(turn);
+        }
+
     }
 }
@@ -0,0 +1,121 @@
+// Идеальная игра на 3x3: negamax по всем достижимым позициям, считается один раз при старте.
+// Позиции хранятся с точностью до симметрий поля (4 поворота x отражение),
+// поэтому ход бота - это канонизация через таблицы и одно чтение из массива.
+final class TicTacToeSolver {
+    // Восемь симметрий квадрата как перестановки клеток: cell -> PERMUTATIONS[t][cell]
+    private static final int[][] PERMUTATIONS = {
+            {0, 1, 2, 3, 4, 5, 6, 7, 8},
+            {6, 3, 0, 7, 4, 1, 8, 5, 2},
+            {8, 7, 6, 5, 4, 3, 2, 1, 0},
+            {2, 5, 8, 1, 4, 7, 0, 3, 6},
+            {2, 1, 0, 5, 4, 3, 8, 7, 6},
+            {0, 3, 6, 1, 4, 7, 2, 5, 8},
+            {6, 7, 8, 3, 4, 5, 0, 1, 2},
+            {8, 5, 2, 7, 4, 1, 6, 3, 0}
+    };
+
+    // TRANSFORMED[t][marks] - девятибитная маска после применения симметрии t
+    private static final short[][] TRANSFORMED = new short[PERMUTATIONS.length][Bitboard.FULL + 1];
+    // INVERSE[t][cell] - откуда пришла клетка при симметрии t
+    private static final int[][] INVERSE = new int[PERMUTATIONS.length][Bitboard.CELLS];
+
+    // Ключ - каноническое поле (18 бит) и чей ход (19-й бит).
+    // Значение: лучший ход + 1 в канонической системе координат (0 - позиция ещё не посчитана)
+    private static final byte[] BEST_MOVE = new byte[1 << 19];
+    private static final byte[] SCORE = new byte[1 << 19];
+    private static int positions;
+
+    static {
+        for (int t = 0; t < PERMUTATIONS.length; t++) {
+            for (int cell = 0; cell < Bitboard.CELLS; cell++) {
+                INVERSE[t][PERMUTATIONS[t][cell]] = cell;
+            }
+            for (int marks = 0; marks <= Bitboard.FULL; marks++) {
+                int result = 0;
+                for (int cell = 0; cell < Bitboard.CELLS; cell++) {
+                    if ((marks & (1 << cell)) != 0) result |= 1 << PERMUTATIONS[t][cell];
+                }
+                TRANSFORMED[t][marks] = (short) result;
+            }
+        }
+        // Первым может ходить любой из игроков, поэтому считаем оба дерева
+        solve(Bitboard.EMPTY, 0);
+        solve(Bitboard.EMPTY, 1);
+    }
+
+    private TicTacToeSolver() {
+    }
+
+    // Принудительно загружает класс, чтобы таблица считалась при старте, а не на первом ходе бота
+    static int warmUp() {
+        return positions;
+    }
+
+    // Лучший ход (номер клетки) для игрока player в позиции board; -1, если ходить некуда
+    static int bestMove(int board, int player) {
+        if (Bitboard.isFull(board) || Bitboard.hasWon(board, 0) || Bitboard.hasWon(board, 1)) {
+            return -1;
+        }
+        int symmetry = canonicalSymmetry(board);
+        int key = key(apply(board, symmetry), player);
+        int canonicalMove = BEST_MOVE[key] - 1;
+        return INVERSE[symmetry][canonicalMove];
+    }
+
+    private static int solve(int board, int player) {
+        int symmetry = canonicalSymmetry(board);
+        int key = key(apply(board, symmetry), player);
+        if (BEST_MOVE[key] != 0) {
+            return SCORE[key];
+        }
+
+        // Считаем в канонической позиции, чтобы лучший ход сразу лёг в её координаты
+        int canonical = apply(board, symmetry);
+        int bestScore = Integer.MIN_VALUE;
+        int bestCell = -1;
+        for (int cell = 0; cell < Bitboard.CELLS; cell++) {
+            if (!Bitboard.isFree(canonical, cell)) continue;
+            int next = Bitboard.place(canonical, cell, player);
+            int score;
+            if (Bitboard.hasWon(next, player)) {
+                // Чем раньше победа, тем лучше
+                score = Bitboard.CELLS + 1 - Bitboard.moveCount(next);
+            } else if (Bitboard.isFull(next)) {
+                score = 0;
+            } else {
+                score = -solve(next, 1 - player);
+            }
+            if (score > bestScore) {
+                bestScore = score;
+                bestCell = cell;
+            }
+        }
+        BEST_MOVE[key] = (byte) (bestCell + 1);
+        SCORE[key] = (byte) bestScore;
+        positions++;
+        return bestScore;
+    }
+
+    private static int key(int canonical, int player) {
+        return canonical | (player << 18);
+    }
+
+    private static int apply(int board, int symmetry) {
+        return TRANSFORMED[symmetry][Bitboard.marks(board, 0)]
+                | (TRANSFORMED[symmetry][Bitboard.marks(board, 1)] << Bitboard.CELLS);
+    }
+
+    // Симметрия, переводящая поле в каноническое (минимальное) представление
+    private static int canonicalSymmetry(int board) {
+        int best = 0;
+        int bestValue = board;
+        for (int t = 1; t < PERMUTATIONS.length; t++) {
+            int value = apply(board, t);
+            if (value < bestValue) {
+                bestValue = value;
+                best = t;
+            }
+        }
+        return best;
+    }
+}
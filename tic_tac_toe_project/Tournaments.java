@@ -0,0 +1,491 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Турниры: швейцарская система и на выбывание (KO). Все турниры ведёт один поток, как подбор
+// в Matchmaker: команды игроков и результаты партий кладутся в lock-free очереди, а поток раз
+// в PASS_INTERVAL_MS разбирает их пачкой. Турнир, у которого доиграны все партии тура, переходит
+// к следующему в том же проходе: пары, комнаты и посадка игроков - сразу для всех таких турниров.
+// Долгая партия задерживает только свой турнир; бесконечной её не дают сделать часы хода.
+final class Tournaments {
+    enum Format { SWISS, KNOCKOUT }
+
+    private static final long PASS_INTERVAL_MS = 100;
+    private static final int NO_SHOW_SECONDS = 30;        // не сел за стол - техническое поражение
+    private static final int MAX_KNOCKOUT_REMATCHES = 2;  // ничьи в KO переигрываются, потом проходит сеяный выше
+    private static final int FINISHED_KEEP_MINUTES = 10;  // итоги доступны по STATUS после окончания
+    static final int MAX_SWISS_ROUNDS = 20;
+
+    // Участник. Поля меняет только поток турниров
+    private static final class Entrant {
+        final String name;
+        final int rating;
+        TicTacToeServer.ClientHandler player; // последнее соединение, с которого игрок заходил в турнир
+        int seed;
+        double score;
+        boolean hadBye;
+        boolean eliminated;
+        final Set<String> opponents = new HashSet<>();
+
+        Entrant(TicTacToeServer.ClientHandler player, int rating) {
+            this.name = player.getUsername();
+            this.player = player;
+            this.rating = rating;
+        }
+
+        boolean isOnline() {
+            return !player.isDisconnected();
+        }
+
+        void tell(String message) {
+            if (isOnline()) player.out.println(message);
+        }
+    }
+
+    // Партия тура. Комната сообщает её результат через gameEnded/noShow
+    static final class Game {
+        private final Tournament tournament;
+        private final Entrant first;  // сеяный выше
+        private final Entrant second;
+        private final int table;   // номер стола в туре
+        private final int rematch; // переигровка ничьей в KO
+        private TicTacToeServer.Room room;
+        private boolean done;
+
+        private Game(Tournament tournament, Entrant first, Entrant second, int table, int rematch) {
+            this.tournament = tournament;
+            this.first = first;
+            this.second = second;
+            this.table = table;
+            this.rematch = rematch;
+        }
+
+        TicTacToeServer.ClientHandler first() {
+            return first.player;
+        }
+
+        TicTacToeServer.ClientHandler second() {
+            return second.player;
+        }
+
+        RoomSettings settings() {
+            return tournament.settings;
+        }
+    }
+
+    // Результат партии: победитель, null - ничья; forfeit - кто-то не пришёл
+    private static final class Result {
+        final Game game;
+        final String winner;
+        final boolean forfeit;
+
+        Result(Game game, String winner, boolean forfeit) {
+            this.game = game;
+            this.winner = winner;
+            this.forfeit = forfeit;
+        }
+    }
+
+    private static final class Tournament {
+        final String name;
+        final String organizer;
+        final Format format;
+        final RoomSettings settings;
+        int rounds; // SWISS: сколько туров; KO: считается по ходу
+        int round;  // 0 - идёт регистрация
+        boolean finished;
+        final Map<String, Entrant> entrants = new HashMap<>();
+        final List<Game> games = new ArrayList<>(); // партии текущего тура
+        int pending;                                 // ещё не доиграны
+
+        Tournament(String name, String organizer, Format format, int rounds, RoomSettings settings) {
+            this.name = name;
+            this.organizer = organizer;
+            this.format = format;
+            this.rounds = rounds;
+            this.settings = settings;
+        }
+    }
+
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    private final Queue<Result> results = new ConcurrentLinkedQueue<>();
+    // Дальше - только поток турниров
+    private final Map<String, Tournament> tournaments = new HashMap<>();
+    private List<Tournament> ready = new ArrayList<>();
+    private final HashedWheelTimer timer;
+    private final LongAdder gamesCreated = Metrics.counter("tournaments.games");
+    private final Metrics.Histogram passTime = Metrics.histogram("tournaments.pass_us", 1000);
+    private volatile int active;
+    private volatile int running;
+
+    Tournaments(HashedWheelTimer timer) {
+        this.timer = timer;
+        Metrics.gauge("tournaments.active", () -> active);
+        Metrics.gauge("tournaments.running_games", () -> running);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "tournaments");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::pass, PASS_INTERVAL_MS, PASS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Дальше - вызывается потоками клиентов: только постановка в очередь
+
+    void create(TicTacToeServer.ClientHandler player, String name, Format format, int rounds, RoomSettings settings) {
+        commands.add(() -> doCreate(player, name, format, rounds, settings));
+    }
+
+    void join(TicTacToeServer.ClientHandler player, String name) {
+        int rating = Ratings.get(player.getUsername());
+        commands.add(() -> doJoin(player, name, rating));
+    }
+
+    void leave(TicTacToeServer.ClientHandler player, String name) {
+        commands.add(() -> doLeave(player, name));
+    }
+
+    void start(TicTacToeServer.ClientHandler player, String name) {
+        commands.add(() -> doStart(player, name));
+    }
+
+    void status(TicTacToeServer.ClientHandler player, String name) {
+        commands.add(() -> doStatus(player, name));
+    }
+
+    // Партия турнира закончилась (вызывается игрой под её блокировкой); winner == null - ничья
+    void gameEnded(Game game, String winner) {
+        results.add(new Result(game, winner, false));
+    }
+
+    // За стол так никто и не сел (present == null) или сел только present
+    void noShow(Game game, String present) {
+        results.add(new Result(game, present, true));
+    }
+
+    private void pass() {
+        long started = Metrics.start();
+        try {
+            Runnable command;
+            while ((command = commands.poll()) != null) {
+                command.run();
+            }
+            Result result;
+            while ((result = results.poll()) != null) {
+                record(result);
+            }
+            // Все турниры, у которых закончился тур, продвигаются одной пачкой
+            List<Tournament> batch = ready;
+            ready = new ArrayList<>();
+            for (Tournament tournament : batch) {
+                advance(tournament);
+            }
+        } catch (RuntimeException e) {
+            // Исключение остановило бы scheduleWithFixedDelay насовсем
+            Log.info("Tournament error: {}", e);
+        } finally {
+            Outbound.flushDirty();
+        }
+        Metrics.recordSince(passTime, started);
+    }
+
+    private void doCreate(TicTacToeServer.ClientHandler player, String name, Format format, int rounds, RoomSettings settings) {
+        if (tournaments.containsKey(name)) {
+            player.reply(BinaryProtocol.STATUS_ROOM_EXISTS, "Tournament already exists.");
+            return;
+        }
+        tournaments.put(name, new Tournament(name, player.getUsername(), format, rounds, settings));
+        Log.info("Tournament created: {} ({}, {})", name, format, settings.describe());
+        player.reply(BinaryProtocol.STATUS_OK, "Tournament " + name + " created. Players register with TOURNAMENT JOIN "
+                + name + ", you begin it with TOURNAMENT START " + name + ".");
+    }
+
+    private void doJoin(TicTacToeServer.ClientHandler player, String name, int rating) {
+        Tournament tournament = tournaments.get(name);
+        if (tournament == null || tournament.finished) {
+            player.reply(BinaryProtocol.STATUS_ROOM_NOT_FOUND, "Tournament not found.");
+            return;
+        }
+        Entrant entrant = tournament.entrants.get(player.getUsername());
+        if (entrant != null) {
+            // Повторный JOIN после переподключения: следующие партии придут на новое соединение
+            entrant.player = player;
+            player.reply(BinaryProtocol.STATUS_OK, "You are registered in tournament " + name + ".");
+            return;
+        }
+        if (tournament.round > 0) {
+            player.reply(BinaryProtocol.STATUS_BAD_REQUEST, "Tournament has already started.");
+            return;
+        }
+        tournament.entrants.put(player.getUsername(), new Entrant(player, rating));
+        player.reply(BinaryProtocol.STATUS_OK, "Registered in tournament " + name + " ("
+                + tournament.entrants.size() + " players).");
+    }
+
+    private void doLeave(TicTacToeServer.ClientHandler player, String name) {
+        Tournament tournament = tournaments.get(name);
+        if (tournament == null || !tournament.entrants.containsKey(player.getUsername())) {
+            player.reply(BinaryProtocol.STATUS_ROOM_NOT_FOUND, "You are not registered in that tournament.");
+        } else if (tournament.round > 0) {
+            player.reply(BinaryProtocol.STATUS_BAD_REQUEST, "Tournament has already started.");
+        } else {
+            tournament.entrants.remove(player.getUsername());
+            player.reply(BinaryProtocol.STATUS_OK, "You left tournament " + name + ".");
+        }
+    }
+
+    private void doStart(TicTacToeServer.ClientHandler player, String name) {
+        Tournament tournament = tournaments.get(name);
+        if (tournament == null) {
+            player.reply(BinaryProtocol.STATUS_ROOM_NOT_FOUND, "Tournament not found.");
+        } else if (!tournament.organizer.equals(player.getUsername())) {
+            player.reply(BinaryProtocol.STATUS_BAD_REQUEST, "Only the organizer can start the tournament.");
+        } else if (tournament.round > 0) {
+            player.reply(BinaryProtocol.STATUS_BAD_REQUEST, "Tournament has already started.");
+        } else if (tournament.entrants.size() < 2) {
+            player.reply(BinaryProtocol.STATUS_BAD_REQUEST, "At least two players are needed.");
+        } else {
+            // Посев по рейтингу на момент регистрации
+            List<Entrant> seeded = new ArrayList<>(tournament.entrants.values());
+            seeded.sort(Comparator.comparingInt((Entrant e) -> -e.rating).thenComparing(e -> e.name));
+            for (int i = 0; i < seeded.size(); i++) {
+                seeded.get(i).seed = i + 1;
+            }
+            if (tournament.format == Format.KNOCKOUT) {
+                tournament.rounds = 32 - Integer.numberOfLeadingZeros(seeded.size() - 1);
+            }
+            active++;
+            player.reply(BinaryProtocol.STATUS_OK, "Tournament " + name + " started.");
+            Log.info("Tournament {} started: {} players, {} rounds", name, seeded.size(), tournament.rounds);
+            advance(tournament);
+        }
+    }
+
+    private void doStatus(TicTacToeServer.ClientHandler player, String name) {
+        Tournament tournament = tournaments.get(name);
+        if (tournament == null) {
+            player.reply(BinaryProtocol.STATUS_ROOM_NOT_FOUND, "Tournament not found.");
+            return;
+        }
+        StringBuilder text = new StringBuilder("Tournament ").append(name).append(" (")
+                .append(tournament.format == Format.SWISS ? "Swiss" : "knockout").append(", ")
+                .append(tournament.settings.describe()).append("): ");
+        if (tournament.round == 0) {
+            text.append("registration, ").append(tournament.entrants.size()).append(" players\n");
+        } else {
+            text.append(tournament.finished ? "finished" : "round " + tournament.round + " of " + tournament.rounds)
+                    .append('\n');
+        }
+        // Идущие партии тура: по имени комнаты за ними можно следить (WATCH)
+        for (Game game : tournament.games) {
+            if (game.done) continue;
+            text.append("  table ").append(game.table).append(": ").append(game.first.name).append(" vs ")
+                    .append(game.second.name);
+            if (game.room != null) text.append(" in ").append(game.room.getName());
+            text.append('\n');
+        }
+        int place = 1;
+        for (Entrant entrant : standings(tournament)) {
+            text.append(place++).append(". ").append(entrant.name);
+            if (tournament.format == Format.SWISS) {
+                text.append(' ').append(formatScore(entrant.score));
+            } else if (entrant.eliminated) {
+                text.append(" (out)");
+            }
+            text.append('\n');
+        }
+        player.out.print(text);
+    }
+
+    private void record(Result result) {
+        Game game = result.game;
+        if (game.done) return;
+        game.done = true;
+        running--;
+        Tournament tournament = game.tournament;
+        if (game.room != null) {
+            // Комнату закрываем в её шарде: игроки выходят в меню до следующего тура
+            TicTacToeServer.Room room = game.room;
+            room.execute(room::dismiss);
+        }
+        Entrant first = game.first;
+        Entrant second = game.second;
+        String note = result.forfeit ? " (forfeit)" : "";
+        if (result.winner == null && result.forfeit) {
+            // Не пришёл никто: в швейцарке оба без очков, в KO проходит сеяный выше
+            if (tournament.format == Format.KNOCKOUT) second.eliminated = true;
+        } else if (result.winner == null) {
+            if (tournament.format == Format.KNOCKOUT) {
+                if (game.rematch < MAX_KNOCKOUT_REMATCHES) {
+                    first.tell("Draw - the match is replayed.");
+                    second.tell("Draw - the match is replayed.");
+                    Game rematch = new Game(tournament, first, second, game.table, game.rematch + 1);
+                    tournament.games.add(rematch);
+                    play(rematch);
+                    return;
+                }
+                second.eliminated = true;
+                note = " (higher seed advances)";
+            } else {
+                first.score += 0.5;
+                second.score += 0.5;
+            }
+        } else {
+            Entrant winner = result.winner.equals(first.name) ? first : second;
+            Entrant loser = winner == first ? second : first;
+            winner.score += 1;
+            loser.eliminated = tournament.format == Format.KNOCKOUT;
+        }
+        String line = first.name + " vs " + second.name + ": "
+                + (result.winner == null ? (result.forfeit ? "no show" : "draw") : result.winner + " wins") + note;
+        first.tell(tournament.name + ", round " + tournament.round + ": " + line);
+        second.tell(tournament.name + ", round " + tournament.round + ": " + line);
+        if (--tournament.pending == 0) {
+            ready.add(tournament);
+        }
+    }
+
+    // Следующий тур или итоги турнира
+    private void advance(Tournament tournament) {
+        List<Entrant> alive = new ArrayList<>();
+        for (Entrant entrant : tournament.entrants.values()) {
+            if (!entrant.eliminated) alive.add(entrant);
+        }
+        if (alive.size() < 2 || (tournament.format == Format.SWISS && tournament.round >= tournament.rounds)) {
+            finish(tournament);
+            return;
+        }
+        tournament.round++;
+        tournament.games.clear();
+        List<Entrant[]> pairs = tournament.format == Format.SWISS ? pairSwiss(alive) : pairKnockout(alive, tournament.round);
+        for (Entrant[] pair : pairs) {
+            if (pair[1] == null) {
+                // Свободный тур: очко в швейцарке, проход дальше в KO
+                pair[0].hadBye = true;
+                pair[0].score += 1;
+                pair[0].tell(tournament.name + ", round " + tournament.round + ": you have a bye.");
+                continue;
+            }
+            pair[0].opponents.add(pair[1].name);
+            pair[1].opponents.add(pair[0].name);
+            tournament.games.add(new Game(tournament, pair[0], pair[1], tournament.games.size() + 1, 0));
+        }
+        tournament.pending = tournament.games.size();
+        for (Game game : tournament.games) {
+            play(game);
+        }
+    }
+
+    private void play(Game game) {
+        gamesCreated.increment();
+        running++;
+        boolean firstHere = game.first.isOnline();
+        boolean secondHere = game.second.isOnline();
+        if (!firstHere || !secondHere) {
+            // Отключившийся к началу тура проигрывает сразу (в этом же проходе), а не через NO_SHOW_SECONDS
+            noShow(game, firstHere ? game.first.name : secondHere ? game.second.name : null);
+            return;
+        }
+        // Комната <турнир>-<тур>-<стол>; имя могли занять обычной комнатой
+        Tournament tournament = game.tournament;
+        String name = tournament.name + "-" + tournament.round + "-" + game.table + (game.rematch > 0 ? "r" + game.rematch : "");
+        TicTacToeServer.Room room = null;
+        for (int attempt = 1; room == null; attempt++) {
+            room = TicTacToeServer.openTournamentTable(attempt == 1 ? name : name + "." + attempt, game);
+        }
+        game.room = room;
+        TicTacToeServer.Room opened = room;
+        timer.schedule(() -> opened.execute(opened::checkNoShow), NO_SHOW_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void finish(Tournament tournament) {
+        tournament.finished = true;
+        active--;
+        List<Entrant> standings = standings(tournament);
+        String line = "Tournament " + tournament.name + " is over. Winner: " + standings.get(0).name + ".";
+        Log.info("Tournament {} finished, winner {}", tournament.name, standings.get(0).name);
+        for (Entrant entrant : standings) {
+            entrant.tell(line);
+        }
+        timer.schedule(() -> commands.add(() -> tournaments.remove(tournament.name, tournament)),
+                FINISHED_KEEP_MINUTES, TimeUnit.MINUTES);
+    }
+
+    // Швейцарка: по очкам, внутри - по посеву; соседи играют, если ещё не встречались.
+    // При нечётном числе свободный тур получает худший по таблице из тех, у кого его не было.
+    private static List<Entrant[]> pairSwiss(List<Entrant> players) {
+        List<Entrant> order = new ArrayList<>(players);
+        order.sort(Comparator.comparingDouble((Entrant e) -> -e.score).thenComparingInt(e -> e.seed));
+        List<Entrant[]> pairs = new ArrayList<>();
+        if (order.size() % 2 == 1) {
+            int bye = order.size() - 1;
+            while (bye > 0 && order.get(bye).hadBye) bye--;
+            pairs.add(new Entrant[] {order.remove(bye), null});
+        }
+        boolean[] paired = new boolean[order.size()];
+        for (int i = 0; i < order.size(); i++) {
+            if (paired[i]) continue;
+            Entrant player = order.get(i);
+            int opponent = -1;
+            for (int j = i + 1; j < order.size(); j++) {
+                if (paired[j]) continue;
+                if (opponent < 0) opponent = j; // повтор встречи - если иначе никак
+                if (!player.opponents.contains(order.get(j).name)) {
+                    opponent = j;
+                    break;
+                }
+            }
+            paired[i] = true;
+            paired[opponent] = true;
+            pairs.add(new Entrant[] {player, order.get(opponent)});
+        }
+        return pairs;
+    }
+
+    // KO с пересеиванием: в каждом туре сильнейший по посеву играет со слабейшим.
+    // В первом туре сильнейшие проходят без игры, чтобы дальше участников было 2^k.
+    private static List<Entrant[]> pairKnockout(List<Entrant> players, int round) {
+        List<Entrant> order = new ArrayList<>(players);
+        order.sort(Comparator.comparingInt(e -> e.seed));
+        List<Entrant[]> pairs = new ArrayList<>();
+        if (round == 1) {
+            int byes = Integer.highestOneBit(order.size() - 1) * 2 - order.size();
+            for (int i = 0; i < byes; i++) {
+                pairs.add(new Entrant[] {order.remove(0), null});
+            }
+        }
+        for (int i = 0, j = order.size() - 1; i < j; i++, j--) {
+            pairs.add(new Entrant[] {order.get(i), order.get(j)});
+        }
+        if (order.size() % 2 == 1) {
+            pairs.add(new Entrant[] {order.get(order.size() / 2), null});
+        }
+        return pairs;
+    }
+
+    private static List<Entrant> standings(Tournament tournament) {
+        List<Entrant> list = new ArrayList<>(tournament.entrants.values());
+        if (tournament.format == Format.SWISS) {
+            list.sort(Comparator.comparingDouble((Entrant e) -> -e.score).thenComparingInt(e -> e.seed));
+        } else {
+            // Дальше прошедшие выше; выбывшие в одном туре - по посеву
+            list.sort(Comparator.comparing((Entrant e) -> e.eliminated)
+                    .thenComparingDouble(e -> -e.score).thenComparingInt(e -> e.seed));
+        }
+        return list;
+    }
+
+    private static String formatScore(double score) {
+        return score == Math.floor(score) ? Integer.toString((int) score) : Double.toString(score);
+    }
+}
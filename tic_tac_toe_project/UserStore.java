@@ -0,0 +1,16 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// Хранилище учётных записей. Проверка пароля не держит общих блокировок:
+// медленное хеширование идёт в потоке того, кто логинится.
+interface UserStore {
+    enum Result { REGISTERED, WELCOME_BACK, WRONG_PASSWORD }
+
+    // Регистрирует нового пользователя или проверяет пароль существующего
+    Result login(String username, String password);
+
+    int size();
+
+    // Все записи для снимка тёплого рестарта (Snapshot)
+    void writeSnapshot(DataOutputStream out) throws IOException;
+}
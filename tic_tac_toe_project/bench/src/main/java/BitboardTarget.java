@@ -0,0 +1,49 @@
+import java.util.Arrays;
+import java.util.Random;
+
+import bench.CheckWinBenchmark;
+
+// Сторона CheckWinBenchmark, которой нужен Bitboard
+final class BitboardTarget implements CheckWinBenchmark.Target {
+    @Override
+    public void fill(char[][][] charBoards, int[] bitboards, long seed) {
+        Random random = new Random(seed);
+        for (int i = 0; i < bitboards.length; i++) {
+            char[][] board = new char[3][3];
+            for (char[] row : board) {
+                Arrays.fill(row, ' ');
+            }
+            int bits = Bitboard.EMPTY;
+            int moves = random.nextInt(10);
+            for (int m = 0; m < moves; m++) {
+                int cell;
+                do {
+                    cell = random.nextInt(9);
+                } while (!Bitboard.isFree(bits, cell));
+                int player = m % 2;
+                bits = Bitboard.place(bits, cell, player);
+                board[cell / 3][cell % 3] = player == 0 ? 'X' : 'O';
+            }
+            charBoards[i] = board;
+            bitboards[i] = bits;
+        }
+    }
+
+    @Override
+    public int countWins(int[] bitboards) {
+        int wins = 0;
+        for (int board : bitboards) {
+            if (Bitboard.hasWon(board, 0) || Bitboard.hasWon(board, 1)) wins++;
+        }
+        return wins;
+    }
+
+    @Override
+    public int countFull(int[] bitboards) {
+        int full = 0;
+        for (int board : bitboards) {
+            if (Bitboard.isFull(board)) full++;
+        }
+        return full;
+    }
+}
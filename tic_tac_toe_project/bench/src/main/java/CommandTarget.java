@@ -0,0 +1,67 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bench.CommandBenchmark;
+
+// Сторона CommandBenchmark: игроки без соединения, но с обычным разбором команд
+final class CommandTarget implements CommandBenchmark.Target {
+    private static final AtomicInteger instances = new AtomicInteger();
+    // Первый ходящий выигрывает по первой строке
+    private static final String[] SCRIPT = {"1 1", "2 1", "1 2", "2 2", "1 3"};
+
+    private final TicTacToeServer.ClientHandler first = player();
+    private final TicTacToeServer.ClientHandler second = player();
+    private final TicTacToeServer.ClientHandler idle = player();
+
+    CommandTarget() {
+        Log.enabled = false;
+        String prefix = "bench" + instances.incrementAndGet();
+        login(first, prefix + "a");
+        login(second, prefix + "b");
+        login(idle, prefix + "c");
+        first.onLine("CREATE " + prefix + " pw");
+        second.onLine("JOIN " + prefix + " pw");
+        Outbound.flushDirty();
+    }
+
+    private static TicTacToeServer.ClientHandler player() {
+        return new TicTacToeServer.ClientHandler(Outbound.discarding(), () -> { });
+    }
+
+    private static void login(TicTacToeServer.ClientHandler player, String username) {
+        player.onLine(username);
+        player.onLine("pw");
+    }
+
+    private TicTacToeServer.ClientHandler toMove() {
+        return first.isYourTurn() ? first : second;
+    }
+
+    @Override
+    public void invalidMove() {
+        toMove().onLine("9 9");
+        Outbound.flushDirty();
+    }
+
+    @Override
+    public void outOfTurnInput() {
+        (first.isYourTurn() ? second : first).onLine("2 2");
+        Outbound.flushDirty();
+    }
+
+    @Override
+    public void listCommand() {
+        idle.onLine("LIST");
+        Outbound.flushDirty();
+    }
+
+    @Override
+    public void playGame() {
+        for (String move : SCRIPT) {
+            toMove().onLine(move);
+            Outbound.flushDirty();
+        }
+        first.onLine("yes");
+        second.onLine("yes");
+        Outbound.flushDirty();
+    }
+}
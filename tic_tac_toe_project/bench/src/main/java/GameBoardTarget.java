@@ -0,0 +1,77 @@
+import java.util.Arrays;
+import java.util.Random;
+
+import bench.GameBoardBenchmark;
+
+// Сторона GameBoardBenchmark: случайные партии на GameBoard, заготовленные заранее
+final class GameBoardTarget implements GameBoardBenchmark.Target {
+    private final GameBoard board;
+    private final int[][] games;         // клетки row * size + col в порядке ходов
+    private final GameBoard[] positions; // позиции из середины и конца тех же партий
+
+    GameBoardTarget(int size, int count, long seed) {
+        int winLength = size == 3 ? 3 : 5;
+        board = GameBoard.create(size, winLength);
+        games = new int[count][];
+        positions = new GameBoard[count];
+        Random random = new Random(seed);
+        for (int g = 0; g < count; g++) {
+            games[g] = randomGame(size, random);
+            GameBoard position = GameBoard.create(size, winLength);
+            int moves = random.nextInt(games[g].length + 1);
+            for (int m = 0; m < moves; m++) {
+                position.place(games[g][m] / size, games[g][m] % size, m % 2);
+            }
+            positions[g] = position;
+        }
+        // Партия продолжается до победы, а не до заполнения: обрезаем лишние ходы
+        for (int g = 0; g < count; g++) {
+            board.reset();
+            for (int m = 0; m < games[g].length; m++) {
+                if (board.place(games[g][m] / size, games[g][m] % size, m % 2)) {
+                    games[g] = Arrays.copyOf(games[g], m + 1);
+                    break;
+                }
+            }
+        }
+    }
+
+    private static int[] randomGame(int size, Random random) {
+        int[] cells = new int[size * size];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = i;
+        }
+        for (int i = cells.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int cell = cells[i];
+            cells[i] = cells[j];
+            cells[j] = cell;
+        }
+        return cells;
+    }
+
+    @Override
+    public int playGames() {
+        int size = board.size();
+        int wins = 0;
+        for (int[] game : games) {
+            board.reset();
+            for (int m = 0; m < game.length; m++) {
+                if (board.place(game[m] / size, game[m] % size, m % 2)) {
+                    wins++;
+                    break;
+                }
+            }
+        }
+        return wins;
+    }
+
+    @Override
+    public int countFull() {
+        int full = 0;
+        for (GameBoard position : positions) {
+            if (position.isFull()) full++;
+        }
+        return full;
+    }
+}
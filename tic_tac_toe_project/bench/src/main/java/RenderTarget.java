@@ -0,0 +1,73 @@
+import java.util.Random;
+
+import bench.RenderBenchmark;
+
+// Сторона RenderBenchmark: случайные позиции и два игрока, вывод которых никуда не уходит
+final class RenderTarget implements RenderBenchmark.Target {
+    private final GameBoard[] positions;
+    private final TicTacToeServer.ClientHandler[] players = {
+            new TicTacToeServer.ClientHandler(Outbound.discarding(), () -> { }),
+            new TicTacToeServer.ClientHandler(Outbound.discarding(), () -> { })
+    };
+
+    RenderTarget(int size, int count, long seed) {
+        Random random = new Random(seed);
+        positions = new GameBoard[count];
+        for (int i = 0; i < count; i++) {
+            GameBoard board = GameBoard.create(size, size == 3 ? 3 : 5);
+            int moves = random.nextInt(size * size + 1);
+            for (int m = 0; m < moves; m++) {
+                int row;
+                int col;
+                do {
+                    row = random.nextInt(size);
+                    col = random.nextInt(size);
+                } while (!board.isFree(row, col));
+                board.place(row, col, m % 2);
+            }
+            positions[i] = board;
+        }
+    }
+
+    @Override
+    public long renderText() {
+        long bytes = 0;
+        for (GameBoard board : positions) {
+            bytes += BoardRenderer.render(board).length;
+        }
+        return bytes;
+    }
+
+    @Override
+    public long renderUncached() {
+        long bytes = 0;
+        for (GameBoard board : positions) {
+            bytes += BoardRenderer.encode(BoardRenderer.renderText(board)).length;
+        }
+        return bytes;
+    }
+
+    @Override
+    public long renderFrame() {
+        long bytes = 0;
+        for (GameBoard board : positions) {
+            bytes += BoardRenderer.renderFrame(board).length;
+        }
+        return bytes;
+    }
+
+    // Как GameHandler.printBoardToAll: рендер один раз, отправка каждому, сброс в конце обработки
+    @Override
+    public long broadcast() {
+        long bytes = 0;
+        for (GameBoard board : positions) {
+            byte[] text = BoardRenderer.render(board);
+            for (TicTacToeServer.ClientHandler player : players) {
+                player.send(text);
+            }
+            Outbound.flushDirty();
+            bytes += text.length;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.Random;
+
+import bench.RoomBenchmark;
+
+// Сторона RoomBenchmark: отдельный RoomRegistry, не общий реестр сервера
+final class RoomTarget implements RoomBenchmark.Target {
+    private final RoomRegistry registry = new RoomRegistry();
+    private final String[] existing;
+    private final String[] fresh;
+
+    RoomTarget(int rooms, int batch, long seed) {
+        for (int i = 0; i < rooms; i++) {
+            TicTacToeServer.Room room = new TicTacToeServer.Room(name(i), "pw", RoomSettings.CLASSIC);
+            registry.create(room);
+            registry.setJoinable(room, true);
+        }
+        Random random = new Random(seed);
+        existing = new String[batch];
+        fresh = new String[batch];
+        for (int i = 0; i < batch; i++) {
+            existing[i] = name(random.nextInt(rooms));
+            fresh[i] = "new" + i;
+        }
+    }
+
+    private static String name(int i) {
+        return String.format("room%06d", i);
+    }
+
+    @Override
+    public int createAndRemove() {
+        int created = 0;
+        TicTacToeServer.Room[] batch = new TicTacToeServer.Room[fresh.length];
+        for (int i = 0; i < fresh.length; i++) {
+            batch[i] = new TicTacToeServer.Room(fresh[i], "pw", RoomSettings.CLASSIC);
+            if (registry.create(batch[i])) {
+                registry.setJoinable(batch[i], true);
+                created++;
+            }
+        }
+        for (TicTacToeServer.Room room : batch) {
+            registry.remove(room);
+        }
+        return created;
+    }
+
+    @Override
+    public int lookup() {
+        int found = 0;
+        for (String name : existing) {
+            if (registry.get(name) != null) found++;
+        }
+        return found;
+    }
+
+    @Override
+    public int page(int page, String prefix) {
+        return registry.joinablePage(page, prefix).rooms.size();
+    }
+}
@@ -0,0 +1,88 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Сравнение старой проверки по char[3][3] с Bitboard на одних и тех же позициях.
+// Результат - число выигранных (или заполненных) позиций, его потребляет JMH.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CheckWinBenchmark {
+    static final int POSITIONS = 1024;
+
+    // Реализуется BitboardTarget
+    public interface Target {
+        // Случайные позиции: одна и та же расстановка в char[][] и в Bitboard
+        void fill(char[][][] charBoards, int[] bitboards, long seed);
+
+        int countWins(int[] bitboards);
+
+        int countFull(int[] bitboards);
+    }
+
+    private final char[][][] charBoards = new char[POSITIONS][][];
+    private final int[] bitboards = new int[POSITIONS];
+    private Target bitboard;
+
+    @Setup
+    public void setUp() {
+        bitboard = Targets.create(Target.class, "BitboardTarget");
+        bitboard.fill(charBoards, bitboards, 42);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public int charArrayCheckWin() {
+        int wins = 0;
+        for (char[][] board : charBoards) {
+            if (checkWin(board)) wins++;
+        }
+        return wins;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public int charArrayIsBoardFull() {
+        int full = 0;
+        for (char[][] board : charBoards) {
+            if (isBoardFull(board)) full++;
+        }
+        return full;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public int bitboardCheckWin() {
+        return bitboard.countWins(bitboards);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public int bitboardIsFull() {
+        return bitboard.countFull(bitboards);
+    }
+
+    // Прежняя реализация из GameHandler
+    private static boolean checkWin(char[][] board) {
+        for (int i = 0; i < 3; i++) {
+            if (board[i][0] != ' ' && board[i][0] == board[i][1] && board[i][1] == board[i][2]) return true;
+            if (board[0][i] != ' ' && board[0][i] == board[1][i] && board[1][i] == board[2][i]) return true;
+        }
+        return (board[0][0] != ' ' && board[0][0] == board[1][1] && board[1][1] == board[2][2]) ||
+               (board[0][2] != ' ' && board[0][2] == board[1][1] && board[1][1] == board[2][0]);
+    }
+
+    private static boolean isBoardFull(char[][] board) {
+        for (char[] row : board) {
+            for (char cell : row) {
+                if (cell == ' ') return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,60 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Обработка входящих строк целиком, как её делает поток клиента или event loop:
+// ClientHandler.onLine -> tryMakeMove / handleCommand -> GameHandler -> ответ в Outbound.
+// Вывод игроков никуда не уходит, лог выключен.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandBenchmark {
+
+    // Реализуется CommandTarget: два игрока в идущей партии 3x3 и один игрок в меню
+    public interface Target {
+        // Ход игрока, чья очередь, в несуществующую клетку: разбор хода и отказ от GameHandler
+        void invalidMove();
+
+        // Строка "2 2" от игрока, который ждёт хода соперника: уходит в handleCommand
+        void outOfTurnInput();
+
+        // LIST от игрока в меню: страница комнат и меню
+        void listCommand();
+
+        // Партия из пяти ходов до победы и переигровка "yes" от обоих
+        void playGame();
+    }
+
+    private Target target;
+
+    @Setup
+    public void setUp() {
+        target = Targets.create(Target.class, "CommandTarget");
+    }
+
+    @Benchmark
+    public void invalidMove() {
+        target.invalidMove();
+    }
+
+    @Benchmark
+    public void outOfTurnInput() {
+        target.outOfTurnInput();
+    }
+
+    @Benchmark
+    public void listCommand() {
+        target.listCommand();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void playGame() {
+        target.playGame();
+    }
+}
@@ -0,0 +1,49 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Поле в том виде, в каком его использует GameHandler: place() с проверкой победы
+// только по линиям через поставленную клетку и isFull(). 3 - SmallBoard, 15 - GridBoard (гомоку).
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GameBoardBenchmark {
+    static final int GAMES = 256;
+
+    // Реализуется GameBoardTarget
+    public interface Target {
+        // Все заготовленные партии с пустого поля до победы или ничьей; возвращает число побед
+        int playGames();
+
+        // isFull() на заготовленных позициях; возвращает число заполненных
+        int countFull();
+    }
+
+    @Param({"3", "15"})
+    public int size;
+
+    private Target target;
+
+    @Setup
+    public void setUp() {
+        target = Targets.create(Target.class, "GameBoardTarget", size, GAMES, 42L);
+    }
+
+    // Время на одну партию целиком: reset() и все ходы через place()
+    @Benchmark
+    @OperationsPerInvocation(GAMES)
+    public int playGame() {
+        return target.playGames();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GAMES)
+    public int isFull() {
+        return target.countFull();
+    }
+}
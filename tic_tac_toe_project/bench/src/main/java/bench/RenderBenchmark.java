@@ -0,0 +1,63 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Отрисовка поля для игроков: текст, кадр BOARD_STATE и рассылка printBoardToAll
+// (поле рендерится один раз, один и тот же массив уходит обоим игрокам).
+// На 3x3 BoardRenderer отдаёт готовые массивы из кэша, renderUncached - цена без кэша.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderBenchmark {
+    static final int POSITIONS = 256;
+
+    // Реализуется RenderTarget; методы возвращают суммарный размер байтов
+    public interface Target {
+        long renderText();
+
+        long renderUncached();
+
+        long renderFrame();
+
+        long broadcast();
+    }
+
+    @Param({"3", "15"})
+    public int size;
+
+    private Target target;
+
+    @Setup
+    public void setUp() {
+        target = Targets.create(Target.class, "RenderTarget", size, POSITIONS, 42L);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public long renderText() {
+        return target.renderText();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public long renderUncached() {
+        return target.renderUncached();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public long renderFrame() {
+        return target.renderFrame();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public long printBoardToAll() {
+        return target.broadcast();
+    }
+}
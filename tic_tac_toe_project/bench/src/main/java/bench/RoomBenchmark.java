@@ -0,0 +1,65 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// RoomRegistry на заполненном сервере: создание и удаление комнаты, поиск по имени (JOIN)
+// и страницы LIST - первая, с префиксом имени и из середины списка.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoomBenchmark {
+    static final int BATCH = 256;
+
+    // Реализуется RoomTarget
+    public interface Target {
+        // BATCH новых комнат: создать, открыть для LIST, затем удалить
+        int createAndRemove();
+
+        // BATCH поисков существующих комнат по имени
+        int lookup();
+
+        int page(int page, String prefix);
+    }
+
+    @Param({"1000", "100000"})
+    public int rooms;
+
+    private Target target;
+
+    @Setup
+    public void setUp() {
+        target = Targets.create(Target.class, "RoomTarget", rooms, BATCH, 42L);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int createAndRemove() {
+        return target.createAndRemove();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int lookup() {
+        return target.lookup();
+    }
+
+    @Benchmark
+    public int listFirstPage() {
+        return target.page(1, "");
+    }
+
+    @Benchmark
+    public int listByPrefix() {
+        return target.page(1, "room0005");
+    }
+
+    @Benchmark
+    public int listMiddlePage() {
+        return target.page(rooms / 40, "");
+    }
+}
@@ -0,0 +1,26 @@
+package bench;
+
+import java.lang.reflect.Constructor;
+
+// Код сервера лежит в пакете по умолчанию, а JMH не принимает бенчмарки без пакета,
+// и из именованного пакета такие классы не импортировать. Поэтому с сервером работают
+// маленькие классы-цели в пакете по умолчанию (рядом, в src/main/java), а бенчмарк создаёт
+// их по имени и вызывает через свой интерфейс Target. Вызов мономорфный, JIT его встраивает.
+final class Targets {
+    private Targets() {
+    }
+
+    static <T> T create(Class<T> type, String className, Object... args) {
+        try {
+            for (Constructor<?> constructor : Class.forName(className).getDeclaredConstructors()) {
+                if (constructor.getParameterCount() == args.length) {
+                    constructor.setAccessible(true);
+                    return type.cast(constructor.newInstance(args));
+                }
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + className, e);
+        }
+        throw new IllegalStateException(className + " has no constructor with " + args.length + " arguments");
+    }
+}